@@ -26,6 +26,7 @@ import android.support.annotation.NonNull;
 
 import ch.deletescape.lawnchair.compat.LauncherActivityInfoCompat;
 import ch.deletescape.lawnchair.compat.UserManagerCompat;
+import ch.deletescape.lawnchair.model.AppNameComparator;
 import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.PackageManagerHelper;
 
@@ -65,6 +66,11 @@ public class AppInfo extends ItemInfoWithIcon implements EditableItemInfo {
 
     public CharSequence originalTitle;
 
+    /**
+     * Sort key of the title, maintained by {@link AppNameComparator}.
+     */
+    public AppNameComparator.TitleKey titleKey;
+
     static final int DOWNLOADED_FLAG = 1;
     static final int UPDATED_SYSTEM_APP_FLAG = 2;
 
@@ -72,6 +72,8 @@ public abstract class ButtonDropTarget extends TextView
      */
     private final int mDragDistanceThreshold;
 
+    private final int[] mTempCoords = new int[2];
+
     /**
      * The paint applied to the drag view on hover
      */
@@ -264,7 +266,9 @@ public abstract class ButtonDropTarget extends TextView
         super.getHitRect(outRect);
         outRect.bottom += mBottomDragPadding;
 
-        int[] coords = new int[2];
+        int[] coords = mTempCoords;
+        coords[0] = 0;
+        coords[1] = 0;
         mLauncher.getDragLayer().getDescendantCoordRelativeToSelf(this, coords);
         outRect.offsetTo(coords[0], coords[1]);
     }
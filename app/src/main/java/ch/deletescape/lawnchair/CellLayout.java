@@ -45,10 +45,16 @@ import android.view.animation.DecelerateInterpolator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.deletescape.lawnchair.BubbleTextView.BubbleTextShadowHandler;
 import ch.deletescape.lawnchair.LauncherSettings.Favorites;
@@ -168,8 +174,26 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     float mReorderPreviewAnimationMagnitude;
 
     private ArrayList<View> mIntersectingViews = new ArrayList<>();
-    private Rect mOccupiedRect = new Rect();
     private int[] mDirectionVector = new int[2];
+
+    private static final int REORDER_CACHE_SIZE = 32;
+    private static final int REORDER_THREAD_KEEP_ALIVE_SECONDS = 5;
+    // Shared by all the layouts, only accessed on the UI thread
+    private static ThreadPoolExecutor sReorderExecutor;
+
+    // The reorder solutions found for the layout state mReorderCacheModel, in access order
+    private final LinkedHashMap<ReorderKey, ReorderSolver.Solution> mReorderCache =
+            new LinkedHashMap<ReorderKey, ReorderSolver.Solution>(REORDER_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<ReorderKey, ReorderSolver.Solution> eldest) {
+                    return size() > REORDER_CACHE_SIZE;
+                }
+            };
+    private ReorderSolver.Model mReorderCacheModel;
+    // The search running on the reorder executor, if any
+    @Thunk
+    ReorderSolver mPendingReorder;
     int[] mPreviousReorderDirection = new int[2];
     private static final int INVALID_DIRECTION = -100;
 
@@ -1093,6 +1117,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     }
 
     private final Stack<Rect> mTempRectStack = new Stack<>();
+    // Scratch state of findNearestArea, which runs on every drag move
+    private final ArrayList<Rect> mTempValidRegions = new ArrayList<>();
+    private final Rect mTempBestRect = new Rect();
+    private final Rect mTempIntersectRect = new Rect();
+    private final Rect mTempChildRect = new Rect();
 
     private void lazyInitTempRectStack() {
         if (mTempRectStack.isEmpty()) {
@@ -1102,10 +1131,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
     }
 
-    private void recycleTempRects(Stack<Rect> used) {
-        while (!used.isEmpty()) {
-            mTempRectStack.push(used.pop());
+    private void recycleTempRects(ArrayList<Rect> used) {
+        for (int i = used.size() - 1; i >= 0; i--) {
+            mTempRectStack.push(used.get(i));
         }
+        used.clear();
     }
 
     /**
@@ -1137,8 +1167,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         // Keep track of best-scoring drop area
         final int[] bestXY = result != null ? result : new int[2];
         double bestDistance = Double.MAX_VALUE;
-        final Rect bestRect = new Rect(-1, -1, -1, -1);
-        final Stack<Rect> validRegions = new Stack<>();
+        final Rect bestRect = mTempBestRect;
+        bestRect.set(-1, -1, -1, -1);
+        final ArrayList<Rect> validRegions = mTempValidRegions;
 
         final int countX = mCountX;
         final int countY = mCountY;
@@ -1155,12 +1186,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 int xSize = -1;
                 if (ignoreOccupied) {
                     // First, let's see if this thing fits anywhere
-                    for (int i = 0; i < minSpanX; i++) {
-                        for (int j = 0; j < minSpanY; j++) {
-                            if (mOccupied.cells[x + i][y + j]) {
-                                continue inner;
-                            }
-                        }
+                    if (!mOccupied.isRegionVacant(x, y, minSpanX, minSpanY)) {
+                        continue inner;
                     }
                     xSize = minSpanX;
                     ySize = minSpanY;
@@ -1174,7 +1201,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                     while (!(hitMaxX && hitMaxY)) {
                         if (incX && !hitMaxX) {
                             for (int j = 0; j < ySize; j++) {
-                                if (x + xSize > countX - 1 || mOccupied.cells[x + xSize][y + j]) {
+                                if (x + xSize > countX - 1 || mOccupied.isOccupied(x + xSize, y + j)) {
                                     // We can't move out horizontally
                                     hitMaxX = true;
                                 }
@@ -1184,7 +1211,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                             }
                         } else if (!hitMaxY) {
                             for (int i = 0; i < xSize; i++) {
-                                if (y + ySize > countY - 1 || mOccupied.cells[x + i][y + ySize]) {
+                                if (y + ySize > countY - 1 || mOccupied.isOccupied(x + i, y + ySize)) {
                                     // We can't move out vertically
                                     hitMaxY = true;
                                 }
@@ -1210,13 +1237,13 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 Rect currentRect = mTempRectStack.pop();
                 currentRect.set(x, y, x + xSize, y + ySize);
                 boolean contained = false;
-                for (Rect r : validRegions) {
-                    if (r.contains(currentRect)) {
+                for (int i = validRegions.size() - 1; i >= 0; i--) {
+                    if (validRegions.get(i).contains(currentRect)) {
                         contained = true;
                         break;
                     }
                 }
-                validRegions.push(currentRect);
+                validRegions.add(currentRect);
                 double distance = Math.hypot(cellXY[0] - pixelX, cellXY[1] - pixelY);
 
                 if ((distance <= bestDistance && !contained) ||
@@ -1242,634 +1269,123 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         return bestXY;
     }
 
-    /**
-     * Find a vacant area that will fit the given bounds nearest the requested
-     * cell location, and will also weigh in a suggested direction vector of the
-     * desired location. This method computers distance based on unit grid distances,
-     * not pixel distances.
-     *
-     * @param cellX         The X cell nearest to which you want to search for a vacant area.
-     * @param cellY         The Y cell nearest which you want to search for a vacant area.
-     * @param spanX         Horizontal span of the object.
-     * @param spanY         Vertical span of the object.
-     * @param direction     The favored direction in which the views should move from x, y
-     * @param occupied      The array which represents which cells in the CellLayout are occupied
-     * @param blockOccupied The array which represents which cells in the specified block (cellX,
-     *                      cellY, spanX, spanY) are occupied. This is used when try to move a group of views.
-     * @param result        Array in which to place the result, or null (in which case a new array will
-     *                      be allocated)
-     * @return The X, Y cell of a vacant area that can contain this object,
-     * nearest the requested location.
-     */
-    private int[] findNearestArea(int cellX, int cellY, int spanX, int spanY, int[] direction,
-                                  boolean[][] occupied, boolean blockOccupied[][], int[] result) {
-        // Keep track of best-scoring drop area
-        final int[] bestXY = result != null ? result : new int[2];
-        float bestDistance = Float.MAX_VALUE;
-        int bestDirectionScore = Integer.MIN_VALUE;
-
-        final int countX = mCountX;
-        final int countY = mCountY;
-
-        for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
-            for (int x = 0; x < countX - (spanX - 1); x++) {
-                // First, let's see if this thing fits anywhere
-                for (int i = 0; i < spanX; i++) {
-                    for (int j = 0; j < spanY; j++) {
-                        if (occupied[x + i][y + j] && (blockOccupied == null || blockOccupied[i][j])) {
-                            continue inner;
-                        }
-                    }
-                }
-
-                float distance = (float) Math.hypot(x - cellX, y - cellY);
-                int[] curDirection = mTmpPoint;
-                computeDirectionVector(x - cellX, y - cellY, curDirection);
-                // The direction score is just the dot product of the two candidate direction
-                // and that passed in.
-                int curDirectionScore = direction[0] * curDirection[0] +
-                        direction[1] * curDirection[1];
-                if (Float.compare(distance, bestDistance) < 0 ||
-                        (Float.compare(distance, bestDistance) == 0
-                                && curDirectionScore > bestDirectionScore)) {
-                    bestDistance = distance;
-                    bestDirectionScore = curDirectionScore;
-                    bestXY[0] = x;
-                    bestXY[1] = y;
-                }
-            }
-        }
-
-        // Return -1, -1 if no suitable location found
-        if (bestDistance == Float.MAX_VALUE) {
-            bestXY[0] = -1;
-            bestXY[1] = -1;
-        }
-        return bestXY;
-    }
-
-    private boolean addViewToTempLocation(View v, Rect rectOccupiedByPotentialDrop,
-                                          int[] direction, ItemConfiguration currentState) {
-        CellAndSpan c = currentState.map.get(v);
-        boolean success = false;
-        mTmpOccupied.markCells(c, false);
-        mTmpOccupied.markCells(rectOccupiedByPotentialDrop, true);
-
-        findNearestArea(c.cellX, c.cellY, c.spanX, c.spanY, direction,
-                mTmpOccupied.cells, null, mTempLocation);
-
-        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
-            c.cellX = mTempLocation[0];
-            c.cellY = mTempLocation[1];
-            success = true;
+    private ItemConfiguration findReorderSolution(int pixelX, int pixelY, int minSpanX, int minSpanY,
+                                                  int spanX, int spanY, int[] direction, View dragView,
+                                                  ItemConfiguration solution) {
+        ReorderSolver.Model model = createReorderModel(dragView);
+        ReorderKey key = new ReorderKey(getReorderTargets(pixelX, pixelY, minSpanX, minSpanY,
+                spanX, spanY), direction);
+        ReorderSolver.Solution result = getCachedReorderSolution(model, key);
+        if (result == null) {
+            result = new ReorderSolver(model, key.targets, direction).solve();
+            cacheReorderSolution(model, key, result);
         }
-        mTmpOccupied.markCells(c, true);
-        return success;
+        return copyReorderSolution(result, solution);
     }
 
     /**
-     * This helper class defines a cluster of views. It helps with defining complex edges
-     * of the cluster and determining how those edges interact with other views. The edges
-     * essentially define a fine-grained boundary around the cluster of views -- like a more
-     * precise version of a bounding box.
+     * Returns a snapshot of the items of this layout, which the reorder search can use on any
+     * thread.
      */
-    private class ViewCluster {
-        final static int LEFT = 1;
-        final static int TOP = 1 << 1;
-        final static int RIGHT = 1 << 2;
-        final static int BOTTOM = 1 << 3;
-
-        ArrayList<View> views;
-        ItemConfiguration config;
-        Rect boundingRect = new Rect();
-
-        int[] leftEdge = new int[mCountY];
-        int[] rightEdge = new int[mCountY];
-        int[] topEdge = new int[mCountX];
-        int[] bottomEdge = new int[mCountX];
-        int dirtyEdges;
-        boolean boundingRectDirty;
-
-        public ViewCluster(ArrayList<View> views, ItemConfiguration config) {
-            this.views = (ArrayList<View>) views.clone();
-            this.config = config;
-            resetEdges();
-        }
-
-        void resetEdges() {
-            for (int i = 0; i < mCountX; i++) {
-                topEdge[i] = -1;
-                bottomEdge[i] = -1;
-            }
-            for (int i = 0; i < mCountY; i++) {
-                leftEdge[i] = -1;
-                rightEdge[i] = -1;
-            }
-            dirtyEdges = LEFT | TOP | RIGHT | BOTTOM;
-            boundingRectDirty = true;
-        }
-
-        void computeEdge(int which) {
-            int count = views.size();
-            for (int i = 0; i < count; i++) {
-                CellAndSpan cs = config.map.get(views.get(i));
-                switch (which) {
-                    case LEFT:
-                        int left = cs.cellX;
-                        for (int j = cs.cellY; j < cs.cellY + cs.spanY; j++) {
-                            if (left < leftEdge[j] || leftEdge[j] < 0) {
-                                leftEdge[j] = left;
-                            }
-                        }
-                        break;
-                    case RIGHT:
-                        int right = cs.cellX + cs.spanX;
-                        for (int j = cs.cellY; j < cs.cellY + cs.spanY; j++) {
-                            if (right > rightEdge[j]) {
-                                rightEdge[j] = right;
-                            }
-                        }
-                        break;
-                    case TOP:
-                        int top = cs.cellY;
-                        for (int j = cs.cellX; j < cs.cellX + cs.spanX; j++) {
-                            if (top < topEdge[j] || topEdge[j] < 0) {
-                                topEdge[j] = top;
-                            }
-                        }
-                        break;
-                    case BOTTOM:
-                        int bottom = cs.cellY + cs.spanY;
-                        for (int j = cs.cellX; j < cs.cellX + cs.spanX; j++) {
-                            if (bottom > bottomEdge[j]) {
-                                bottomEdge[j] = bottom;
-                            }
-                        }
-                        break;
-                }
-            }
-        }
-
-        boolean isViewTouchingEdge(View v, int whichEdge) {
-            CellAndSpan cs = config.map.get(v);
-
-            if ((dirtyEdges & whichEdge) == whichEdge) {
-                computeEdge(whichEdge);
-                dirtyEdges &= ~whichEdge;
-            }
-
-            switch (whichEdge) {
-                case LEFT:
-                    for (int i = cs.cellY; i < cs.cellY + cs.spanY; i++) {
-                        if (i > leftEdge.length || leftEdge[i] == cs.cellX + cs.spanX) {
-                            return true;
-                        }
-                    }
-                    break;
-                case RIGHT:
-                    for (int i = cs.cellY; i < cs.cellY + cs.spanY; i++) {
-                        if (i > rightEdge.length || rightEdge[i] == cs.cellX) {
-                            return true;
-                        }
-                    }
-                    break;
-                case TOP:
-                    for (int i = cs.cellX; i < cs.cellX + cs.spanX; i++) {
-                        if (i > topEdge.length || topEdge[i] == cs.cellY + cs.spanY) {
-                            return true;
-                        }
-                    }
-                    break;
-                case BOTTOM:
-                    for (int i = cs.cellX; i < cs.cellX + cs.spanX; i++) {
-                        if (i > bottomEdge.length || bottomEdge[i] == cs.cellY) {
-                            return true;
-                        }
-                    }
-                    break;
-            }
-            return false;
-        }
-
-        void shift(int whichEdge, int delta) {
-            for (View v : views) {
-                CellAndSpan c = config.map.get(v);
-                switch (whichEdge) {
-                    case LEFT:
-                        c.cellX -= delta;
-                        break;
-                    case RIGHT:
-                        c.cellX += delta;
-                        break;
-                    case TOP:
-                        c.cellY -= delta;
-                        break;
-                    case BOTTOM:
-                    default:
-                        c.cellY += delta;
-                        break;
-                }
-            }
-            resetEdges();
-        }
-
-        public void addView(View v) {
-            views.add(v);
-            resetEdges();
-        }
-
-        public Rect getBoundingRect() {
-            if (boundingRectDirty) {
-                config.getBoundingRectForViews(views, boundingRect);
-            }
-            return boundingRect;
-        }
-
-        PositionComparator comparator = new PositionComparator();
-
-        class PositionComparator implements Comparator<View> {
-            int whichEdge = 0;
-
-            @Override
-            public int compare(View left, View right) {
-                CellAndSpan l = config.map.get(left);
-                CellAndSpan r = config.map.get(right);
-                switch (whichEdge) {
-                    case LEFT:
-                        return (r.cellX + r.spanX) - (l.cellX + l.spanX);
-                    case RIGHT:
-                        return l.cellX - r.cellX;
-                    case TOP:
-                        return (r.cellY + r.spanY) - (l.cellY + l.spanY);
-                    case BOTTOM:
-                    default:
-                        return l.cellY - r.cellY;
-                }
-            }
-        }
-
-        public void sortConfigurationForEdgePush(int edge) {
-            comparator.whichEdge = edge;
-            Collections.sort(config.sortedViews, comparator);
-        }
-    }
-
-    private boolean pushViewsToTempLocation(ArrayList<View> views, Rect rectOccupiedByPotentialDrop,
-                                            int[] direction, View dragView, ItemConfiguration currentState) {
-
-        ViewCluster cluster = new ViewCluster(views, currentState);
-        Rect clusterRect = cluster.getBoundingRect();
-        int whichEdge;
-        int pushDistance;
-        boolean fail = false;
-
-        // Determine the edge of the cluster that will be leading the push and how far
-        // the cluster must be shifted.
-        if (direction[0] < 0) {
-            whichEdge = ViewCluster.LEFT;
-            pushDistance = clusterRect.right - rectOccupiedByPotentialDrop.left;
-        } else if (direction[0] > 0) {
-            whichEdge = ViewCluster.RIGHT;
-            pushDistance = rectOccupiedByPotentialDrop.right - clusterRect.left;
-        } else if (direction[1] < 0) {
-            whichEdge = ViewCluster.TOP;
-            pushDistance = clusterRect.bottom - rectOccupiedByPotentialDrop.top;
-        } else {
-            whichEdge = ViewCluster.BOTTOM;
-            pushDistance = rectOccupiedByPotentialDrop.bottom - clusterRect.top;
-        }
-
-        // Break early for invalid push distance.
-        if (pushDistance <= 0) {
-            return false;
-        }
-
-        // Mark the occupied state as false for the group of views we want to move.
-        for (View v : views) {
-            CellAndSpan c = currentState.map.get(v);
-            mTmpOccupied.markCells(c, false);
-        }
-
-        // We save the current configuration -- if we fail to find a solution we will revert
-        // to the initial state. The process of finding a solution modifies the configuration
-        // in place, hence the need for revert in the failure case.
-        currentState.save();
-
-        // The pushing algorithm is simplified by considering the views in the order in which
-        // they would be pushed by the cluster. For example, if the cluster is leading with its
-        // left edge, we consider sort the views by their right edge, from right to left.
-        cluster.sortConfigurationForEdgePush(whichEdge);
-
-        while (pushDistance > 0 && !fail) {
-            for (View v : currentState.sortedViews) {
-                // For each view that isn't in the cluster, we see if the leading edge of the
-                // cluster is contacting the edge of that view. If so, we add that view to the
-                // cluster.
-                if (!cluster.views.contains(v) && v != dragView) {
-                    if (cluster.isViewTouchingEdge(v, whichEdge)) {
-                        LayoutParams lp = (LayoutParams) v.getLayoutParams();
-                        if (!lp.canReorder) {
-                            // The push solution includes the all apps button, this is not viable.
-                            fail = true;
-                            break;
-                        }
-                        cluster.addView(v);
-                        CellAndSpan c = currentState.map.get(v);
-
-                        // Adding view to cluster, mark it as not occupied.
-                        mTmpOccupied.markCells(c, false);
-                    }
-                }
+    private ReorderSolver.Model createReorderModel(View dragView) {
+        int childCount = mShortcutsAndWidgets.getChildCount();
+        CellAndSpan[] cells = new CellAndSpan[childCount];
+        boolean[] canReorder = new boolean[childCount];
+        int dragIndex = -1;
+        for (int i = 0; i < childCount; i++) {
+            View child = mShortcutsAndWidgets.getChildAt(i);
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            cells[i] = new CellAndSpan(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan);
+            canReorder[i] = lp.canReorder;
+            if (child == dragView) {
+                dragIndex = i;
             }
-            pushDistance--;
-
-            // The cluster has been completed, now we move the whole thing over in the appropriate
-            // direction.
-            cluster.shift(whichEdge, 1);
-        }
-
-        boolean foundSolution = false;
-        clusterRect = cluster.getBoundingRect();
-
-        // Due to the nature of the algorithm, the only check required to verify a valid solution
-        // is to ensure that completed shifted cluster lies completely within the cell layout.
-        if (!fail && clusterRect.left >= 0 && clusterRect.right <= mCountX && clusterRect.top >= 0 &&
-                clusterRect.bottom <= mCountY) {
-            foundSolution = true;
-        } else {
-            currentState.restore();
-        }
-
-        // In either case, we set the occupied array as marked for the location of the views
-        for (View v : cluster.views) {
-            CellAndSpan c = currentState.map.get(v);
-            mTmpOccupied.markCells(c, true);
         }
-
-        return foundSolution;
+        return new ReorderSolver.Model(mCountX, mCountY, cells, canReorder, dragIndex, mOccupied);
     }
 
-    private boolean addViewsToTempLocation(ArrayList<View> views, Rect rectOccupiedByPotentialDrop,
-                                           int[] direction, ItemConfiguration currentState) {
-        if (views.size() == 0) return true;
-
-        boolean success = false;
-        Rect boundingRect = new Rect();
-        // We construct a rect which represents the entire group of views passed in
-        currentState.getBoundingRectForViews(views, boundingRect);
-
-        // Mark the occupied state as false for the group of views we want to move.
-        for (View v : views) {
-            CellAndSpan c = currentState.map.get(v);
-            mTmpOccupied.markCells(c, false);
-        }
-
-        GridOccupancy blockOccupied = new GridOccupancy(boundingRect.width(), boundingRect.height());
-        int top = boundingRect.top;
-        int left = boundingRect.left;
-        // We mark more precisely which parts of the bounding rect are truly occupied, allowing
-        // for interlocking.
-        for (View v : views) {
-            CellAndSpan c = currentState.map.get(v);
-            blockOccupied.markCells(c.cellX - left, c.cellY - top, c.spanX, c.spanY, true);
-        }
-
-        mTmpOccupied.markCells(rectOccupiedByPotentialDrop, true);
-
-        findNearestArea(boundingRect.left, boundingRect.top, boundingRect.width(),
-                boundingRect.height(), direction,
-                mTmpOccupied.cells, blockOccupied.cells, mTempLocation);
-
-        // If we successfuly found a location by pushing the block of views, we commit it
-        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
-            int deltaX = mTempLocation[0] - boundingRect.left;
-            int deltaY = mTempLocation[1] - boundingRect.top;
-            for (View v : views) {
-                CellAndSpan c = currentState.map.get(v);
-                c.cellX += deltaX;
-                c.cellY += deltaY;
+    /**
+     * Returns the locations the reorder search tries for the dragged item, as (cellX, cellY,
+     * spanX, spanY) groups. We first try the exact nearest position of the item being dragged,
+     * then we try shrinking the item down to size in an alternating pattern, shrink 1 in x, then
+     * 1 in y etc.
+     */
+    private int[] getReorderTargets(int pixelX, int pixelY, int minSpanX, int minSpanY,
+                                    int spanX, int spanY) {
+        int[] targets = new int[4 * (Math.max(0, spanX - minSpanX)
+                + Math.max(0, spanY - minSpanY) + 1)];
+        int[] cell = new int[2];
+        boolean decX = true;
+        int count = 0;
+        while (true) {
+            // We find the nearest cell into which we would place the dragged item, assuming
+            // there's nothing in its way.
+            findNearestArea(pixelX, pixelY, spanX, spanY, cell);
+            targets[count++] = cell[0];
+            targets[count++] = cell[1];
+            targets[count++] = spanX;
+            targets[count++] = spanY;
+            if (spanX > minSpanX && (minSpanY == spanY || decX)) {
+                spanX--;
+                decX = false;
+            } else if (spanY > minSpanY) {
+                spanY--;
+                decX = true;
+            } else {
+                break;
             }
-            success = true;
         }
-
-        // In either case, we set the occupied array as marked for the location of the views
-        for (View v : views) {
-            CellAndSpan c = currentState.map.get(v);
-            mTmpOccupied.markCells(c, true);
-        }
-        return success;
+        return count == targets.length ? targets : Arrays.copyOf(targets, count);
     }
 
-    // This method tries to find a reordering solution which satisfies the push mechanic by trying
-    // to push items in each of the cardinal directions, in an order based on the direction vector
-    // passed.
-    private boolean attemptPushInDirection(ArrayList<View> intersectingViews, Rect occupied,
-                                           int[] direction, View ignoreView, ItemConfiguration solution) {
-        if ((Math.abs(direction[0]) + Math.abs(direction[1])) > 1) {
-            // If the direction vector has two non-zero components, we try pushing
-            // separately in each of the components.
-            int temp = direction[1];
-            direction[1] = 0;
-
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            direction[1] = temp;
-            temp = direction[0];
-            direction[0] = 0;
-
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            // Revert the direction
-            direction[0] = temp;
-
-            // Now we try pushing in each component of the opposite direction
-            direction[0] *= -1;
-            direction[1] *= -1;
-            temp = direction[1];
-            direction[1] = 0;
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-
-            direction[1] = temp;
-            temp = direction[0];
-            direction[0] = 0;
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            // revert the direction
-            direction[0] = temp;
-            direction[0] *= -1;
-            direction[1] *= -1;
-
-        } else {
-            // If the direction vector has a single non-zero component, we push first in the
-            // direction of the vector
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            // Then we try the opposite direction
-            direction[0] *= -1;
-            direction[1] *= -1;
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            // Switch the direction back
-            direction[0] *= -1;
-            direction[1] *= -1;
-
-            // If we have failed to find a push solution with the above, then we try
-            // to find a solution by pushing along the perpendicular axis.
-
-            // Swap the components
-            int temp = direction[1];
-            direction[1] = direction[0];
-            direction[0] = temp;
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-
-            // Then we try the opposite direction
-            direction[0] *= -1;
-            direction[1] *= -1;
-            if (pushViewsToTempLocation(intersectingViews, occupied, direction,
-                    ignoreView, solution)) {
-                return true;
-            }
-            // Switch the direction back
-            direction[0] *= -1;
-            direction[1] *= -1;
-
-            // Swap the components back
-            temp = direction[1];
-            direction[1] = direction[0];
-            direction[0] = temp;
+    /**
+     * Returns the solution cached for {@param key}, if it was found for the same state of the
+     * layout as {@param model}.
+     */
+    private ReorderSolver.Solution getCachedReorderSolution(ReorderSolver.Model model,
+                                                            ReorderKey key) {
+        if (!model.equals(mReorderCacheModel)) {
+            mReorderCache.clear();
+            mReorderCacheModel = null;
+            return null;
         }
-        return false;
+        return mReorderCache.get(key);
     }
 
-    private boolean rearrangementExists(int cellX, int cellY, int spanX, int spanY, int[] direction,
-                                        View ignoreView, ItemConfiguration solution) {
-        // Return early if get invalid cell positions
-        if (cellX < 0 || cellY < 0) return false;
-
-        mIntersectingViews.clear();
-        mOccupiedRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
-
-        // Mark the desired location of the view currently being dragged.
-        if (ignoreView != null) {
-            CellAndSpan c = solution.map.get(ignoreView);
-            if (c != null) {
-                c.cellX = cellX;
-                c.cellY = cellY;
-            }
-        }
-        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
-        Rect r1 = new Rect();
-        for (View child : solution.map.keySet()) {
-            if (child == ignoreView) continue;
-            CellAndSpan c = solution.map.get(child);
-            LayoutParams lp = (LayoutParams) child.getLayoutParams();
-            r1.set(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
-            if (Rect.intersects(r0, r1)) {
-                if (!lp.canReorder) {
-                    return false;
-                }
-                mIntersectingViews.add(child);
-            }
-        }
-
-        solution.intersectingViews = new ArrayList<>(mIntersectingViews);
-
-        // First we try to find a solution which respects the push mechanic. That is,
-        // we try to find a solution such that no displaced item travels through another item
-        // without also displacing that item.
-        if (attemptPushInDirection(mIntersectingViews, mOccupiedRect, direction, ignoreView,
-                solution)) {
-            return true;
+    private void cacheReorderSolution(ReorderSolver.Model model, ReorderKey key,
+                                      ReorderSolver.Solution solution) {
+        if (!model.equals(mReorderCacheModel)) {
+            mReorderCache.clear();
+            mReorderCacheModel = model;
         }
-
-        // Next we try moving the views as a block, but without requiring the push mechanic.
-        if (addViewsToTempLocation(mIntersectingViews, mOccupiedRect, direction,
-                solution)) {
-            return true;
-        }
-
-        // Ok, they couldn't move as a block, let's move them individually
-        for (View v : mIntersectingViews) {
-            if (!addViewToTempLocation(v, mOccupiedRect, direction, solution)) {
-                return false;
-            }
-        }
-        return true;
+        mReorderCache.put(key, solution);
     }
 
-    /*
-     * Returns a pair (x, y), where x,y are in {-1, 0, 1} corresponding to vector between
-     * the provided point and the provided cell
+    /**
+     * Copies a solution of the reorder search, found for the current state of the layout, into
+     * {@param config}.
      */
-    private void computeDirectionVector(float deltaX, float deltaY, int[] result) {
-        double angle = Math.atan(deltaY / deltaX);
-
-        result[0] = 0;
-        result[1] = 0;
-        if (Math.abs(Math.cos(angle)) > 0.5f) {
-            result[0] = (int) Math.signum(deltaX);
-        }
-        if (Math.abs(Math.sin(angle)) > 0.5f) {
-            result[1] = (int) Math.signum(deltaY);
-        }
-    }
-
-    private ItemConfiguration findReorderSolution(int pixelX, int pixelY, int minSpanX, int minSpanY,
-                                                  int spanX, int spanY, int[] direction, View dragView, boolean decX,
-                                                  ItemConfiguration solution) {
-        // Copy the current state into the solution. This solution will be manipulated as necessary.
-        copyCurrentStateToSolution(solution);
-        // Copy the current occupied array into the temporary occupied array. This array will be
-        // manipulated as necessary to find a solution.
-        mOccupied.copyTo(mTmpOccupied);
-
-        // We find the nearest cell into which we would place the dragged item, assuming there's
-        // nothing in its way.
-        int result[] = new int[2];
-        result = findNearestArea(pixelX, pixelY, spanX, spanY, result);
-
-        boolean success;
-        // First we try the exact nearest position of the item being dragged,
-        // we will then want to try to move this around to other neighbouring positions
-        success = rearrangementExists(result[0], result[1], spanX, spanY, direction, dragView,
-                solution);
-
-        if (!success) {
-            // We try shrinking the widget down to size in an alternating pattern, shrink 1 in
-            // x, then 1 in y etc.
-            if (spanX > minSpanX && (minSpanY == spanY || decX)) {
-                return findReorderSolution(pixelX, pixelY, minSpanX, minSpanY, spanX - 1, spanY,
-                        direction, dragView, false, solution);
-            } else if (spanY > minSpanY) {
-                return findReorderSolution(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY - 1,
-                        direction, dragView, true, solution);
+    private ItemConfiguration copyReorderSolution(ReorderSolver.Solution solution,
+                                                  ItemConfiguration config) {
+        config.isSolution = solution.isSolution;
+        if (!solution.isSolution) {
+            return config;
+        }
+        config.cellX = solution.cellX;
+        config.cellY = solution.cellY;
+        config.spanX = solution.spanX;
+        config.spanY = solution.spanY;
+        config.intersectingViews = new ArrayList<>();
+        int childCount = mShortcutsAndWidgets.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            View child = mShortcutsAndWidgets.getChildAt(i);
+            CellAndSpan c = solution.cells[i];
+            config.add(child, new CellAndSpan(c.cellX, c.cellY, c.spanX, c.spanY));
+            if (solution.intersecting[i]) {
+                config.intersectingViews.add(child);
             }
-            solution.isSolution = false;
-        } else {
-            solution.isSolution = true;
-            solution.cellX = result[0];
-            solution.cellY = result[1];
-            solution.spanX = spanX;
-            solution.spanY = spanY;
         }
-        return solution;
+        return config;
     }
 
     private void copyCurrentStateToSolution(ItemConfiguration solution) {
@@ -2192,7 +1708,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             resultDirection[0] = 1;
             resultDirection[1] = 0;
         } else {
-            computeDirectionVector(deltaX, deltaY, resultDirection);
+            ReorderSolver.computeDirectionVector(deltaX, deltaY, resultDirection);
         }
     }
 
@@ -2203,8 +1719,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             boundingRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
         }
         intersectingViews.clear();
-        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
-        Rect r1 = new Rect();
+        Rect r0 = mTempIntersectRect;
+        r0.set(cellX, cellY, cellX + spanX, cellY + spanY);
+        Rect r1 = mTempChildRect;
         final int count = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < count; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
@@ -2229,6 +1746,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     }
 
     void revertTempState() {
+        cancelPendingReorder();
         completeAndClearReorderPreviewAnimations();
         if (isItemPlacementDirty() && !DESTRUCTIVE_REORDER) {
             final int count = mShortcutsAndWidgets.getChildCount();
@@ -2253,7 +1771,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
         // First we determine if things have moved enough to cause a different layout
         ItemConfiguration swapSolution = findReorderSolution(pixelXY[0], pixelXY[1], spanX, spanY,
-                spanX, spanY, direction, dragView, true, new ItemConfiguration());
+                spanX, spanY, direction, dragView, new ItemConfiguration());
 
         setUseTempCoords(true);
         if (swapSolution != null && swapSolution.isSolution) {
@@ -2286,6 +1804,123 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             resultSpan = new int[2];
         }
 
+        // Any solution still being searched for an earlier position is outdated
+        cancelPendingReorder();
+        updateReorderDirection(pixelX, pixelY, spanX, spanY, dragView, mode);
+
+        // Find a solution involving pushing / displacing any items in the way
+        ItemConfiguration swapSolution = findReorderSolution(pixelX, pixelY, minSpanX, minSpanY,
+                spanX, spanY, mDirectionVector, dragView, new ItemConfiguration());
+        return applyReorderSolution(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY, dragView,
+                swapSolution, result, resultSpan, mode);
+    }
+
+    /**
+     * Same as {@link #performReorder} for {@link #MODE_SHOW_REORDER_HINT} and
+     * {@link #MODE_DRAG_OVER}, but the reorder solution is searched on a background thread and
+     * applied once it is found, unless another reorder was requested or the temporary state was
+     * reverted in the meantime.
+     *
+     * @param callback Called on the UI thread with the result cell and span, or null.
+     */
+    void performReorderAsync(final int pixelX, final int pixelY, final int minSpanX,
+                             final int minSpanY, final int spanX, final int spanY,
+                             final View dragView, final int mode, final ReorderCallback callback) {
+        cancelPendingReorder();
+        updateReorderDirection(pixelX, pixelY, spanX, spanY, dragView, mode);
+
+        final ReorderSolver.Model model = createReorderModel(dragView);
+        final ReorderKey key = new ReorderKey(getReorderTargets(pixelX, pixelY, minSpanX,
+                minSpanY, spanX, spanY), mDirectionVector);
+        ReorderSolver.Solution cached = getCachedReorderSolution(model, key);
+        if (cached != null) {
+            onReorderSolutionFound(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY, dragView,
+                    cached, mode, callback);
+            return;
+        }
+
+        final ReorderSolver solver = new ReorderSolver(model, key.targets, mDirectionVector);
+        mPendingReorder = solver;
+        getReorderExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final ReorderSolver.Solution solution = solver.solve();
+                if (solution == null) {
+                    return;
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPendingReorder != solver || solver.isCancelled()) {
+                            return;
+                        }
+                        mPendingReorder = null;
+                        if (!model.equals(createReorderModel(dragView))) {
+                            // The layout changed during the search, the solution no longer
+                            // applies.
+                            int[] resultSpan = new int[2];
+                            int[] result = performReorder(pixelX, pixelY, minSpanX, minSpanY,
+                                    spanX, spanY, dragView, null, resultSpan, mode);
+                            if (callback != null) {
+                                callback.onReorderComplete(result, resultSpan);
+                            }
+                            return;
+                        }
+                        cacheReorderSolution(model, key, solution);
+                        onReorderSolutionFound(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY,
+                                dragView, solution, mode, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    @Thunk
+    void onReorderSolutionFound(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX,
+                                int spanY, View dragView, ReorderSolver.Solution solution,
+                                int mode, ReorderCallback callback) {
+        ItemConfiguration swapSolution = copyReorderSolution(solution, new ItemConfiguration());
+        int[] result = new int[2];
+        int[] resultSpan = new int[2];
+        applyReorderSolution(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY, dragView,
+                swapSolution, result, resultSpan, mode);
+        if (callback != null) {
+            callback.onReorderComplete(result, resultSpan);
+        }
+    }
+
+    /**
+     * Stops the search of the pending reorder solution, if any. Its solution is never applied.
+     */
+    void cancelPendingReorder() {
+        if (mPendingReorder != null) {
+            mPendingReorder.cancel();
+            mPendingReorder = null;
+        }
+    }
+
+    private static Executor getReorderExecutor() {
+        if (sReorderExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    REORDER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            // The solution is awaited by the user, so this keeps the priority of
+                            // the UI thread which creates it.
+                            return new Thread(r, "launcher-reorder-" + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sReorderExecutor = executor;
+        }
+        return sReorderExecutor;
+    }
+
+    private void updateReorderDirection(int pixelX, int pixelY, int spanX, int spanY,
+                                        View dragView, int mode) {
         // When we are checking drop validity or actually dropping, we don't recompute the
         // direction vector, since we want the solution to match the preview, and it's possible
         // that the exact position of the item has changed to result in a new reordering outcome.
@@ -2303,11 +1938,12 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             mPreviousReorderDirection[0] = mDirectionVector[0];
             mPreviousReorderDirection[1] = mDirectionVector[1];
         }
+    }
 
-        // Find a solution involving pushing / displacing any items in the way
-        ItemConfiguration swapSolution = findReorderSolution(pixelX, pixelY, minSpanX, minSpanY,
-                spanX, spanY, mDirectionVector, dragView, true, new ItemConfiguration());
-
+    private int[] applyReorderSolution(int pixelX, int pixelY, int minSpanX, int minSpanY,
+                                       int spanX, int spanY, View dragView,
+                                       ItemConfiguration swapSolution, int[] result,
+                                       int[] resultSpan, int mode) {
         // We attempt the approach which doesn't shuffle views at all
         ItemConfiguration noShuffleSolution = findConfigurationNoShuffle(pixelX, pixelY, minSpanX,
                 minSpanY, spanX, spanY, new ItemConfiguration());
@@ -2388,49 +2024,56 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         return mItemPlacementDirty;
     }
 
-    private static class ItemConfiguration extends CellAndSpan {
-        HashMap<View, CellAndSpan> map = new HashMap<>();
-        private HashMap<View, CellAndSpan> savedMap = new HashMap<>();
-        ArrayList<View> sortedViews = new ArrayList<>();
-        ArrayList<View> intersectingViews;
-        boolean isSolution = false;
+    /**
+     * Callback for {@link #performReorderAsync}.
+     */
+    interface ReorderCallback {
+        void onReorderComplete(int[] result, int[] resultSpan);
+    }
 
-        void save() {
-            // Copy current state into savedMap
-            for (View v : map.keySet()) {
-                savedMap.get(v).copyFrom(map.get(v));
-            }
+    /**
+     * The locations tried for the dragged item and the direction of a reorder search, which
+     * together with the state of the layout determine its solution.
+     */
+    private static class ReorderKey {
+        final int[] targets;
+        final int directionX;
+        final int directionY;
+
+        ReorderKey(int[] targets, int[] direction) {
+            this.targets = targets;
+            directionX = direction[0];
+            directionY = direction[1];
         }
 
-        void restore() {
-            // Restore current state from savedMap
-            for (View v : savedMap.keySet()) {
-                map.get(v).copyFrom(savedMap.get(v));
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ReorderKey)) {
+                return false;
             }
+            ReorderKey other = (ReorderKey) o;
+            return directionX == other.directionX && directionY == other.directionY
+                    && Arrays.equals(targets, other.targets);
         }
 
+        @Override
+        public int hashCode() {
+            return (Arrays.hashCode(targets) * 31 + directionX) * 31 + directionY;
+        }
+    }
+
+    private static class ItemConfiguration extends CellAndSpan {
+        HashMap<View, CellAndSpan> map = new HashMap<>();
+        ArrayList<View> intersectingViews;
+        boolean isSolution = false;
+
         void add(View v, CellAndSpan cs) {
             map.put(v, cs);
-            savedMap.put(v, new CellAndSpan());
-            sortedViews.add(v);
         }
 
         int area() {
             return spanX * spanY;
         }
-
-        void getBoundingRectForViews(ArrayList<View> views, Rect outRect) {
-            boolean first = true;
-            for (View v : views) {
-                CellAndSpan c = map.get(v);
-                if (first) {
-                    outRect.set(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
-                    first = false;
-                } else {
-                    outRect.union(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
-                }
-            }
-        }
     }
 
     /**
@@ -2562,7 +2205,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied.cells[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             return true;
             //throw new RuntimeException("Position exceeds the bound of this CellLayout");
@@ -2776,7 +2419,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 cellToPoint(cellX, cellY, cellPoint);
                 if (findReorderSolution(cellPoint[0], cellPoint[1], itemInfo.minSpanX,
                         itemInfo.minSpanY, itemInfo.spanX, itemInfo.spanY, mDirectionVector, null,
-                        true, new ItemConfiguration()).isSolution) {
+                        new ItemConfiguration()).isSolution) {
                     return true;
                 }
             }
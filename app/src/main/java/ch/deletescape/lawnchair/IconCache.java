@@ -16,6 +16,8 @@
 
 package ch.deletescape.lawnchair;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -39,22 +41,38 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.deletescape.lawnchair.compat.LauncherActivityInfoCompat;
 import ch.deletescape.lawnchair.compat.LauncherAppsCompat;
 import ch.deletescape.lawnchair.compat.UserManagerCompat;
+import ch.deletescape.lawnchair.graphics.IconBlobCodec;
 import ch.deletescape.lawnchair.model.PackageItemInfo;
 import ch.deletescape.lawnchair.pixelify.PixelIconProvider;
 import ch.deletescape.lawnchair.util.ComponentKey;
@@ -63,6 +81,10 @@ import ch.deletescape.lawnchair.util.Thunk;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ * <p>
+ * Lookups of cached entries are lock-free. Cache misses are loaded under a per-key striped lock,
+ * so that concurrent requests for the same component only decode the icon once. The cache monitor
+ * only serializes operations which modify the cache and the DB.
  */
 public class IconCache {
 
@@ -75,6 +97,21 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
+    // Number of icons rendered in parallel and written to the DB in a single transaction by
+    // the icon update task.
+    private static final int ICON_UPDATE_BATCH_SIZE = 16;
+
+    private static final String PACKAGE_SELECTION =
+            IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?";
+    private static final int ICON_RENDER_THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // Number of locks used to deduplicate loading of missing entries.
+    private static final int LOAD_LOCK_STRIPES = 16;
+
+    // Fraction of the app memory class used by default for the icons in the memory cache.
+    private static final int DEFAULT_MEM_CACHE_FRACTION = 8;
+
     @Thunk
     static final Object ICON_UPDATE_TOKEN = new Object();
 
@@ -84,8 +121,16 @@ public class IconCache {
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+
+        // Memory accounted for this entry, set before the entry is added to the cache.
+        int byteCount;
+        // Value of the access clock when this entry was last used, for LRU trimming.
+        volatile long lastAccessed;
+        // Set for entries which are not persisted in the DB, they are never trimmed.
+        boolean pinned;
     }
 
+    // Guarded by itself, as it is accessed outside of the cache monitor.
     private final HashMap<UserHandle, Bitmap> mDefaultIcons = new HashMap<>();
     @Thunk
     final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
@@ -95,14 +140,44 @@ public class IconCache {
     @Thunk
     final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mCache =
+            new ConcurrentHashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    // Package entries are loaded while holding a component lock, so they use separate stripes
+    // to keep the lock ordering consistent.
+    private final Object[] mEntryLoadLocks = newLoadLocks();
+    private final Object[] mPackageLoadLocks = newLoadLocks();
+    // Changed before and after the entries of a package are updated or removed, by stripes of
+    // packages. Entries loaded without the cache monitor are only kept if the generation of
+    // their package didn't change while they were loaded, as they might come from old data.
+    private final AtomicInteger[] mPackageGenerations = newPackageGenerations();
+
+    // Memory accounting of the icons in mCache. Full-res entries are downgraded to low-res
+    // entries in least recently used order when the budget is exceeded.
+    private final Object mTrimLock = new Object();
+    private final AtomicLong mAccessClock = new AtomicLong();
+    private final AtomicLong mCacheSizeBytes = new AtomicLong();
+    private volatile long mMaxCacheSizeBytes;
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mTrimScheduled.set(false);
+            // Trim a bit below the budget, so that we don't trim again on the next insert.
+            trimToSize(mMaxCacheSizeBytes * 3 / 4);
+        }
+    };
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mDowngradeCount = new AtomicInteger();
+    private final AtomicInteger mEvictionCount = new AtomicInteger();
     private final int mIconDpi;
     @Thunk
     final IconDB mIconDb;
 
     @Thunk
     final Handler mWorkerHandler;
+    @Thunk
+    final ExecutorService mIconRenderExecutor;
 
     // The background color used for activity icons. Since these icons are displayed in all-apps
     // and folders, this would be same as the light quantum panel background. This color
@@ -115,7 +190,13 @@ public class IconCache {
 
     public PixelIconProvider pip;
 
-    private Canvas mLowResCanvas;
+    // Low-res icons are generated on the render threads, each of them with its own canvas.
+    private final ThreadLocal<Canvas> mLowResCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
     private Paint mLowResPaint;
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
@@ -125,12 +206,26 @@ public class IconCache {
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context, inv.iconBitmapSize);
-        mLowResCanvas = new Canvas();
         mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
         pip = new PixelIconProvider(context);
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mIconRenderExecutor = Executors.newFixedThreadPool(ICON_RENDER_THREAD_COUNT,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "launcher-icon-render-" + mCount.incrementAndGet());
+                    }
+                });
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         TypedArray ta = context.obtainStyledAttributes(new int[]{R.attr.colorSecondary});
@@ -140,6 +235,9 @@ public class IconCache {
         // Always prefer RGB_565 config for low res. If the bitmap has transparency, it will
         // automatically be loaded as ALPHA_8888.
         mLowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMaxCacheSizeBytes = am.getMemoryClass() * 1024L * 1024L / DEFAULT_MEM_CACHE_FRACTION;
     }
 
     private Drawable getFullResDefaultActivityIcon() {
@@ -183,6 +281,230 @@ public class IconCache {
     }
 
 
+    private static Object[] newLoadLocks() {
+        Object[] locks = new Object[LOAD_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private static Object getLoadLock(Object[] locks, ComponentKey key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static AtomicInteger[] newPackageGenerations() {
+        AtomicInteger[] generations = new AtomicInteger[LOAD_LOCK_STRIPES];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = new AtomicInteger();
+        }
+        return generations;
+    }
+
+    private static int getPackageGenerationStripe(String packageName, UserHandle user) {
+        int hash = 31 * packageName.hashCode() + user.hashCode();
+        return (hash & Integer.MAX_VALUE) % LOAD_LOCK_STRIPES;
+    }
+
+    private int getPackageGeneration(ComponentKey key) {
+        return mPackageGenerations[getPackageGenerationStripe(
+                key.componentName.getPackageName(), key.user)].get();
+    }
+
+    /**
+     * Marks the entries of a package being loaded as outdated. Called before and after the
+     * entries of the package are changed.
+     */
+    private void invalidatePackageLoads(String packageName, UserHandle user) {
+        mPackageGenerations[getPackageGenerationStripe(packageName, user)].incrementAndGet();
+    }
+
+    /**
+     * Adds {@param entry}, loaded after reading the {@param generation} of its package, to the
+     * memory cache. The entry is removed again if its package changed in the meantime.
+     */
+    private void putLoadedEntry(ComponentKey key, CacheEntry entry, int generation) {
+        putEntry(key, entry);
+        // Package writers change the generation before clearing the memory cache, so either they
+        // cleared this entry or the change is visible here.
+        if (getPackageGeneration(key) != generation && mCache.remove(key, entry)) {
+            mCacheSizeBytes.addAndGet(-entry.byteCount);
+        }
+    }
+
+    /**
+     * Returns true if {@param entry} can be used without reloading it.
+     */
+    private static boolean isValidEntry(CacheEntry entry, boolean useLowResIcon) {
+        return entry != null && (useLowResIcon || !entry.isLowResIcon);
+    }
+
+    private void onCacheHit(CacheEntry entry) {
+        entry.lastAccessed = mAccessClock.incrementAndGet();
+        mHitCount.incrementAndGet();
+    }
+
+    /**
+     * Adds {@param entry} to the memory cache, and schedules a trim on the worker thread if the
+     * cache exceeds its budget.
+     */
+    private void putEntry(ComponentKey key, CacheEntry entry) {
+        entry.byteCount = entry.icon == null || isDefaultIcon(entry.icon, key.user)
+                ? 0 : entry.icon.getAllocationByteCount();
+        entry.lastAccessed = mAccessClock.incrementAndGet();
+        CacheEntry oldEntry = mCache.put(key, entry);
+        long size = mCacheSizeBytes.addAndGet(
+                entry.byteCount - (oldEntry == null ? 0 : oldEntry.byteCount));
+        if (size > mMaxCacheSizeBytes && mTrimScheduled.compareAndSet(false, true)) {
+            // Trimming sorts the cache and generates low-res icons, keep it off the caller.
+            mWorkerHandler.post(mTrimRunnable);
+        }
+    }
+
+    private void removeEntry(ComponentKey key) {
+        CacheEntry oldEntry = mCache.remove(key);
+        if (oldEntry != null) {
+            mCacheSizeBytes.addAndGet(-oldEntry.byteCount);
+        }
+    }
+
+    /**
+     * Trims the memory cache until it uses at most {@param maxBytes}, or until only pinned
+     * entries are left. Called on the worker thread. Least recently used full-res entries are
+     * first replaced by their low-res variant, and entries are only dropped if that is not
+     * enough. Entries are dropped right away if downgrading them all would not be enough either.
+     */
+    private void trimToSize(long maxBytes) {
+        synchronized (mTrimLock) {
+            if (mCacheSizeBytes.get() <= maxBytes) {
+                return;
+            }
+            // Sort a snapshot of the access stamps, as cache hits keep updating them.
+            ArrayList<TrimCandidate> entries = new ArrayList<>(mCache.size());
+            // Estimated size of the cache once every full-res entry is downgraded.
+            long downgradedBytes = mCacheSizeBytes.get();
+            for (Map.Entry<ComponentKey, CacheEntry> e : mCache.entrySet()) {
+                CacheEntry entry = e.getValue();
+                if (entry.pinned) {
+                    continue;
+                }
+                entries.add(new TrimCandidate(e.getKey(), entry));
+                if (!entry.isLowResIcon) {
+                    downgradedBytes -= entry.byteCount
+                            - entry.byteCount / (LOW_RES_SCALE_FACTOR * LOW_RES_SCALE_FACTOR);
+                }
+            }
+            Collections.sort(entries, new Comparator<TrimCandidate>() {
+                @Override
+                public int compare(TrimCandidate lhs, TrimCandidate rhs) {
+                    return Long.compare(lhs.lastAccessed, rhs.lastAccessed);
+                }
+            });
+
+            // Don't generate low-res icons which would be evicted right away, when downgrading
+            // alone can't bring the cache within the budget.
+            if (downgradedBytes <= maxBytes) {
+                for (TrimCandidate e : entries) {
+                    if (mCacheSizeBytes.get() <= maxBytes) {
+                        return;
+                    }
+                    CacheEntry entry = e.entry;
+                    if (entry.isLowResIcon || entry.byteCount == 0) {
+                        continue;
+                    }
+                    ComponentKey key = e.key;
+                    CacheEntry lowResEntry = new CacheEntry();
+                    lowResEntry.icon = generateLowResIcon(entry.icon,
+                            isPackageKey(key) ? mPackageBgColor : mActivityBgColor);
+                    lowResEntry.isLowResIcon = true;
+                    lowResEntry.title = entry.title;
+                    lowResEntry.contentDescription = entry.contentDescription;
+                    lowResEntry.byteCount = lowResEntry.icon.getAllocationByteCount();
+                    lowResEntry.lastAccessed = entry.lastAccessed;
+                    if (mCache.replace(key, entry, lowResEntry)) {
+                        mCacheSizeBytes.addAndGet(lowResEntry.byteCount - entry.byteCount);
+                        mDowngradeCount.incrementAndGet();
+                    }
+                }
+            }
+
+            for (TrimCandidate e : entries) {
+                if (mCacheSizeBytes.get() <= maxBytes) {
+                    return;
+                }
+                // Entries which have been downgraded above have been replaced, so look them up.
+                CacheEntry entry = mCache.get(e.key);
+                if (entry != null && !entry.pinned && mCache.remove(e.key, entry)) {
+                    mCacheSizeBytes.addAndGet(-entry.byteCount);
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * An entry of the memory cache with its access stamp at the time the cache is trimmed.
+     */
+    private static class TrimCandidate {
+        final ComponentKey key;
+        final CacheEntry entry;
+        final long lastAccessed;
+
+        TrimCandidate(ComponentKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccessed = entry.lastAccessed;
+        }
+    }
+
+    /**
+     * Sets the memory budget of the icons in the memory cache.
+     */
+    public void setMaxMemCacheSize(final long maxBytes) {
+        mMaxCacheSizeBytes = maxBytes;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize(maxBytes);
+            }
+        });
+    }
+
+    /**
+     * Releases memory held by the memory cache depending on {@param level}.
+     *
+     * @see ComponentCallbacks2#onTrimMemory(int)
+     */
+    public void onTrimMemory(int level) {
+        final long maxBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Everything but the pinned entries can be reloaded from the DB when needed.
+            maxBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Only while the launcher is running, hiding its UI doesn't free the cache.
+            maxBytes = mMaxCacheSizeBytes / 2;
+        } else {
+            return;
+        }
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize(maxBytes);
+            }
+        });
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "IconCache: entries=" + mCache.size()
+                + " size=" + (mCacheSizeBytes.get() / 1024) + "KB"
+                + " max=" + (mMaxCacheSizeBytes / 1024) + "KB");
+        writer.println(prefix + "  hits=" + mHitCount.get()
+                + " misses=" + mMissCount.get()
+                + " downgrades=" + mDowngradeCount.get()
+                + " evictions=" + mEvictionCount.get());
+    }
+
     private Bitmap makeDefaultIcon(UserHandle user) {
         Drawable unbadged = getFullResDefaultActivityIcon();
         return Utilities.createBadgedIconBitmap(unbadged, user, mContext);
@@ -192,7 +514,7 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public synchronized void remove(ComponentName componentName, UserHandle user) {
-        mCache.remove(new ComponentKey(componentName, user));
+        removeEntry(new ComponentKey(componentName, user));
     }
 
     /**
@@ -207,7 +529,7 @@ public class IconCache {
             }
         }
         for (ComponentKey condemned : forDeletion) {
-            mCache.remove(condemned);
+            removeEntry(condemned);
         }
     }
 
@@ -215,28 +537,42 @@ public class IconCache {
      * Updates the entries related to the given package in memory and persistent DB.
      */
     public synchronized void updateIconsForPkg(String packageName, UserHandle user) {
-        removeIconsForPkg(packageName, user);
+        invalidatePackageLoads(packageName, user);
+        removeFromMemCacheLocked(packageName, user);
+        long userSerial = mUserManager.getSerialNumberForUser(user);
+        // The old entries are replaced in a single transaction
+        SQLiteCacheHelper.Batch batch = mIconDb.newBatch(Integer.MAX_VALUE);
+        batch.delete(PACKAGE_SELECTION, getPackageSelectionArgs(packageName, userSerial));
         try {
             PackageInfo info = mPackageManager.getPackageInfo(packageName,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
-            long userSerial = mUserManager.getSerialNumberForUser(user);
             for (LauncherActivityInfoCompat app : mLauncherApps.getActivityList(packageName, user)) {
-                addIconToDBAndMemCache(app, info, userSerial);
+                // Reuse the existing entry if it already exists in the DB. This ensures that we
+                // do not create bitmap if it was already created during loader.
+                ContentValues values = updateCacheAndGetContentValues(app, false);
+                batch.insertOrReplace(
+                        addVersionInfo(values, app.getComponentName(), info, userSerial));
             }
         } catch (NameNotFoundException e) {
             Log.d(TAG, "Package not found", e);
         }
+        batch.commit();
+        invalidatePackageLoads(packageName, user);
     }
 
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
     public synchronized void removeIconsForPkg(String packageName, UserHandle user) {
+        invalidatePackageLoads(packageName, user);
         removeFromMemCacheLocked(packageName, user);
         long userSerial = mUserManager.getSerialNumberForUser(user);
-        mIconDb.delete(
-                IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
-                new String[]{packageName + "/%", Long.toString(userSerial)});
+        mIconDb.delete(PACKAGE_SELECTION, getPackageSelectionArgs(packageName, userSerial));
+        invalidatePackageLoads(packageName, user);
+    }
+
+    private static String[] getPackageSelectionArgs(String packageName, long userSerial) {
+        return new String[]{packageName + "/%", Long.toString(userSerial)};
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -347,20 +683,11 @@ public class IconCache {
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfoCompat> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
+            new BatchedIconUpdateTask(userSerial, pkgInfoMap,
                     appsToAdd, appsToUpdate).scheduleNext();
         }
     }
 
-    @Thunk
-    void addIconToDBAndMemCache(LauncherActivityInfoCompat app, PackageInfo info,
-                                long userSerial) {
-        // Reuse the existing entry if it already exists in the DB. This ensures that we do not
-        // create bitmap if it was already created during loader.
-        ContentValues values = updateCacheAndGetContentValues(app, false);
-        addIconToDB(values, app.getComponentName(), info, userSerial);
-    }
-
     /**
      * Updates {@param values} to contain versoning information and adds it to the DB.
      *
@@ -368,38 +695,53 @@ public class IconCache {
      */
     private void addIconToDB(ContentValues values, ComponentName key,
                              PackageInfo info, long userSerial) {
+        mIconDb.insertOrReplace(addVersionInfo(values, key, info, userSerial));
+    }
+
+    private static ContentValues addVersionInfo(ContentValues values, ComponentName key,
+                                                PackageInfo info, long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.insertOrReplace(values);
+        return values;
     }
 
     @Thunk
     ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
                                                  boolean replaceExisting) {
-        final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = null;
+        CacheEntry entry = newCacheEntry(app, replaceExisting);
+        putEntry(new ComponentKey(app.getComponentName(), app.getUser()), entry);
+
+        Bitmap lowResIcon = generateLowResIcon(entry.icon, mActivityBgColor);
+        return newContentValues(entry.icon, lowResIcon, entry.title.toString()
+        );
+    }
+
+    /**
+     * Creates a new full-res entry for {@param app} without adding it to the memory cache.
+     * The high-res icon of an existing entry is reused unless {@param replaceExisting} is set.
+     * This method does not hold any lock, so it can be called from any thread.
+     */
+    @Thunk
+    CacheEntry newCacheEntry(LauncherActivityInfoCompat app, boolean replaceExisting) {
+        CacheEntry entry = new CacheEntry();
         if (!replaceExisting) {
-            entry = mCache.get(key);
+            CacheEntry existing =
+                    mCache.get(new ComponentKey(app.getComponentName(), app.getUser()));
             // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
+            if (existing != null && !existing.isLowResIcon) {
+                entry.icon = existing.icon;
             }
         }
-        if (entry == null) {
-            entry = new CacheEntry();
+        if (entry.icon == null) {
             entry.icon = Utilities.createBadgedIconBitmap(
                     pip.getIcon(app, mIconDpi), app.getUser(),
                     mContext);
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
-
-        Bitmap lowResIcon = generateLowResIcon(entry.icon, mActivityBgColor);
-        return newContentValues(entry.icon, lowResIcon, entry.title.toString()
-        );
+        return entry;
     }
 
     /**
@@ -443,10 +785,10 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
-                                             LauncherActivityInfoCompat info, boolean useLowResIcon) {
+    public void getTitleAndIcon(AppInfo application,
+                                LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandle user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
+        CacheEntry entry = getCacheEntry(application.componentName, info, user,
                 false, useLowResIcon);
         application.originalTitle = Utilities.trim(entry.title);
         String key = application.componentName.flattenToString();
@@ -459,8 +801,8 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
-        CacheEntry entry = cacheLocked(application.componentName, null, application.user,
+    public void updateTitleAndIcon(AppInfo application) {
+        CacheEntry entry = getCacheEntry(application.componentName, null, application.user,
                 false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.originalTitle = Utilities.trim(entry.title);
@@ -475,7 +817,7 @@ public class IconCache {
     /**
      * Returns a high res icon for the given intent and user
      */
-    public synchronized Bitmap getIcon(Intent intent, UserHandle user) {
+    public Bitmap getIcon(Intent intent, UserHandle user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -484,7 +826,7 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */);
+        CacheEntry entry = getCacheEntry(component, launcherActInfo, user, true, false /* useLowRes */);
         return entry.icon;
     }
 
@@ -492,8 +834,8 @@ public class IconCache {
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
-                                             UserHandle user, boolean useLowResIcon) {
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+                                UserHandle user, boolean useLowResIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -512,10 +854,10 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ShortcutInfo shortcutInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandle user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+        CacheEntry entry = getCacheEntry(component, info, user, usePkgIcon, useLowResIcon);
         Bitmap iBitmap = getNonNullIcon(entry, user);
         shortcutInfo.setIcon(iBitmap);
         String title = Utilities.trim(entry.title);
@@ -529,9 +871,9 @@ public class IconCache {
     /**
      * Fill in {@param infoInOut} with the corresponding icon and label.
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             PackageItemInfo infoInOut, boolean useLowResIcon) {
-        CacheEntry entry = getEntryForPackageLocked(
+        CacheEntry entry = getEntryForPackage(
                 infoInOut.packageName, infoInOut.user, useLowResIcon);
         infoInOut.title = Utilities.trim(entry.title);
         infoInOut.contentDescription = entry.contentDescription;
@@ -539,28 +881,45 @@ public class IconCache {
         infoInOut.usingLowResIcon = entry.isLowResIcon;
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandle user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandle user) {
+        synchronized (mDefaultIcons) {
+            if (!mDefaultIcons.containsKey(user)) {
+                mDefaultIcons.put(user, makeDefaultIcon(user));
+            }
+            return mDefaultIcons.get(user);
         }
-        return mDefaultIcons.get(user);
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandle user) {
-        return mDefaultIcons.get(user) == icon;
+        synchronized (mDefaultIcons) {
+            return mDefaultIcons.get(user) == icon;
+        }
     }
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Cache hits do not take any lock. Misses are loaded while holding the load lock of the key,
+     * so that an entry is only loaded once when requested by multiple threads.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
-                                   UserHandle user, boolean usePackageIcon, boolean useLowResIcon) {
+    private CacheEntry getCacheEntry(ComponentName componentName, LauncherActivityInfoCompat info,
+                                     UserHandle user, boolean usePackageIcon, boolean useLowResIcon) {
         ComponentKey cacheKey = new ComponentKey(componentName, user);
         CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        if (isValidEntry(entry, useLowResIcon)) {
+            onCacheHit(entry);
+            return entry;
+        }
+
+        synchronized (getLoadLock(mEntryLoadLocks, cacheKey)) {
+            // The entry might have been loaded while we were waiting for the lock.
+            entry = mCache.get(cacheKey);
+            if (isValidEntry(entry, useLowResIcon)) {
+                onCacheHit(entry);
+                return entry;
+            }
+            mMissCount.incrementAndGet();
+            int generation = getPackageGeneration(cacheKey);
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
@@ -570,7 +929,7 @@ public class IconCache {
                             mContext);
                 } else {
                     if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
+                        CacheEntry packageEntry = getEntryForPackage(
                                 componentName.getPackageName(), user, false);
                         if (packageEntry != null) {
                             entry.icon = packageEntry.icon;
@@ -588,6 +947,8 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            // Only publish the entry once it is filled out, as readers don't take any lock.
+            putLoadedEntry(cacheKey, entry, generation);
         }
         return entry;
     }
@@ -602,15 +963,20 @@ public class IconCache {
      */
     public synchronized void cachePackageInstallInfo(String packageName, UserHandle user,
                                                      Bitmap icon, CharSequence title) {
+        invalidatePackageLoads(packageName, user);
         removeFromMemCacheLocked(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-
-        // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
+        CacheEntry oldEntry = mCache.get(cacheKey);
+
+        // For icon caching, do not go through DB. Just update the in-memory entry. A new entry is
+        // always published, as entries might be read concurrently without holding any lock.
+        CacheEntry entry = new CacheEntry();
+        if (oldEntry != null) {
+            entry.icon = oldEntry.icon;
+            entry.title = oldEntry.title;
+            entry.contentDescription = oldEntry.contentDescription;
+            entry.isLowResIcon = oldEntry.isLowResIcon;
         }
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
@@ -618,6 +984,10 @@ public class IconCache {
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext);
         }
+        entry.pinned = true;
+        putEntry(cacheKey, entry);
+        // Don't let an entry loaded from the DB in the meantime replace this one.
+        invalidatePackageLoads(packageName, user);
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandle user) {
@@ -625,16 +995,32 @@ public class IconCache {
         return new ComponentKey(cn, user);
     }
 
+    private static boolean isPackageKey(ComponentKey key) {
+        ComponentName cn = key.componentName;
+        return cn.getClassName().equals(cn.getPackageName() + EMPTY_CLASS_NAME);
+    }
+
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
-    private CacheEntry getEntryForPackageLocked(String packageName, UserHandle user,
-                                                boolean useLowResIcon) {
+    private CacheEntry getEntryForPackage(String packageName, UserHandle user,
+                                          boolean useLowResIcon) {
         ComponentKey cacheKey = getPackageKey(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
+        if (isValidEntry(entry, useLowResIcon)) {
+            onCacheHit(entry);
+            return entry;
+        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        synchronized (getLoadLock(mPackageLoadLocks, cacheKey)) {
+            // The entry might have been loaded while we were waiting for the lock.
+            entry = mCache.get(cacheKey);
+            if (isValidEntry(entry, useLowResIcon)) {
+                onCacheHit(entry);
+                return entry;
+            }
+            mMissCount.incrementAndGet();
+            int generation = getPackageGeneration(cacheKey);
             entry = new CacheEntry();
             boolean entryUpdated = true;
 
@@ -673,12 +1059,110 @@ public class IconCache {
 
             // Only add a filled-out entry to the cache
             if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                putLoadedEntry(cacheKey, entry, generation);
             }
         }
         return entry;
     }
 
+    /**
+     * Loads all the DB entries of {@param user} into the memory cache, so that the loader does
+     * not need to query the DB once per component. The rows are read in a single query and the
+     * icons are decoded in parallel on the icon render threads. Entries which are already
+     * present in the memory cache are not replaced.
+     */
+    public void prefetchEntriesForUser(UserHandle user, final boolean lowRes) {
+        final long userSerial = mUserManager.getSerialNumberForUser(user);
+        final ArrayList<ComponentKey> keys = new ArrayList<>();
+        final ArrayList<byte[]> blobs = new ArrayList<>();
+        final ArrayList<String> labels = new ArrayList<>();
+        // The generations of the packages before the rows are read
+        final int[] generations = new int[mPackageGenerations.length];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = mPackageGenerations[i].get();
+        }
+
+        Cursor c = null;
+        try {
+            c = mIconDb.query(
+                    new String[]{IconDB.COLUMN_COMPONENT,
+                            lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
+                            IconDB.COLUMN_LABEL},
+                    IconDB.COLUMN_USER + " = ?",
+                    new String[]{Long.toString(userSerial)});
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                if (cn == null) {
+                    continue;
+                }
+                ComponentKey key = new ComponentKey(cn, user);
+                if (isValidEntry(mCache.get(key), lowRes)) {
+                    continue;
+                }
+                keys.add(key);
+                blobs.add(c.getBlob(1));
+                labels.add(c.getString(2));
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        // Split the rows in one slice per render thread.
+        final int count = keys.size();
+        final int sliceSize = (count + ICON_RENDER_THREAD_COUNT - 1) / ICON_RENDER_THREAD_COUNT;
+        ArrayList<Future<?>> slices = new ArrayList<>(ICON_RENDER_THREAD_COUNT);
+        for (int start = 0; start < count; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(count, start + sliceSize);
+            slices.add(mIconRenderExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    BitmapFactory.Options options = null;
+                    if (lowRes) {
+                        options = new BitmapFactory.Options();
+                        options.inPreferredConfig = mLowResOptions.inPreferredConfig;
+                    }
+                    for (int i = sliceStart; i < sliceEnd; i++) {
+                        ComponentKey key = keys.get(i);
+                        CacheEntry entry = new CacheEntry();
+                        entry.icon = decodeIcon(blobs.get(i), options);
+                        if (entry.icon == null) {
+                            continue;
+                        }
+                        entry.isLowResIcon = lowRes;
+                        entry.title = labels.get(i);
+                        if (entry.title == null) {
+                            entry.title = "";
+                            entry.contentDescription = "";
+                        } else {
+                            entry.contentDescription = mUserManager.getBadgedLabelForUser(
+                                    entry.title, key.user);
+                        }
+                        // Don't replace an entry which was loaded in the meantime.
+                        if (!isValidEntry(mCache.get(key), lowRes)) {
+                            putLoadedEntry(key, entry, generations[getPackageGenerationStripe(
+                                    key.componentName.getPackageName(), key.user)]);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> slice : slices) {
+            try {
+                slice.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error prefetching icons", e);
+            }
+        }
+    }
+
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
         Cursor c = null;
         try {
@@ -727,21 +1211,25 @@ public class IconCache {
 
     /**
      * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfoCompat list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * LauncherActivityInfoCompat list. Items are processed in batches of
+     * {@link #ICON_UPDATE_BATCH_SIZE}: the icons of a batch are rendered in parallel on
+     * {@link #mIconRenderExecutor} and written to the DB in a single transaction, so that the
+     * worker thread doesn't get blocked for long. Each render thread uses its own canvas, icon
+     * normalizer and shadow generator, and icon packs are loaded under a lock.
      */
     @Thunk
-    class SerializedIconUpdateTask implements Runnable {
+    class BatchedIconUpdateTask implements Runnable {
         private final long mUserSerial;
         private final HashMap<String, PackageInfo> mPkgInfoMap;
         private final Stack<LauncherActivityInfoCompat> mAppsToAdd;
         private final Stack<LauncherActivityInfoCompat> mAppsToUpdate;
-        private final HashSet<String> mUpdatedPackages = new HashSet<>();
+        private final long mStartTime = SystemClock.uptimeMillis();
+        private int mProcessedCount;
 
         @Thunk
-        SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
-                                 Stack<LauncherActivityInfoCompat> appsToAdd,
-                                 Stack<LauncherActivityInfoCompat> appsToUpdate) {
+        BatchedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
+                              Stack<LauncherActivityInfoCompat> appsToAdd,
+                              Stack<LauncherActivityInfoCompat> appsToUpdate) {
             mUserSerial = userSerial;
             mPkgInfoMap = pkgInfoMap;
             mAppsToAdd = appsToAdd;
@@ -750,47 +1238,105 @@ public class IconCache {
 
         @Override
         public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String pkg = app.getComponentName().getPackageName();
-                PackageInfo info = mPkgInfoMap.get(pkg);
+            // Updated apps are processed first, as they might be showing a stale icon.
+            final boolean replaceExisting = !mAppsToUpdate.isEmpty();
+            Stack<LauncherActivityInfoCompat> apps = replaceExisting ? mAppsToUpdate : mAppsToAdd;
+
+            ArrayList<LauncherActivityInfoCompat> batchApps =
+                    new ArrayList<>(ICON_UPDATE_BATCH_SIZE);
+            ArrayList<Future<RenderedIcon>> batch = new ArrayList<>(ICON_UPDATE_BATCH_SIZE);
+            while (!apps.isEmpty() && batch.size() < ICON_UPDATE_BATCH_SIZE) {
+                final LauncherActivityInfoCompat app = apps.pop();
+                final PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
                 if (info != null) {
-                    synchronized (IconCache.this) {
-                        ContentValues values = updateCacheAndGetContentValues(app, true);
-                        addIconToDB(values, app.getComponentName(), info, mUserSerial);
-                    }
-                    mUpdatedPackages.add(pkg);
-                }
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify model.
-                    LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
-                            mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+                    batchApps.add(app);
+                    batch.add(mIconRenderExecutor.submit(new Callable<RenderedIcon>() {
+                        @Override
+                        public RenderedIcon call() {
+                            return renderIcon(app, info, replaceExisting);
+                        }
+                    }));
                 }
+            }
 
-                // Let it run one more time.
-                scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
-                if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
+            ArrayList<RenderedIcon> rendered = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    rendered.add(batch.get(i).get());
+                } catch (InterruptedException e) {
+                    // Put the whole batch back, so that the update resumes later instead of
+                    // dropping the icons which are not written to the DB yet.
+                    for (int j = batch.size() - 1; j >= 0; j--) {
+                        batch.get(j).cancel(false);
+                        apps.push(batchApps.get(j));
                     }
-                }
-
-                if (!mAppsToAdd.isEmpty()) {
                     scheduleNext();
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Error rendering icon", e);
                 }
             }
+
+            HashSet<String> updatedPackages = new HashSet<>();
+            SQLiteCacheHelper.Batch dbBatch = mIconDb.newBatch(ICON_UPDATE_BATCH_SIZE);
+            for (RenderedIcon icon : rendered) {
+                putEntry(icon.key, icon.entry);
+                dbBatch.insertOrReplace(icon.values);
+                updatedPackages.add(icon.key.componentName.getPackageName());
+            }
+            dbBatch.commit();
+            mProcessedCount += rendered.size();
+
+            if (replaceExisting && !updatedPackages.isEmpty()) {
+                // Notify the model for every batch, so that the icons show up incrementally.
+                LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
+                        updatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
+
+            if (!mAppsToUpdate.isEmpty() || !mAppsToAdd.isEmpty()) {
+                scheduleNext();
+            } else if (LauncherModel.DEBUG_LOADERS) {
+                long duration = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+                Log.d(TAG, "Updated " + mProcessedCount + " icons in " + duration + "ms ("
+                        + (mProcessedCount * 1000 / duration) + " apps/sec)");
+            }
         }
 
         public void scheduleNext() {
             mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis() + 1);
         }
+
+        @Thunk
+        RenderedIcon renderIcon(LauncherActivityInfoCompat app, PackageInfo info,
+                                boolean replaceExisting) {
+            RenderedIcon icon = new RenderedIcon();
+            icon.key = new ComponentKey(app.getComponentName(), app.getUser());
+            icon.entry = newCacheEntry(app, replaceExisting);
+            Bitmap lowResIcon = generateLowResIcon(icon.entry.icon, mActivityBgColor);
+            icon.values = newContentValues(icon.entry.icon, lowResIcon,
+                    icon.entry.title.toString());
+            icon.values.put(IconDB.COLUMN_COMPONENT, app.getComponentName().flattenToString());
+            icon.values.put(IconDB.COLUMN_USER, mUserSerial);
+            icon.values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
+            icon.values.put(IconDB.COLUMN_VERSION, info.versionCode);
+            return icon;
+        }
+    }
+
+    /**
+     * The result of rendering a single icon of a {@link BatchedIconUpdateTask} batch.
+     */
+    @Thunk
+    static class RenderedIcon {
+        ComponentKey key;
+        CacheEntry entry;
+        ContentValues values;
     }
 
     private static final class IconDB extends SQLiteCacheHelper {
-        private final static int DB_VERSION = 10;
+        // Version 11: icons are stored using IconBlobCodec instead of PNG.
+        private final static int DB_VERSION = 11;
 
         private final static int RELEASE_VERSION = DB_VERSION + 1;
 
@@ -809,6 +1355,8 @@ public class IconCache {
             super(context, LauncherFiles.APP_ICONS_DB,
                     (RELEASE_VERSION << 16) + iconPixelSize,
                     TABLE_NAME);
+            // The loader reads icons while the icon updates are written
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -829,8 +1377,8 @@ public class IconCache {
 
     private ContentValues newContentValues(Bitmap icon, Bitmap lowResIcon, String label) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
-        values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(lowResIcon));
+        values.put(IconDB.COLUMN_ICON, IconBlobCodec.encode(icon));
+        values.put(IconDB.COLUMN_ICON_LOW_RES, IconBlobCodec.encode(lowResIcon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, Locale.getDefault().toString());
@@ -849,20 +1397,30 @@ public class IconCache {
         } else {
             Bitmap lowResIcon = Bitmap.createBitmap(dstWidth,
                     dstHeight, Bitmap.Config.RGB_565);
-            synchronized (this) {
-                mLowResCanvas.setBitmap(lowResIcon);
-                mLowResCanvas.drawColor(lowResBackgroundColor);
-                mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
-                        new Rect(0, 0, lowResIcon.getWidth(), lowResIcon.getHeight()),
-                        mLowResPaint);
-                mLowResCanvas.setBitmap(null);
-            }
+            Canvas canvas = mLowResCanvas.get();
+            canvas.setBitmap(lowResIcon);
+            canvas.drawColor(lowResBackgroundColor);
+            canvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
+                    new Rect(0, 0, lowResIcon.getWidth(), lowResIcon.getHeight()),
+                    mLowResPaint);
+            canvas.setBitmap(null);
             return lowResIcon;
         }
     }
 
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
-        byte[] data = c.getBlob(iconIndex);
+        return decodeIcon(c.getBlob(iconIndex), options);
+    }
+
+    @Thunk
+    static Bitmap decodeIcon(byte[] data, BitmapFactory.Options options) {
+        if (data == null) {
+            return null;
+        }
+        if (IconBlobCodec.isEncoded(data)) {
+            return IconBlobCodec.decode(data);
+        }
+        // Fallback for blobs written in the legacy PNG format.
         try {
             return BitmapFactory.decodeByteArray(data, 0, data.length, options);
         } catch (Exception e) {
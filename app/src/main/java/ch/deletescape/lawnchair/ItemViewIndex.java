@@ -0,0 +1,191 @@
+package ch.deletescape.lawnchair;
+
+import android.content.ComponentName;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewGroup.OnHierarchyChangeListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ch.deletescape.lawnchair.folder.Folder;
+import ch.deletescape.lawnchair.folder.FolderIcon;
+import ch.deletescape.lawnchair.util.LongArrayMap;
+import ch.deletescape.lawnchair.util.PackageUserKey;
+
+/**
+ * Index of the item views bound to the workspace and the hotseat, and of the views of the items
+ * in their folders, by item id and by package.
+ * <p>
+ * The index listens to the containers of the item views, so it follows the views as they are
+ * bound, moved and removed. The views of the items in a folder are only indexed while the
+ * folder icon is. Lookups check the tag of the views they return, and callers should fall back
+ * to walking the views when a lookup misses.
+ */
+public class ItemViewIndex {
+
+    private static class Entry {
+        final long id;
+        final PackageUserKey packageKey;
+        // The folder icon of the folder containing the view, or null for top level views
+        final FolderIcon folderIcon;
+
+        Entry(long id, PackageUserKey packageKey, FolderIcon folderIcon) {
+            this.id = id;
+            this.packageKey = packageKey;
+            this.folderIcon = folderIcon;
+        }
+    }
+
+    private final HashMap<View, Entry> mEntries = new HashMap<>();
+    private final LongArrayMap<View> mViewsById = new LongArrayMap<>();
+    private final HashMap<PackageUserKey, ArrayList<View>> mViewsByPackage = new HashMap<>();
+
+    private final OnHierarchyChangeListener mTopLevelListener = new OnHierarchyChangeListener() {
+        @Override
+        public void onChildViewAdded(View parent, View child) {
+            addView(child, null);
+        }
+
+        @Override
+        public void onChildViewRemoved(View parent, View child) {
+            removeView(child);
+        }
+    };
+
+    /**
+     * Starts following the item views of {@param container}, which is a workspace screen or the
+     * hotseat.
+     */
+    public void addContainer(ViewGroup container) {
+        container.setOnHierarchyChangeListener(mTopLevelListener);
+        for (int i = container.getChildCount() - 1; i >= 0; i--) {
+            addView(container.getChildAt(i), null);
+        }
+    }
+
+    /**
+     * Removes the item views of {@param container} from the index, when the container is
+     * discarded along with its children.
+     */
+    public void removeContainer(ViewGroup container) {
+        container.setOnHierarchyChangeListener(null);
+        for (int i = container.getChildCount() - 1; i >= 0; i--) {
+            removeView(container.getChildAt(i));
+        }
+    }
+
+    /**
+     * Returns the listener to set on the containers of the item views of {@param folder}.
+     */
+    public OnHierarchyChangeListener newFolderListener(final Folder folder) {
+        return new OnHierarchyChangeListener() {
+            @Override
+            public void onChildViewAdded(View parent, View child) {
+                FolderIcon folderIcon = folder.getFolderIcon();
+                if (folderIcon != null && mEntries.containsKey(folderIcon)) {
+                    addView(child, folderIcon);
+                }
+            }
+
+            @Override
+            public void onChildViewRemoved(View parent, View child) {
+                removeView(child);
+            }
+        };
+    }
+
+    private void addView(View view, FolderIcon folderIcon) {
+        if (!(view.getTag() instanceof ItemInfo)) {
+            return;
+        }
+        removeView(view);
+
+        ItemInfo info = (ItemInfo) view.getTag();
+        Entry entry = new Entry(info.id, getPackageKey(info), folderIcon);
+        mEntries.put(view, entry);
+        mViewsById.put(entry.id, view);
+        if (entry.packageKey != null) {
+            ArrayList<View> views = mViewsByPackage.get(entry.packageKey);
+            if (views == null) {
+                views = new ArrayList<>(1);
+                mViewsByPackage.put(entry.packageKey, views);
+            }
+            views.add(view);
+        }
+
+        if (folderIcon == null && view instanceof FolderIcon) {
+            ArrayList<View> children = ((FolderIcon) view).getFolder().getItemsInReadingOrder();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                addView(children.get(i), (FolderIcon) view);
+            }
+        }
+    }
+
+    private void removeView(View view) {
+        Entry entry = mEntries.remove(view);
+        if (entry == null) {
+            return;
+        }
+        if (mViewsById.get(entry.id) == view) {
+            mViewsById.remove(entry.id);
+        }
+        if (entry.packageKey != null) {
+            ArrayList<View> views = mViewsByPackage.get(entry.packageKey);
+            if (views != null) {
+                views.remove(view);
+                if (views.isEmpty()) {
+                    mViewsByPackage.remove(entry.packageKey);
+                }
+            }
+        }
+
+        if (entry.folderIcon == null && view instanceof FolderIcon) {
+            ArrayList<View> children = ((FolderIcon) view).getFolder().getItemsInReadingOrder();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                removeView(children.get(i));
+            }
+        }
+    }
+
+    private static PackageUserKey getPackageKey(ItemInfo info) {
+        if (info instanceof ShortcutInfo && info.getIntent() != null && info.user != null) {
+            ComponentName cn = info.getTargetComponent();
+            if (cn != null) {
+                return new PackageUserKey(cn.getPackageName(), info.user);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the view of the item {@param id}, which is either on the workspace, in the hotseat
+     * or in one of their folders, or null if it is not indexed.
+     */
+    public View getView(long id) {
+        View view = mViewsById.get(id);
+        if (view != null && view.getTag() instanceof ItemInfo
+                && ((ItemInfo) view.getTag()).id == id) {
+            return view;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the view of the item {@param id} if it is on the workspace or in the hotseat.
+     */
+    public View getTopLevelView(long id) {
+        View view = getView(id);
+        return view != null && mEntries.get(view).folderIcon == null ? view : null;
+    }
+
+    /**
+     * Adds to {@param out} the views of the shortcuts to the activities of {@param key}.
+     */
+    public void getViewsForPackage(PackageUserKey key, ArrayList<View> out) {
+        ArrayList<View> views = mViewsByPackage.get(key);
+        if (views != null) {
+            out.addAll(views);
+        }
+    }
+}
@@ -64,6 +64,7 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.method.TextKeyListener;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -85,6 +86,8 @@ import android.widget.Toast;
 
 import com.zhaisoft.app.lib.hotspot.HotSpotActivity;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -276,6 +279,22 @@ public class Launcher extends Activity
     private ObjectAnimator mPlanesAnimator;
 
     private ArrayList<Runnable> mBindOnResumeCallbacks = new ArrayList<>();
+
+    // The packages whose badges are refreshed on the next frame
+    private final HashSet<PackageUserKey> mPendingBadgeUpdates = new HashSet<>();
+    private final Choreographer.FrameCallback mUpdateIconBadgesCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    applyPendingIconBadges();
+                }
+            };
+    private final Runnable mApplyIconBadgesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingIconBadges();
+        }
+    };
     private ArrayList<Runnable> mOnResumeCallbacks = new ArrayList<>();
     private ViewOnDrawExecutor mPendingExecutor;
 
@@ -873,12 +892,15 @@ public class Launcher extends Activity
         }
 
         mLauncherTab.getClient().onStop();
+
+        LauncherAppState.getInstance().getWidgetCache().startPrerender(this);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
         FirstFrameAnimatorHelper.setIsVisible(true);
+        LauncherAppState.getInstance().getWidgetCache().stopPrerender();
 
         if (Utilities.ATLEAST_NOUGAT_MR1) {
             mAppWidgetHost.startListening();
@@ -1427,6 +1449,7 @@ public class Launcher extends Activity
                     }
                 }
                 mIsResumeFromActionScreenOff = true;
+                LauncherAppState.getInstance().getWidgetCache().startPrerender(Launcher.this);
             } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
                 mUserPresent = true;
                 updateAutoAdvanceState();
@@ -1434,20 +1457,29 @@ public class Launcher extends Activity
         }
     };
 
+    /**
+     * Refreshes the badges of the icons of the given packages. The updates made before the next
+     * frame are applied together.
+     */
     public void updateIconBadges(final Set<PackageUserKey> set) {
-        Runnable anonymousClass13 = new Runnable() {
-            @Override
-            public void run() {
-                Launcher.this.mWorkspace.updateIconBadges(set);
-                Launcher.this.mAppsView.updateIconBadges(set);
-                PopupContainerWithArrow open = PopupContainerWithArrow.getOpen(Launcher.this);
-                if (open != null) {
-                    open.updateNotificationHeader(set);
-                }
-            }
-        };
-        if (!waitUntilResume(anonymousClass13)) {
-            anonymousClass13.run();
+        if (mPendingBadgeUpdates.isEmpty()) {
+            Choreographer.getInstance().postFrameCallback(mUpdateIconBadgesCallback);
+        }
+        mPendingBadgeUpdates.addAll(set);
+    }
+
+    @Thunk
+    void applyPendingIconBadges() {
+        if (mPendingBadgeUpdates.isEmpty() || waitUntilResume(mApplyIconBadgesRunnable, true)) {
+            return;
+        }
+        HashSet<PackageUserKey> set = new HashSet<>(mPendingBadgeUpdates);
+        mPendingBadgeUpdates.clear();
+        mWorkspace.updateIconBadges(set);
+        mAppsView.updateIconBadges(set);
+        PopupContainerWithArrow open = PopupContainerWithArrow.getOpen(Launcher.this);
+        if (open != null) {
+            open.updateNotificationHeader(set);
         }
     }
 
@@ -1796,12 +1828,15 @@ public class Launcher extends Activity
     @Override
     public void onDestroy() {
         super.onDestroy();
+        LauncherAppState.getInstance().getWidgetCache().stopPrerender();
 
         // Remove all pending runnables
         mHandler.removeMessages(ADVANCE_MSG);
         mHandler.removeMessages(0);
         mWorkspace.removeCallbacks(mBuildLayersRunnable);
         mWorkspace.removeFolderListeners();
+        Choreographer.getInstance().removeFrameCallback(mUpdateIconBadgesCallback);
+        mPopupDataProvider.onDestroy();
 
         // Stop callbacks from LauncherModel
         // It's possible to receive onDestroy after a new Launcher activity has
@@ -2938,10 +2973,19 @@ public class Launcher extends Activity
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
             SQLiteDatabase.releaseMemory();
-
-            // This clears all widget bitmaps from the widget tray
-            // TODO(hyunyoungs)
         }
+        mIconCache.onTrimMemory(level);
+        LauncherAppState.getInstance().getWidgetCache().onTrimMemory(level);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Launcher debug info:");
+        mIconCache.dump(prefix + "  ", writer);
+        LauncherAppState.getInstance().getWidgetCache().dump(prefix + "  ", writer);
+        mModel.dump(prefix + "  ", writer);
+        mDragController.dump(prefix + "  ", writer);
     }
 
     public boolean showWorkspace(boolean animated) {
@@ -3761,6 +3805,10 @@ public class Launcher extends Activity
             mWidgetsView.setWidgets(multiHashMap);
             mAllWidgets = null;
         }
+        if (multiHashMap != null) {
+            // Render the missing previews once the launcher is idle
+            LauncherAppState.getInstance().getWidgetCache().setPrerenderWidgets(multiHashMap);
+        }
         AbstractFloatingView topOpenView = AbstractFloatingView.getTopOpenView(this);
         if (topOpenView != null) {
             topOpenView.onWidgetsBound();
@@ -3899,16 +3947,31 @@ public class Launcher extends Activity
             return;
         }
         if (!packageNames.isEmpty()) {
-            ItemInfoMatcher matcher = ItemInfoMatcher.ofPackages(packageNames, user);
-            mWorkspace.removeItemsByMatcher(matcher);
-            mDragController.onAppsRemoved(matcher);
-
+            bindWorkspaceComponentsRemoved(ItemInfoMatcher.ofPackages(packageNames, user));
         }
         if (!components.isEmpty()) {
-            ItemInfoMatcher matcher = ItemInfoMatcher.ofComponents(components, user);
-            mWorkspace.removeItemsByMatcher(matcher);
-            mDragController.onAppsRemoved(matcher);
+            bindWorkspaceComponentsRemoved(ItemInfoMatcher.ofComponents(components, user));
+        }
+    }
+
+    /**
+     * Some shortcuts were removed from the workspace, identified by {@param matcher}.
+     * <p>
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindWorkspaceComponentsRemoved(final ItemInfoMatcher matcher) {
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                bindWorkspaceComponentsRemoved(matcher);
+            }
+        };
+        if (waitUntilResume(r)) {
+            return;
         }
+        mWorkspace.removeItemsByMatcher(matcher);
+        mDragController.onAppsRemoved(matcher);
     }
 
     @Override
@@ -36,6 +36,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
@@ -46,6 +47,7 @@ import android.util.MutableInt;
 import android.util.Pair;
 
 import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.security.InvalidParameterException;
@@ -60,7 +62,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.deletescape.lawnchair.blur.BlurWallpaperProvider;
 import ch.deletescape.lawnchair.compat.AppWidgetManagerCompat;
@@ -75,6 +84,7 @@ import ch.deletescape.lawnchair.folder.Folder;
 import ch.deletescape.lawnchair.folder.FolderIcon;
 import ch.deletescape.lawnchair.graphics.LauncherIcons;
 import ch.deletescape.lawnchair.model.GridSizeMigrationTask;
+import ch.deletescape.lawnchair.model.LoaderTrace;
 import ch.deletescape.lawnchair.model.WidgetsModel;
 import ch.deletescape.lawnchair.provider.LauncherDbUtils;
 import ch.deletescape.lawnchair.shortcuts.DeepShortcutManager;
@@ -104,9 +114,32 @@ import ch.deletescape.lawnchair.util.ViewOnDrawExecutor;
 public class LauncherModel extends BroadcastReceiver
         implements LauncherAppsCompat.OnAppsChangedCallbackCompat {
 
+    static final boolean DEBUG_LOADERS = false;
     static final String TAG = "Launcher.Model";
 
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+
+    // Columns read by the workspace loader. The icon blobs are only read for the items which
+    // need them, see CursorIconInfo.
+    private static final String[] WORKSPACE_PROJECTION = CursorIconInfo.lazyIconProjection(
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+            LauncherSettings.Favorites.RANK,
+            LauncherSettings.Favorites.RESTORED,
+            LauncherSettings.Favorites.PROFILE_ID,
+            LauncherSettings.Favorites.OPTIONS,
+            LauncherSettings.Favorites.TITLE_ALIAS);
+
+    // Maximum number of changed rows for which the workspace is reloaded incrementally
+    private static final int MAX_INCREMENTAL_WORKSPACE_CHANGES = 20;
     private static final long INVALID_SCREEN_ID = -1L;
 
     @Thunk
@@ -132,6 +165,27 @@ public class LauncherModel extends BroadcastReceiver
     @Thunk
     static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Runs the loader stages which don't depend on the workspace while it is being loaded
+    private static final int LOADER_QUERY_THREAD_COUNT = 2;
+    private static final ExecutorService sLoaderQueryExecutor = Executors.newFixedThreadPool(
+            LOADER_QUERY_THREAD_COUNT, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "launcher-loader-query-" + mCount.incrementAndGet());
+                }
+            });
+
+    // Trace of the last loader run, see dump()
+    private volatile LoaderTrace mLastLoaderTrace;
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -139,6 +193,19 @@ public class LauncherModel extends BroadcastReceiver
     private boolean mAllAppsLoaded;
     private boolean mDeepShortcutsLoaded;
 
+    // Whether the next workspace load should only read the rows changed since the last load,
+    // and the favorites generation at the time of that load. Only touched from the loader thread,
+    // apart from mReloadWorkspaceIncrementally which is guarded by mLock.
+    private boolean mReloadWorkspaceIncrementally;
+    private long mLoadedWorkspaceGeneration = -1;
+    // The callbacks to which the loaded workspace has been completely bound, and the favorites
+    // generation of the bg data which was bound to them. A delta can only be bound on top of the
+    // bg data it was computed from.
+    @Thunk
+    volatile WeakReference<Callbacks> mWorkspaceBoundCallbacks;
+    @Thunk
+    volatile long mBoundWorkspaceGeneration = -1;
+
     /**
      * Set of runnables to be called on the background thread after the workspace binding
      * is complete.
@@ -254,6 +321,8 @@ public class LauncherModel extends BroadcastReceiver
                 HashSet<String> packageNames, HashSet<ComponentName> components,
                 UserHandle user);
 
+        void bindWorkspaceComponentsRemoved(ItemInfoMatcher matcher);
+
         void bindAppInfosRemoved(ArrayList<AppInfo> appInfos);
 
         void notifyWidgetProvidersChanged();
@@ -1199,6 +1268,8 @@ public class LauncherModel extends BroadcastReceiver
             // Remove any queued UI runnables
             mHandler.cancelAll();
             mCallbacks = new WeakReference<>(callbacks);
+            mWorkspaceBoundCallbacks = null;
+            mBoundWorkspaceGeneration = -1;
         }
     }
 
@@ -1320,7 +1391,9 @@ public class LauncherModel extends BroadcastReceiver
         final String action = intent.getAction();
         if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
             // If we have changed locale we need to clear out the labels in all apps/workspace.
-            forceReload();
+            // The favorites don't change with the locale, app labels are updated through the
+            // icon cache and the incremental reload updates the titles of deep shortcuts.
+            forceReload(true);
         } else if (Intent.ACTION_MANAGED_PROFILE_ADDED.equals(action)
                 || Intent.ACTION_MANAGED_PROFILE_REMOVED.equals(action)) {
             UserManagerCompat.getInstance(context).enableAndResetCache();
@@ -1358,7 +1431,18 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     void forceReload() {
+        forceReload(false);
+    }
+
+    /**
+     * @param incrementalWorkspace if true, the workspace is updated with the favorites which
+     *                             changed since it was loaded, instead of being fully reloaded.
+     */
+    void forceReload(boolean incrementalWorkspace) {
         resetLoadedState(true, true);
+        synchronized (mLock) {
+            mReloadWorkspaceIncrementally = incrementalWorkspace;
+        }
 
         // Do this here because if the launcher activity is running it will be restarted.
         // If it's not running startLoaderFromBackground will merely tell it that it needs
@@ -1372,7 +1456,10 @@ public class LauncherModel extends BroadcastReceiver
             // mWorkspaceLoaded to true later
             stopLoaderLocked();
             if (resetAllAppsLoaded) mAllAppsLoaded = false;
-            if (resetWorkspaceLoaded) mWorkspaceLoaded = false;
+            if (resetWorkspaceLoaded) {
+                mWorkspaceLoaded = false;
+                mReloadWorkspaceIncrementally = false;
+            }
             // Always reset deep shortcuts loaded.
             // TODO: why?
             mDeepShortcutsLoaded = false;
@@ -1466,6 +1553,24 @@ public class LauncherModel extends BroadcastReceiver
                 screensUri, null, null, null, LauncherSettings.WorkspaceScreens.SCREEN_RANK));
     }
 
+    /**
+     * Workspace changes found by an incremental workspace load.
+     */
+    private static class WorkspaceDelta {
+        final HashSet<Long> removedIds = new HashSet<>();
+        final ArrayList<ItemInfo> addedItems = new ArrayList<>();
+        // Kept items whose title was refreshed, by user
+        final HashMap<UserHandle, ArrayList<ShortcutInfo>> updatedShortcuts = new HashMap<>();
+        // Generation of the bg data the delta applies to, and of the bg data once it is applied
+        final long baseGeneration;
+        final long generation;
+
+        WorkspaceDelta(long baseGeneration, long generation) {
+            this.baseGeneration = baseGeneration;
+            this.generation = generation;
+        }
+    }
+
     /**
      * Runnable for the thread that loads the contents of the launcher:
      * - workspace icons
@@ -1473,13 +1578,27 @@ public class LauncherModel extends BroadcastReceiver
      * - all apps icons
      * - deep shortcuts within apps
      */
+    /**
+     * Result of the deep shortcuts query which runs concurrently with the workspace load.
+     */
+    private static class DeepShortcutsQueryResult {
+        boolean hasHostPermission;
+        final HashMap<UserHandle, List<ShortcutInfoCompat>> shortcuts = new HashMap<>();
+    }
+
     private class LoaderTask implements Runnable {
         private Context mContext;
         private int mPageToBindFirst;
 
+        private final LoaderTrace mTrace = new LoaderTrace();
+        // Queries started on sLoaderQueryExecutor, consumed by the matching load step.
+        private Future<HashMap<UserHandle, List<LauncherActivityInfoCompat>>> mActivityListQuery;
+        private Future<DeepShortcutsQueryResult> mDeepShortcutsQuery;
+
         @Thunk
         boolean mIsLoadingAndBindingWorkspace;
-        private boolean mStopped;
+        // Also read by the queries running on sLoaderQueryExecutor
+        private volatile boolean mStopped;
         @Thunk
         boolean mLoadAndBindStepFinished;
 
@@ -1492,8 +1611,27 @@ public class LauncherModel extends BroadcastReceiver
             mIsLoadingAndBindingWorkspace = true;
 
             // Load the workspace
+            WorkspaceDelta delta = null;
             if (!mWorkspaceLoaded) {
-                loadWorkspace();
+                boolean incremental;
+                synchronized (mLock) {
+                    incremental = mReloadWorkspaceIncrementally;
+                    mReloadWorkspaceIncrementally = false;
+                }
+                if (incremental) {
+                    delta = loadWorkspaceIncrementally();
+                }
+                if (delta == null) {
+                    mLoadedWorkspaceGeneration = -1;
+                    long generation = LauncherProvider.nextGeneration();
+                    loadWorkspace();
+                    synchronized (LoaderTask.this) {
+                        if (mStopped) {
+                            return;
+                        }
+                    }
+                    mLoadedWorkspaceGeneration = generation;
+                }
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
@@ -1502,8 +1640,313 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
 
-            // Bind the workspace
-            bindWorkspace(mPageToBindFirst);
+            // Bind the workspace. If the current callbacks already have the bg data the delta was
+            // computed from bound, only bind the changes. A recreated activity, e.g. after a
+            // locale change, has nothing bound yet and gets the whole updated bg data instead.
+            Callbacks callbacks = mCallbacks.get();
+            WeakReference<Callbacks> boundCallbacks = mWorkspaceBoundCallbacks;
+            if (delta != null && callbacks != null && boundCallbacks != null
+                    && boundCallbacks.get() == callbacks
+                    && mBoundWorkspaceGeneration == delta.baseGeneration) {
+                bindWorkspaceDelta(delta);
+            } else {
+                bindWorkspace(mPageToBindFirst);
+            }
+        }
+
+        /**
+         * Updates the loaded workspace with the favorites which were added, updated or removed
+         * since it was last loaded, without clearing the bg data structures. Only application
+         * shortcuts on the desktop and the hotseat are handled, any other change requires a full
+         * reload.
+         *
+         * @return the changes to bind, or null if the workspace needs to be fully reloaded.
+         */
+        private WorkspaceDelta loadWorkspaceIncrementally() {
+            final long lastGeneration = mLoadedWorkspaceGeneration;
+            if (lastGeneration < 0) {
+                return null;
+            }
+            final long generation = LauncherProvider.nextGeneration();
+            final ContentResolver contentResolver = mContext.getContentResolver();
+            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(mContext);
+            final boolean isSafeMode = mContext.getPackageManager().isSafeMode();
+
+            synchronized (sBgLock) {
+                if (sBgItemsIdMap.size() == 0
+                        || !loadWorkspaceScreensDb(mContext).equals(sBgWorkspaceScreens)) {
+                    return null;
+                }
+
+                // Find the rows which changed since the last load.
+                HashSet<Long> dbIds = new HashSet<>();
+                HashSet<Long> changedIds = new HashSet<>();
+                Cursor c = contentResolver.query(LauncherSettings.Favorites.CONTENT_URI,
+                        new String[]{LauncherSettings.Favorites._ID,
+                                LauncherSettings.ChangeLogColumns.MODIFIED},
+                        null, null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        long id = c.getLong(0);
+                        dbIds.add(id);
+                        if (c.getLong(1) > lastGeneration) {
+                            changedIds.add(id);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                if (changedIds.size() > MAX_INCREMENTAL_WORKSPACE_CHANGES) {
+                    return null;
+                }
+
+                WorkspaceDelta delta = new WorkspaceDelta(lastGeneration, generation);
+                for (ItemInfo info : sBgItemsIdMap) {
+                    if (!dbIds.contains(info.id) || changedIds.contains(info.id)) {
+                        if (!isIncrementalItem(info.itemType, info.container)) {
+                            return null;
+                        }
+                        delta.removedIds.add(info.id);
+                    }
+                }
+
+                if (!changedIds.isEmpty()) {
+                    c = contentResolver.query(LauncherSettings.Favorites.CONTENT_URI,
+                            WORKSPACE_PROJECTION, Utilities.createDbSelectionQuery(
+                                    LauncherSettings.Favorites._ID, changedIds),
+                            null, null);
+                    if (c == null) {
+                        return null;
+                    }
+                    try {
+                        final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+                        final int intentIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.INTENT);
+                        final int containerIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.CONTAINER);
+                        final int itemTypeIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.ITEM_TYPE);
+                        final int screenIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.SCREEN);
+                        final int cellXIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.CELLX);
+                        final int cellYIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.CELLY);
+                        final int rankIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.RANK);
+                        final int restoredIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.RESTORED);
+                        final int profileIdIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.PROFILE_ID);
+                        final int titleAliasIndex = c.getColumnIndexOrThrow(
+                                LauncherSettings.Favorites.TITLE_ALIAS);
+                        final CursorIconInfo cursorIconInfo = new CursorIconInfo(mContext, c);
+
+                        while (c.moveToNext()) {
+                            int container = c.getInt(containerIndex);
+                            if (!isIncrementalItem(c.getInt(itemTypeIndex), container)
+                                    || c.getInt(restoredIndex) != 0) {
+                                return null;
+                            }
+                            long serialNumber = c.getInt(profileIdIndex);
+                            UserHandle user = mUserManager.getUserForSerialNumber(serialNumber);
+                            Intent intent;
+                            try {
+                                intent = Intent.parseUri(c.getString(intentIndex), 0);
+                            } catch (URISyntaxException e) {
+                                return null;
+                            }
+                            ComponentName cn = intent.getComponent();
+                            if (user == null || cn == null
+                                    || !launcherApps.isActivityEnabledForProfile(cn, user)) {
+                                // Let the full load decide what to do with this item.
+                                return null;
+                            }
+
+                            ShortcutInfo info = getAppShortcutInfo(intent, user, c,
+                                    cursorIconInfo, false, false);
+                            if (info == null) {
+                                return null;
+                            }
+                            info.id = c.getLong(idIndex);
+                            info.onLoadTitleAlias(c.getString(titleAliasIndex));
+                            info.onLoadCustomIcon(cursorIconInfo.loadCustomIcon(c));
+                            info.intent = intent;
+                            info.container = container;
+                            info.screenId = c.getInt(screenIndex);
+                            info.cellX = c.getInt(cellXIndex);
+                            info.cellY = c.getInt(cellYIndex);
+                            info.rank = c.getInt(rankIndex);
+                            info.spanX = 1;
+                            info.spanY = 1;
+                            info.intent.putExtra(ItemInfo.EXTRA_PROFILE, serialNumber);
+                            if (mUserManager.isQuietModeEnabled(user)) {
+                                info.isDisabled |= ShortcutInfo.FLAG_DISABLED_QUIET_USER;
+                            }
+                            if (isSafeMode && !Utilities.isSystemApp(mContext, intent)) {
+                                info.isDisabled |= ShortcutInfo.FLAG_DISABLED_SAFEMODE;
+                            }
+                            delta.addedItems.add(info);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+
+                // Make sure the changed items still fit with the items which are kept.
+                LongArrayMap<GridOccupancy> occupied = new LongArrayMap<>();
+                for (ItemInfo item : sBgWorkspaceItems) {
+                    if (!delta.removedIds.contains(item.id)) {
+                        checkItemPlacement(occupied, item, sBgWorkspaceScreens);
+                    }
+                }
+                for (ItemInfo item : delta.addedItems) {
+                    if (!checkItemPlacement(occupied, item, sBgWorkspaceScreens)) {
+                        return null;
+                    }
+                }
+
+                // The titles of deep shortcuts are not refreshed through the icon cache.
+                if (!updateDeepShortcutTitles(delta)) {
+                    return null;
+                }
+
+                Iterator<ItemInfo> iterator = sBgWorkspaceItems.iterator();
+                while (iterator.hasNext()) {
+                    if (delta.removedIds.contains(iterator.next().id)) {
+                        iterator.remove();
+                    }
+                }
+                for (long id : delta.removedIds) {
+                    sBgItemsIdMap.remove(id);
+                }
+                for (ItemInfo item : delta.addedItems) {
+                    sBgWorkspaceItems.add(item);
+                    sBgItemsIdMap.put(item.id, item);
+                }
+            }
+            mLoadedWorkspaceGeneration = generation;
+            return delta;
+        }
+
+        /**
+         * Updates the pinned deep shortcuts which are kept by an incremental load with their
+         * current details, so that their titles follow the locale, and adds them to
+         * {@param delta}.
+         *
+         * @return false if the workspace needs to be fully reloaded instead.
+         */
+        private boolean updateDeepShortcutTitles(WorkspaceDelta delta) {
+            HashMap<UserHandle, ArrayList<ShortcutInfo>> shortcutsByUser = new HashMap<>();
+            for (ItemInfo info : sBgItemsIdMap) {
+                if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT
+                        && !delta.removedIds.contains(info.id)) {
+                    ArrayList<ShortcutInfo> shortcuts = shortcutsByUser.get(info.user);
+                    if (shortcuts == null) {
+                        shortcuts = new ArrayList<>();
+                        shortcutsByUser.put(info.user, shortcuts);
+                    }
+                    shortcuts.add((ShortcutInfo) info);
+                }
+            }
+
+            for (Map.Entry<UserHandle, ArrayList<ShortcutInfo>> entry
+                    : shortcutsByUser.entrySet()) {
+                UserHandle user = entry.getKey();
+                if (!mUserManager.isUserUnlocked(user)) {
+                    // The shortcuts are updated once the user is unlocked.
+                    continue;
+                }
+                List<ShortcutInfoCompat> pinnedShortcuts =
+                        mDeepShortcutManager.queryForPinnedShortcuts(null, user);
+                if (!mDeepShortcutManager.wasLastCallSuccess()) {
+                    return false;
+                }
+                HashMap<ShortcutKey, ShortcutInfoCompat> shortcutKeyToPinnedShortcuts =
+                        new HashMap<>();
+                for (ShortcutInfoCompat shortcut : pinnedShortcuts) {
+                    shortcutKeyToPinnedShortcuts.put(ShortcutKey.fromInfo(shortcut), shortcut);
+                }
+                for (ShortcutInfo si : entry.getValue()) {
+                    ShortcutInfoCompat shortcut =
+                            shortcutKeyToPinnedShortcuts.get(ShortcutKey.fromShortcutInfo(si));
+                    if (shortcut == null) {
+                        // Let the full load remove the shortcut.
+                        return false;
+                    }
+                    si.updateFromDeepShortcutInfo(shortcut, mContext);
+                }
+                delta.updatedShortcuts.put(user, entry.getValue());
+            }
+            return true;
+        }
+
+        private boolean isIncrementalItem(int itemType, long container) {
+            return itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                    && (container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    || container == LauncherSettings.Favorites.CONTAINER_HOTSEAT);
+        }
+
+        /**
+         * Binds the changes found by {@link #loadWorkspaceIncrementally()} to the callbacks which
+         * already have the rest of the workspace bound.
+         */
+        private void bindWorkspaceDelta(final WorkspaceDelta delta) {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                // This launcher has exited and nobody bothered to tell us.  Just bail.
+                Log.w(TAG, "LoaderTask running with no launcher");
+                return;
+            }
+
+            final ArrayList<ItemInfo> addedItems = delta.addedItems;
+            sortWorkspaceItemsSpatially(addedItems);
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        if (!delta.removedIds.isEmpty()) {
+                            callbacks.bindWorkspaceComponentsRemoved(
+                                    ItemInfoMatcher.ofItemIds(delta.removedIds));
+                        }
+                        if (!addedItems.isEmpty()) {
+                            callbacks.bindItems(addedItems, 0, addedItems.size(), false);
+                        }
+                        for (Map.Entry<UserHandle, ArrayList<ShortcutInfo>> entry
+                                : delta.updatedShortcuts.entrySet()) {
+                            callbacks.bindShortcutsChanged(entry.getValue(),
+                                    new ArrayList<ShortcutInfo>(), entry.getKey());
+                        }
+                        callbacks.finishBindingItems();
+                    }
+                    onWorkspaceBindComplete(callbacks, delta.generation);
+                }
+            });
+        }
+
+        /**
+         * Called on the main thread when the bg data of the favorites {@param generation} has
+         * been bound to {@param callbacks}.
+         */
+        @Thunk
+        void onWorkspaceBindComplete(Callbacks callbacks, long generation) {
+            mWorkspaceBoundCallbacks = callbacks != null ? new WeakReference<>(callbacks) : null;
+            mBoundWorkspaceGeneration = generation;
+            mIsLoadingAndBindingWorkspace = false;
+
+            // Run all the bind complete runnables after workspace is bound.
+            if (!mBindCompleteRunnables.isEmpty()) {
+                synchronized (mBindCompleteRunnables) {
+                    for (final Runnable r : mBindCompleteRunnables) {
+                        runOnWorkerThread(r);
+                    }
+                    mBindCompleteRunnables.clear();
+                }
+            }
         }
 
         private void waitForIdle() {
@@ -1580,27 +2023,58 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 mIsLoaderTaskRunning = true;
             }
+            mLastLoaderTrace = mTrace;
+
+            // The app list and the deep shortcuts don't depend on the workspace, so query them
+            // while the workspace is loading. They are still bound after the workspace, in the
+            // same order as before.
+            startQueries();
+
             // Optimize for end-user experience: if the Launcher is up and // running with the
             // All Apps interface in the foreground, load All Apps first. Otherwise, load the
             // workspace first (default).
             keep_running:
             {
+                long startTime = mTrace.begin();
                 loadAndBindWorkspace();
+                mTrace.end("step 1: workspace", startTime, mStopped);
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "step 1: loaded and bound workspace in "
+                            + (SystemClock.uptimeMillis() - startTime) + "ms");
+                }
 
                 if (mStopped) {
                     break keep_running;
                 }
 
+                startTime = mTrace.begin();
                 waitForIdle();
+                mTrace.end("wait for idle", startTime);
 
                 // second step
+                startTime = mTrace.begin();
                 loadAndBindAllApps();
+                mTrace.end("step 2: all apps", startTime, mStopped);
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "step 2: loaded and bound all apps in "
+                            + (SystemClock.uptimeMillis() - startTime) + "ms");
+                }
 
+                startTime = mTrace.begin();
                 waitForIdle();
+                mTrace.end("wait for idle", startTime);
 
                 // third step
+                startTime = mTrace.begin();
                 loadAndBindDeepShortcuts();
+                mTrace.end("step 3: deep shortcuts", startTime, mStopped);
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "step 3: loaded and bound deep shortcuts in "
+                            + (SystemClock.uptimeMillis() - startTime) + "ms");
+                }
             }
+            cancelQueries();
+            mTrace.finish();
 
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
@@ -1623,6 +2097,88 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        private void startQueries() {
+            if (!mAllAppsLoaded) {
+                mActivityListQuery = sLoaderQueryExecutor.submit(
+                        new Callable<HashMap<UserHandle, List<LauncherActivityInfoCompat>>>() {
+                            @Override
+                            public HashMap<UserHandle, List<LauncherActivityInfoCompat>> call() {
+                                long startTime = mTrace.begin();
+                                HashMap<UserHandle, List<LauncherActivityInfoCompat>> result =
+                                        new HashMap<>();
+                                for (UserHandle user : mUserManager.getUserProfiles()) {
+                                    if (mStopped) {
+                                        break;
+                                    }
+                                    List<LauncherActivityInfoCompat> apps =
+                                            mLauncherApps.getActivityList(null, user);
+                                    if (apps != null && !apps.isEmpty()) {
+                                        // Warm up the icon cache for loadAllApps()
+                                        mIconCache.prefetchEntriesForUser(user, true /* lowRes */);
+                                    }
+                                    result.put(user, apps);
+                                }
+                                mTrace.end("query: activity list", startTime, mStopped);
+                                return result;
+                            }
+                        });
+            }
+            if (!mDeepShortcutsLoaded && mDeepShortcutManager.supportsConcurrentQueries()) {
+                mDeepShortcutsQuery = sLoaderQueryExecutor.submit(
+                        new Callable<DeepShortcutsQueryResult>() {
+                            @Override
+                            public DeepShortcutsQueryResult call() {
+                                long startTime = mTrace.begin();
+                                DeepShortcutsQueryResult result = new DeepShortcutsQueryResult();
+                                result.hasHostPermission = mDeepShortcutManager.hasHostPermission();
+                                if (result.hasHostPermission) {
+                                    for (UserHandle user : mUserManager.getUserProfiles()) {
+                                        if (mStopped) {
+                                            break;
+                                        }
+                                        if (mUserManager.isUserUnlocked(user)) {
+                                            result.shortcuts.put(user, mDeepShortcutManager
+                                                    .queryForAllShortcuts(user));
+                                        }
+                                    }
+                                }
+                                mTrace.end("query: deep shortcuts", startTime, mStopped);
+                                return result;
+                            }
+                        });
+            }
+        }
+
+        private void cancelQueries() {
+            if (mActivityListQuery != null) {
+                mActivityListQuery.cancel(false);
+                mActivityListQuery = null;
+            }
+            if (mDeepShortcutsQuery != null) {
+                mDeepShortcutsQuery.cancel(false);
+                mDeepShortcutsQuery = null;
+            }
+        }
+
+        /**
+         * Waits for a query started by {@link #startQueries()}. Returns null if it wasn't started
+         * or failed, in which case the caller does the query itself.
+         */
+        private <T> T getQueryResult(Future<T> query, String stage) {
+            if (query == null) {
+                return null;
+            }
+            long startTime = mTrace.begin();
+            try {
+                return query.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Loader query failed: " + stage, e);
+                return null;
+            } finally {
+                mTrace.end("wait for " + stage, startTime);
+            }
+        }
+
         /**
          * Gets the callbacks object.  If we've been stopped, or if the launcher object
          * has somehow been garbage collected, return null instead.  Pass in the Callbacks
@@ -1674,21 +2230,21 @@ public class LauncherModel extends BroadcastReceiver
                 }*/
 
                 if (hotseatOccupancy != null) {
-                    int hotseatSize = hotseatOccupancy.cells.length;
+                    int hotseatSize = hotseatOccupancy.getCountX();
                     int hotseatX = (int) (item.screenId % hotseatSize);
                     int hotseatY = (int) (item.screenId / hotseatSize);
-                    if (hotseatOccupancy.cells[hotseatX][hotseatY]) {
+                    if (hotseatOccupancy.isOccupied(hotseatX, hotseatY)) {
                         Log.e(TAG, "Error loading shortcut into hotseat " + item
                                 + " into position (" + item.screenId + ":" + item.cellX + ","
                                 + item.cellY + ") already occupied");
                         return false;
                     } else {
-                        hotseatOccupancy.cells[hotseatX][hotseatY] = true;
+                        hotseatOccupancy.markCells(hotseatX, hotseatY, 1, 1, true);
                         return true;
                     }
                 } else {
                     final GridOccupancy occupancy = new GridOccupancy(profile.numHotseatIcons, Utilities.getNumberOfHotseatRows(mContext));
-                    occupancy.cells[(int) item.screenId][item.cellY] = true;
+                    occupancy.markCells((int) item.screenId, item.cellY, 1, 1, true);
                     occupied.put((long) LauncherSettings.Favorites.CONTAINER_HOTSEAT, occupancy);
                     return true;
                 }
@@ -1738,6 +2294,20 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * Parses {@param uri}, reusing the result of an earlier call with the same uri. Returns a
+         * copy, as the loaded items modify their intent.
+         */
+        private Intent parseIntent(HashMap<String, Intent> parsedIntents, String uri)
+                throws URISyntaxException {
+            Intent intent = parsedIntents.get(uri);
+            if (intent == null) {
+                intent = Intent.parseUri(uri, 0);
+                parsedIntents.put(uri, intent);
+            }
+            return new Intent(intent);
+        }
+
         /**
          * Clears all the sBg data structures
          */
@@ -1788,7 +2358,12 @@ public class LauncherModel extends BroadcastReceiver
                 final ArrayList<Long> restoredRows = new ArrayList<>();
                 Map<ShortcutKey, ShortcutInfoCompat> shortcutKeyToPinnedShortcuts = new HashMap<>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                final Cursor c = contentResolver.query(
+                        contentUri, WORKSPACE_PROJECTION, null, null, null);
+                final long loadTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                int rowCount = 0;
+                // Intents are often repeated (same app on several screens or profiles)
+                final HashMap<String, Intent> parsedIntents = new HashMap<>();
 
                 // +1 for the hotseat (it can be larger than the workspace)
                 // Load workspace in reverse order to ensure that latest items are loaded first (and
@@ -1871,6 +2446,7 @@ public class LauncherModel extends BroadcastReceiver
                     String titleAlias;
 
                     while (!mStopped && c.moveToNext()) {
+                        rowCount++;
                         try {
                             int itemType = c.getInt(itemTypeIndex);
                             boolean restored = 0 != c.getInt(restoredIndex);
@@ -1896,7 +2472,7 @@ public class LauncherModel extends BroadcastReceiver
                                         continue;
                                     }
                                     try {
-                                        intent = Intent.parseUri(intentDescription, 0);
+                                        intent = parseIntent(parsedIntents, intentDescription);
                                         ComponentName cn = intent.getComponent();
                                         if (cn != null && cn.getPackageName() != null) {
                                             boolean validPkg = launcherApps.isPackageEnabledForProfile(
@@ -2314,6 +2890,13 @@ public class LauncherModel extends BroadcastReceiver
                             Log.e(TAG, "Desktop items loading interrupted", e);
                         }
                     }
+                    if (DEBUG_LOADERS) {
+                        long time = Math.max(1, SystemClock.uptimeMillis() - loadTime);
+                        Log.d(TAG, "loaded " + rowCount + " favorites in " + time + "ms ("
+                                + (rowCount * 1000 / time) + " rows/s), "
+                                + cursorIconInfo.getLazyIconCount() + " icons read separately, "
+                                + parsedIntents.size() + " distinct intents");
+                    }
                 } finally {
                     Utilities.closeSilently(c);
                 }
@@ -2585,6 +3168,7 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             // Save a copy of all the bg-thread collections
+            final long generation = mLoadedWorkspaceGeneration;
             ArrayList<ItemInfo> workspaceItems = new ArrayList<>();
             ArrayList<LauncherAppWidgetInfo> appWidgets = new ArrayList<>();
             ArrayList<Long> orderedScreenIds = new ArrayList<>();
@@ -2670,18 +3254,7 @@ public class LauncherModel extends BroadcastReceiver
                     if (callbacks != null) {
                         callbacks.finishBindingItems();
                     }
-
-                    mIsLoadingAndBindingWorkspace = false;
-
-                    // Run all the bind complete runnables after workspace is bound.
-                    if (!mBindCompleteRunnables.isEmpty()) {
-                        synchronized (mBindCompleteRunnables) {
-                            for (final Runnable r : mBindCompleteRunnables) {
-                                runOnWorkerThread(r);
-                            }
-                            mBindCompleteRunnables.clear();
-                        }
-                    }
+                    onWorkspaceBindComplete(callbacks, generation);
                 }
             };
             deferredExecutor.execute(r);
@@ -2771,6 +3344,7 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         public void loadAllApps() {
+            final long loadTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
@@ -2780,12 +3354,18 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             final List<UserHandle> profiles = mUserManager.getUserProfiles();
+            final HashMap<UserHandle, List<LauncherActivityInfoCompat>> queriedApps =
+                    getQueryResult(mActivityListQuery, "activity list");
+            mActivityListQuery = null;
 
             // Clear the list of apps
             mBgAllAppsList.clear();
             for (UserHandle user : profiles) {
-                // Query for the set of apps
-                final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
+                // Query for the set of apps, unless this was already done while the workspace
+                // was loading
+                final boolean queried = queriedApps != null && queriedApps.containsKey(user);
+                final List<LauncherActivityInfoCompat> apps = queried ? queriedApps.get(user)
+                        : mLauncherApps.getActivityList(null, user);
                 // Fail if we don't have any apps
                 // TODO: Fix this. Only fail for the current user.
                 if (apps == null || apps.isEmpty()) {
@@ -2793,6 +3373,18 @@ public class LauncherModel extends BroadcastReceiver
                     continue;
                 }
                 boolean quietMode = mUserManager.isQuietModeEnabled(user);
+
+                if (!queried) {
+                    // Load all the cached icons of this user at once, instead of querying the
+                    // icon DB for every app below.
+                    final long prefetchTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    mIconCache.prefetchEntriesForUser(user, true /* lowRes */);
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "prefetched icons for " + user + " in "
+                                + (SystemClock.uptimeMillis() - prefetchTime) + "ms");
+                    }
+                }
+
                 // Create the ApplicationInfos
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfoCompat app = apps.get(i);
@@ -2844,17 +3436,28 @@ public class LauncherModel extends BroadcastReceiver
             });
             // Cleanup any data stored for a deleted user.
             ManagedProfileHeuristic.processAllUsers(profiles, mContext);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "Icons processed in "
+                        + (SystemClock.uptimeMillis() - loadTime) + "ms");
+            }
         }
 
         private void loadAndBindDeepShortcuts() {
             if (!mDeepShortcutsLoaded) {
+                DeepShortcutsQueryResult queried =
+                        getQueryResult(mDeepShortcutsQuery, "deep shortcuts");
+                mDeepShortcutsQuery = null;
+
                 mBgDeepShortcutMap.clear();
-                mHasShortcutHostPermission = mDeepShortcutManager.hasHostPermission();
+                mHasShortcutHostPermission = queried != null ? queried.hasHostPermission
+                        : mDeepShortcutManager.hasHostPermission();
                 if (mHasShortcutHostPermission) {
                     for (UserHandle user : mUserManager.getUserProfiles()) {
                         if (mUserManager.isUserUnlocked(user)) {
-                            List<ShortcutInfoCompat> shortcuts = mDeepShortcutManager
-                                    .queryForAllShortcuts(user);
+                            List<ShortcutInfoCompat> shortcuts =
+                                    queried != null && queried.shortcuts.containsKey(user)
+                                            ? queried.shortcuts.get(user)
+                                            : mDeepShortcutManager.queryForAllShortcuts(user);
                             updateDeepShortcutMap(null, user, shortcuts);
                         }
                     }
@@ -2913,6 +3516,13 @@ public class LauncherModel extends BroadcastReceiver
         runOnMainThread(r);
     }
 
+    public void dump(String prefix, PrintWriter writer) {
+        LoaderTrace trace = mLastLoaderTrace;
+        if (trace != null) {
+            trace.dump(prefix, writer);
+        }
+    }
+
     /**
      * Refreshes the cached shortcuts if the shortcut permission has changed.
      * Current implementation simply reloads the workspace, but it can be optimized to
@@ -51,6 +51,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.deletescape.lawnchair.AutoInstallsLayout.LayoutParserCallback;
 import ch.deletescape.lawnchair.LauncherSettings.Favorites;
@@ -70,6 +71,9 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String RESTRICTION_PACKAGE_NAME = "workspace.configuration.package.name";
 
+    // Last generation stored in the modified column, see nextGeneration()
+    private static final AtomicLong sGeneration = new AtomicLong();
+
     private final ChangeListenerWrapper mListenerWrapper = new ChangeListenerWrapper();
     private Handler mListenerHandler;
 
@@ -443,7 +447,24 @@ public class LauncherProvider extends ContentProvider {
 
     @Thunk
     static void addModifiedTime(ContentValues values) {
-        values.put(LauncherSettings.ChangeLogColumns.MODIFIED, System.currentTimeMillis());
+        values.put(LauncherSettings.ChangeLogColumns.MODIFIED, nextGeneration());
+    }
+
+    /**
+     * Returns a new generation, greater than the one stored in any row inserted or updated so
+     * far. Rows inserted or updated later will have a greater generation, which allows the
+     * loader to query the rows changed since it last loaded the workspace.
+     * <p>
+     * The generation is based on the current time, so it keeps increasing across restarts.
+     */
+    public static long nextGeneration() {
+        while (true) {
+            long last = sGeneration.get();
+            long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (sGeneration.compareAndSet(last, next)) {
+                return next;
+            }
+        }
     }
 
     /**
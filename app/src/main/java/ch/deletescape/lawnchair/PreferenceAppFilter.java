@@ -2,16 +2,96 @@ package ch.deletescape.lawnchair;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
 
 import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
+import ch.deletescape.lawnchair.preferences.PreferenceFlags;
 
 public class PreferenceAppFilter implements AppFilter {
 
+    /**
+     * Immutable copy of the hidden apps and shortcut blacklist preferences. Reading a string set
+     * from the preferences copies it, so they are only read again after they changed.
+     */
+    public static class Snapshot {
+        private final Set<String> mHiddenApps;
+        private final HashSet<ComponentName> mHiddenComponents = new HashSet<>();
+        private final Set<String> mShortcutBlacklist;
+
+        Snapshot(IPreferenceProvider prefs) {
+            mHiddenApps = prefs.getHiddenAppsSet();
+            mShortcutBlacklist = prefs.getShortcutBlacklist();
+            for (String app : mHiddenApps) {
+                ComponentName cn = ComponentName.unflattenFromString(app);
+                if (cn != null) {
+                    mHiddenComponents.add(cn);
+                }
+            }
+        }
+
+        public boolean isAppHidden(String key) {
+            return mHiddenApps.contains(key);
+        }
+
+        public boolean isAppHidden(ComponentName app) {
+            return mHiddenComponents.contains(app);
+        }
+
+        public boolean isShortcutBlacklisted(String key) {
+            return mShortcutBlacklist.contains(key);
+        }
+    }
+
+    private static volatile Snapshot sSnapshot;
+    // Registered once, and kept here as the preferences only hold a weak reference to it
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPrefsListener;
+
+    /**
+     * Returns the current snapshot of the filtering preferences, shared by everything filtering
+     * apps.
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            synchronized (PreferenceAppFilter.class) {
+                IPreferenceProvider prefs = Utilities.getPrefs(context);
+                if (sPrefsListener == null) {
+                    sPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                        @Override
+                        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                            if (PreferenceFlags.KEY_HIDDEN_APPS_SET.equals(key)
+                                    || PreferenceFlags.KEY_SHORTCUT_BLACKLIST.equals(key)) {
+                                invalidateSnapshot();
+                            }
+                        }
+                    };
+                    prefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+                }
+                snapshot = sSnapshot;
+                if (snapshot == null) {
+                    snapshot = new Snapshot(prefs);
+                    sSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes the next {@link #getSnapshot(Context)} read the preferences again. Changes are
+     * picked up by a preference listener, but it is only notified asynchronously.
+     */
+    public static void invalidateSnapshot() {
+        sSnapshot = null;
+    }
+
     @Override
     public boolean shouldShowApp(ComponentName app, Context context) {
         if (app.getPackageName().equals(context.getPackageName()))
             return false;
-        IPreferenceProvider prefs = Utilities.getPrefs(context);
-        return !Utilities.isAppHidden(context, app.flattenToString());
+        return !getSnapshot(context).isAppHidden(app);
     }
 }
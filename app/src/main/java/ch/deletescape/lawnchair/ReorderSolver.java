@@ -0,0 +1,752 @@
+package ch.deletescape.lawnchair;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import ch.deletescape.lawnchair.util.CellAndSpan;
+import ch.deletescape.lawnchair.util.GridOccupancy;
+
+/**
+ * Finds how the items of a {@link CellLayout} can be rearranged to make room for the item being
+ * dragged.
+ * <p>
+ * The search only works on a {@link Model}, a snapshot of the positions of the items and of the
+ * occupancy of the grid, so it doesn't touch any view and can run on a background thread. A
+ * search which is no longer needed can be stopped with {@link #cancel()}.
+ */
+class ReorderSolver {
+
+    static final int LEFT = 1;
+    static final int TOP = 1 << 1;
+    static final int RIGHT = 1 << 2;
+    static final int BOTTOM = 1 << 3;
+
+    /**
+     * Immutable snapshot of the items of a layout.
+     */
+    static class Model {
+        final int countX;
+        final int countY;
+        // The committed position of every item, in the order of the children of the layout
+        final CellAndSpan[] cells;
+        final boolean[] canReorder;
+        // The index of the item being dragged, or -1
+        final int dragIndex;
+        final GridOccupancy occupied;
+        // The occupancy as row masks, to compare snapshots
+        private final long[] mRowMasks;
+
+        Model(int countX, int countY, CellAndSpan[] cells, boolean[] canReorder, int dragIndex,
+              GridOccupancy occupied) {
+            this.countX = countX;
+            this.countY = countY;
+            this.cells = cells;
+            this.canReorder = canReorder;
+            this.dragIndex = dragIndex;
+            this.occupied = new GridOccupancy(countX, countY);
+            occupied.copyTo(this.occupied);
+            mRowMasks = occupied.getRowMasks();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Model)) {
+                return false;
+            }
+            Model other = (Model) o;
+            if (countX != other.countX || countY != other.countY
+                    || dragIndex != other.dragIndex || cells.length != other.cells.length
+                    || !Arrays.equals(canReorder, other.canReorder)
+                    || !Arrays.equals(mRowMasks, other.mRowMasks)) {
+                return false;
+            }
+            for (int i = 0; i < cells.length; i++) {
+                CellAndSpan c = cells[i];
+                CellAndSpan o2 = other.cells[i];
+                if (c.cellX != o2.cellX || c.cellY != o2.cellY
+                        || c.spanX != o2.spanX || c.spanY != o2.spanY) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mRowMasks) * 31 + cells.length;
+        }
+    }
+
+    /**
+     * The position of the dragged item and of every item of the model in a solution.
+     */
+    static class Solution extends CellAndSpan {
+        final CellAndSpan[] cells;
+        // Whether each item intersects with the dragged item at its desired location
+        final boolean[] intersecting;
+        boolean isSolution = false;
+
+        Solution(int count) {
+            cells = new CellAndSpan[count];
+            intersecting = new boolean[count];
+        }
+
+        int area() {
+            return spanX * spanY;
+        }
+    }
+
+    private final Model mModel;
+    // The locations to try for the dragged item, as (cellX, cellY, spanX, spanY) groups
+    private final int[] mTargets;
+    private final int[] mDirection;
+
+    private final GridOccupancy mTmpOccupied;
+    private final CellAndSpan[] mCells;
+    private final CellAndSpan[] mSavedCells;
+    private final ArrayList<Integer> mSortedItems = new ArrayList<>();
+    private final ArrayList<Integer> mIntersectingItems = new ArrayList<>();
+    private final boolean[] mIntersecting;
+    private final Rect mOccupiedRect = new Rect();
+    private final int[] mTempLocation = new int[2];
+    private final int[] mTmpDirection = new int[2];
+
+    private volatile boolean mCancelled;
+
+    ReorderSolver(Model model, int[] targets, int[] direction) {
+        mModel = model;
+        mTargets = targets;
+        mDirection = new int[]{direction[0], direction[1]};
+
+        int count = model.cells.length;
+        mTmpOccupied = new GridOccupancy(model.countX, model.countY);
+        mCells = new CellAndSpan[count];
+        mSavedCells = new CellAndSpan[count];
+        mIntersecting = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            mCells[i] = new CellAndSpan();
+            mSavedCells[i] = new CellAndSpan();
+        }
+    }
+
+    /**
+     * Stops the search, {@link #solve()} then returns null as soon as possible.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Tries the targets in order, and returns the solution for the first one which allows a
+     * rearrangement, or null if the search was cancelled.
+     */
+    Solution solve() {
+        Solution solution = new Solution(mCells.length);
+        for (int i = 0; i + 3 < mTargets.length; i += 4) {
+            if (mCancelled) {
+                return null;
+            }
+            int cellX = mTargets[i];
+            int cellY = mTargets[i + 1];
+            int spanX = mTargets[i + 2];
+            int spanY = mTargets[i + 3];
+            resetState();
+            if (rearrangementExists(cellX, cellY, spanX, spanY)) {
+                if (mCancelled) {
+                    return null;
+                }
+                solution.isSolution = true;
+                solution.cellX = cellX;
+                solution.cellY = cellY;
+                solution.spanX = spanX;
+                solution.spanY = spanY;
+                for (int j = 0; j < mCells.length; j++) {
+                    solution.cells[j] = new CellAndSpan(mCells[j].cellX, mCells[j].cellY,
+                            mCells[j].spanX, mCells[j].spanY);
+                }
+                System.arraycopy(mIntersecting, 0, solution.intersecting, 0,
+                        mIntersecting.length);
+                return solution;
+            }
+        }
+        return mCancelled ? null : solution;
+    }
+
+    /**
+     * Resets the search state to the committed state of the model.
+     */
+    private void resetState() {
+        for (int i = 0; i < mCells.length; i++) {
+            mCells[i].copyFrom(mModel.cells[i]);
+        }
+        Arrays.fill(mIntersecting, false);
+        mSortedItems.clear();
+        for (int i = 0; i < mCells.length; i++) {
+            mSortedItems.add(i);
+        }
+        mModel.occupied.copyTo(mTmpOccupied);
+    }
+
+    private void saveState() {
+        for (int i = 0; i < mCells.length; i++) {
+            mSavedCells[i].copyFrom(mCells[i]);
+        }
+    }
+
+    private void restoreState() {
+        for (int i = 0; i < mCells.length; i++) {
+            mCells[i].copyFrom(mSavedCells[i]);
+        }
+    }
+
+    private void getBoundingRect(ArrayList<Integer> items, Rect outRect) {
+        boolean first = true;
+        for (int i : items) {
+            CellAndSpan c = mCells[i];
+            if (first) {
+                outRect.set(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
+                first = false;
+            } else {
+                outRect.union(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
+            }
+        }
+    }
+
+    /**
+     * This helper class defines a cluster of items. It helps with defining complex edges
+     * of the cluster and determining how those edges interact with other items. The edges
+     * essentially define a fine-grained boundary around the cluster of items -- like a more
+     * precise version of a bounding box.
+     */
+    private class Cluster {
+        final ArrayList<Integer> items;
+        final boolean[] included = new boolean[mCells.length];
+        final Rect boundingRect = new Rect();
+
+        final int[] leftEdge = new int[mModel.countY];
+        final int[] rightEdge = new int[mModel.countY];
+        final int[] topEdge = new int[mModel.countX];
+        final int[] bottomEdge = new int[mModel.countX];
+        int dirtyEdges;
+
+        Cluster(ArrayList<Integer> items) {
+            this.items = new ArrayList<>(items);
+            for (int i : items) {
+                included[i] = true;
+            }
+            resetEdges();
+        }
+
+        void resetEdges() {
+            Arrays.fill(topEdge, -1);
+            Arrays.fill(bottomEdge, -1);
+            Arrays.fill(leftEdge, -1);
+            Arrays.fill(rightEdge, -1);
+            dirtyEdges = LEFT | TOP | RIGHT | BOTTOM;
+        }
+
+        void computeEdge(int which) {
+            for (int i : items) {
+                CellAndSpan cs = mCells[i];
+                switch (which) {
+                    case LEFT:
+                        int left = cs.cellX;
+                        for (int j = cs.cellY; j < cs.cellY + cs.spanY; j++) {
+                            if (left < leftEdge[j] || leftEdge[j] < 0) {
+                                leftEdge[j] = left;
+                            }
+                        }
+                        break;
+                    case RIGHT:
+                        int right = cs.cellX + cs.spanX;
+                        for (int j = cs.cellY; j < cs.cellY + cs.spanY; j++) {
+                            if (right > rightEdge[j]) {
+                                rightEdge[j] = right;
+                            }
+                        }
+                        break;
+                    case TOP:
+                        int top = cs.cellY;
+                        for (int j = cs.cellX; j < cs.cellX + cs.spanX; j++) {
+                            if (top < topEdge[j] || topEdge[j] < 0) {
+                                topEdge[j] = top;
+                            }
+                        }
+                        break;
+                    case BOTTOM:
+                        int bottom = cs.cellY + cs.spanY;
+                        for (int j = cs.cellX; j < cs.cellX + cs.spanX; j++) {
+                            if (bottom > bottomEdge[j]) {
+                                bottomEdge[j] = bottom;
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+
+        boolean isItemTouchingEdge(int item, int whichEdge) {
+            CellAndSpan cs = mCells[item];
+
+            if ((dirtyEdges & whichEdge) == whichEdge) {
+                computeEdge(whichEdge);
+                dirtyEdges &= ~whichEdge;
+            }
+
+            switch (whichEdge) {
+                case LEFT:
+                    for (int i = cs.cellY; i < cs.cellY + cs.spanY; i++) {
+                        if (i > leftEdge.length || leftEdge[i] == cs.cellX + cs.spanX) {
+                            return true;
+                        }
+                    }
+                    break;
+                case RIGHT:
+                    for (int i = cs.cellY; i < cs.cellY + cs.spanY; i++) {
+                        if (i > rightEdge.length || rightEdge[i] == cs.cellX) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TOP:
+                    for (int i = cs.cellX; i < cs.cellX + cs.spanX; i++) {
+                        if (i > topEdge.length || topEdge[i] == cs.cellY + cs.spanY) {
+                            return true;
+                        }
+                    }
+                    break;
+                case BOTTOM:
+                    for (int i = cs.cellX; i < cs.cellX + cs.spanX; i++) {
+                        if (i > bottomEdge.length || bottomEdge[i] == cs.cellY) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+            return false;
+        }
+
+        void shift(int whichEdge, int delta) {
+            for (int i : items) {
+                CellAndSpan c = mCells[i];
+                switch (whichEdge) {
+                    case LEFT:
+                        c.cellX -= delta;
+                        break;
+                    case RIGHT:
+                        c.cellX += delta;
+                        break;
+                    case TOP:
+                        c.cellY -= delta;
+                        break;
+                    case BOTTOM:
+                    default:
+                        c.cellY += delta;
+                        break;
+                }
+            }
+            resetEdges();
+        }
+
+        void addItem(int item) {
+            items.add(item);
+            included[item] = true;
+            resetEdges();
+        }
+
+        Rect getBoundingRect() {
+            getBoundingRect(items, boundingRect);
+            return boundingRect;
+        }
+
+        void sortItemsForEdgePush(final int whichEdge) {
+            Collections.sort(mSortedItems, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    CellAndSpan l = mCells[left];
+                    CellAndSpan r = mCells[right];
+                    switch (whichEdge) {
+                        case LEFT:
+                            return (r.cellX + r.spanX) - (l.cellX + l.spanX);
+                        case RIGHT:
+                            return l.cellX - r.cellX;
+                        case TOP:
+                            return (r.cellY + r.spanY) - (l.cellY + l.spanY);
+                        case BOTTOM:
+                        default:
+                            return l.cellY - r.cellY;
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean pushItemsToTempLocation(ArrayList<Integer> items,
+                                            Rect rectOccupiedByPotentialDrop, int[] direction) {
+        Cluster cluster = new Cluster(items);
+        Rect clusterRect = cluster.getBoundingRect();
+        int whichEdge;
+        int pushDistance;
+        boolean fail = false;
+
+        // Determine the edge of the cluster that will be leading the push and how far
+        // the cluster must be shifted.
+        if (direction[0] < 0) {
+            whichEdge = LEFT;
+            pushDistance = clusterRect.right - rectOccupiedByPotentialDrop.left;
+        } else if (direction[0] > 0) {
+            whichEdge = RIGHT;
+            pushDistance = rectOccupiedByPotentialDrop.right - clusterRect.left;
+        } else if (direction[1] < 0) {
+            whichEdge = TOP;
+            pushDistance = clusterRect.bottom - rectOccupiedByPotentialDrop.top;
+        } else {
+            whichEdge = BOTTOM;
+            pushDistance = rectOccupiedByPotentialDrop.bottom - clusterRect.top;
+        }
+
+        // Break early for invalid push distance.
+        if (pushDistance <= 0) {
+            return false;
+        }
+
+        // Mark the occupied state as false for the group of items we want to move.
+        for (int i : items) {
+            mTmpOccupied.markCells(mCells[i], false);
+        }
+
+        // We save the current configuration -- if we fail to find a solution we will revert
+        // to the initial state. The process of finding a solution modifies the configuration
+        // in place, hence the need for revert in the failure case.
+        saveState();
+
+        // The pushing algorithm is simplified by considering the items in the order in which
+        // they would be pushed by the cluster. For example, if the cluster is leading with its
+        // left edge, we consider sort the items by their right edge, from right to left.
+        cluster.sortItemsForEdgePush(whichEdge);
+
+        while (pushDistance > 0 && !fail && !mCancelled) {
+            for (int i : mSortedItems) {
+                // For each item that isn't in the cluster, we see if the leading edge of the
+                // cluster is contacting the edge of that item. If so, we add that item to the
+                // cluster.
+                if (!cluster.included[i] && i != mModel.dragIndex) {
+                    if (cluster.isItemTouchingEdge(i, whichEdge)) {
+                        if (!mModel.canReorder[i]) {
+                            // The push solution includes the all apps button, this is not viable.
+                            fail = true;
+                            break;
+                        }
+                        cluster.addItem(i);
+
+                        // Adding item to cluster, mark it as not occupied.
+                        mTmpOccupied.markCells(mCells[i], false);
+                    }
+                }
+            }
+            pushDistance--;
+
+            // The cluster has been completed, now we move the whole thing over in the appropriate
+            // direction.
+            cluster.shift(whichEdge, 1);
+        }
+
+        boolean foundSolution = false;
+        clusterRect = cluster.getBoundingRect();
+
+        // Due to the nature of the algorithm, the only check required to verify a valid solution
+        // is to ensure that completed shifted cluster lies completely within the cell layout.
+        if (!fail && !mCancelled && clusterRect.left >= 0 && clusterRect.right <= mModel.countX
+                && clusterRect.top >= 0 && clusterRect.bottom <= mModel.countY) {
+            foundSolution = true;
+        } else {
+            restoreState();
+        }
+
+        // In either case, we set the occupied array as marked for the location of the items
+        for (int i : cluster.items) {
+            mTmpOccupied.markCells(mCells[i], true);
+        }
+
+        return foundSolution;
+    }
+
+    private boolean addItemsToTempLocation(ArrayList<Integer> items,
+                                           Rect rectOccupiedByPotentialDrop, int[] direction) {
+        if (items.size() == 0) return true;
+
+        boolean success = false;
+        Rect boundingRect = new Rect();
+        // We construct a rect which represents the entire group of items passed in
+        getBoundingRect(items, boundingRect);
+
+        // Mark the occupied state as false for the group of items we want to move.
+        for (int i : items) {
+            mTmpOccupied.markCells(mCells[i], false);
+        }
+
+        GridOccupancy blockOccupied = new GridOccupancy(boundingRect.width(), boundingRect.height());
+        int top = boundingRect.top;
+        int left = boundingRect.left;
+        // We mark more precisely which parts of the bounding rect are truly occupied, allowing
+        // for interlocking.
+        for (int i : items) {
+            CellAndSpan c = mCells[i];
+            blockOccupied.markCells(c.cellX - left, c.cellY - top, c.spanX, c.spanY, true);
+        }
+
+        mTmpOccupied.markCells(rectOccupiedByPotentialDrop, true);
+
+        findNearestArea(boundingRect.left, boundingRect.top, boundingRect.width(),
+                boundingRect.height(), direction, blockOccupied, mTempLocation);
+
+        // If we successfuly found a location by pushing the block of items, we commit it
+        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
+            int deltaX = mTempLocation[0] - boundingRect.left;
+            int deltaY = mTempLocation[1] - boundingRect.top;
+            for (int i : items) {
+                CellAndSpan c = mCells[i];
+                c.cellX += deltaX;
+                c.cellY += deltaY;
+            }
+            success = true;
+        }
+
+        // In either case, we set the occupied array as marked for the location of the items
+        for (int i : items) {
+            mTmpOccupied.markCells(mCells[i], true);
+        }
+        return success;
+    }
+
+    private boolean addItemToTempLocation(int item, Rect rectOccupiedByPotentialDrop,
+                                          int[] direction) {
+        CellAndSpan c = mCells[item];
+        boolean success = false;
+        mTmpOccupied.markCells(c, false);
+        mTmpOccupied.markCells(rectOccupiedByPotentialDrop, true);
+
+        findNearestArea(c.cellX, c.cellY, c.spanX, c.spanY, direction, null, mTempLocation);
+
+        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
+            c.cellX = mTempLocation[0];
+            c.cellY = mTempLocation[1];
+            success = true;
+        }
+        mTmpOccupied.markCells(c, true);
+        return success;
+    }
+
+    /**
+     * Finds a vacant area of the search grid that will fit the given bounds nearest the
+     * requested cell location, and will also weigh in a suggested direction vector of the
+     * desired location. This uses unit grid distances, not pixel distances.
+     *
+     * @param blockOccupied The cells of the block (cellX, cellY, spanX, spanY) which are
+     *                      occupied, or null if the whole block is. This is used when trying to
+     *                      move a group of items.
+     */
+    private void findNearestArea(int cellX, int cellY, int spanX, int spanY, int[] direction,
+                                 GridOccupancy blockOccupied, int[] result) {
+        float bestDistance = Float.MAX_VALUE;
+        int bestDirectionScore = Integer.MIN_VALUE;
+
+        final int countX = mModel.countX;
+        final int countY = mModel.countY;
+
+        for (int y = 0; y < countY - (spanY - 1); y++) {
+            for (int x = 0; x < countX - (spanX - 1); x++) {
+                // First, let's see if this thing fits anywhere
+                if (blockOccupied == null ? !mTmpOccupied.isRegionVacant(x, y, spanX, spanY)
+                        : !mTmpOccupied.isRegionVacant(x, y, blockOccupied)) {
+                    continue;
+                }
+
+                float distance = (float) Math.hypot(x - cellX, y - cellY);
+                int[] curDirection = mTmpDirection;
+                computeDirectionVector(x - cellX, y - cellY, curDirection);
+                // The direction score is just the dot product of the two candidate direction
+                // and that passed in.
+                int curDirectionScore = direction[0] * curDirection[0] +
+                        direction[1] * curDirection[1];
+                if (Float.compare(distance, bestDistance) < 0 ||
+                        (Float.compare(distance, bestDistance) == 0
+                                && curDirectionScore > bestDirectionScore)) {
+                    bestDistance = distance;
+                    bestDirectionScore = curDirectionScore;
+                    result[0] = x;
+                    result[1] = y;
+                }
+            }
+        }
+
+        // Return -1, -1 if no suitable location found
+        if (bestDistance == Float.MAX_VALUE) {
+            result[0] = -1;
+            result[1] = -1;
+        }
+    }
+
+    // This method tries to find a reordering solution which satisfies the push mechanic by trying
+    // to push items in each of the cardinal directions, in an order based on the direction vector
+    // passed.
+    private boolean attemptPushInDirection(ArrayList<Integer> intersectingItems, Rect occupied,
+                                           int[] direction) {
+        if ((Math.abs(direction[0]) + Math.abs(direction[1])) > 1) {
+            // If the direction vector has two non-zero components, we try pushing
+            // separately in each of the components.
+            int temp = direction[1];
+            direction[1] = 0;
+
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            direction[1] = temp;
+            temp = direction[0];
+            direction[0] = 0;
+
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            // Revert the direction
+            direction[0] = temp;
+
+            // Now we try pushing in each component of the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            temp = direction[1];
+            direction[1] = 0;
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+
+            direction[1] = temp;
+            temp = direction[0];
+            direction[0] = 0;
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            // revert the direction
+            direction[0] = temp;
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+        } else {
+            // If the direction vector has a single non-zero component, we push first in the
+            // direction of the vector
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            // Then we try the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            // Switch the direction back
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+            // If we have failed to find a push solution with the above, then we try
+            // to find a solution by pushing along the perpendicular axis.
+
+            // Swap the components
+            int temp = direction[1];
+            direction[1] = direction[0];
+            direction[0] = temp;
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+
+            // Then we try the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            if (pushItemsToTempLocation(intersectingItems, occupied, direction)) {
+                return true;
+            }
+            // Switch the direction back
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+            // Swap the components back
+            temp = direction[1];
+            direction[1] = direction[0];
+            direction[0] = temp;
+        }
+        return false;
+    }
+
+    private boolean rearrangementExists(int cellX, int cellY, int spanX, int spanY) {
+        // Return early if get invalid cell positions
+        if (cellX < 0 || cellY < 0) return false;
+
+        mIntersectingItems.clear();
+        mOccupiedRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
+
+        // Mark the desired location of the item currently being dragged.
+        int dragIndex = mModel.dragIndex;
+        if (dragIndex >= 0) {
+            mCells[dragIndex].cellX = cellX;
+            mCells[dragIndex].cellY = cellY;
+        }
+        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
+        Rect r1 = new Rect();
+        for (int i = 0; i < mCells.length; i++) {
+            if (i == dragIndex) continue;
+            CellAndSpan c = mCells[i];
+            r1.set(c.cellX, c.cellY, c.cellX + c.spanX, c.cellY + c.spanY);
+            if (Rect.intersects(r0, r1)) {
+                if (!mModel.canReorder[i]) {
+                    return false;
+                }
+                mIntersectingItems.add(i);
+                mIntersecting[i] = true;
+            }
+        }
+
+        // First we try to find a solution which respects the push mechanic. That is,
+        // we try to find a solution such that no displaced item travels through another item
+        // without also displacing that item.
+        if (attemptPushInDirection(mIntersectingItems, mOccupiedRect, mDirection)) {
+            return true;
+        }
+
+        // Next we try moving the items as a block, but without requiring the push mechanic.
+        if (addItemsToTempLocation(mIntersectingItems, mOccupiedRect, mDirection)) {
+            return true;
+        }
+
+        // Ok, they couldn't move as a block, let's move them individually
+        for (int i : mIntersectingItems) {
+            if (!addItemToTempLocation(i, mOccupiedRect, mDirection)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Returns a pair (x, y), where x,y are in {-1, 0, 1} corresponding to vector between
+     * the provided point and the provided cell
+     */
+    static void computeDirectionVector(float deltaX, float deltaY, int[] result) {
+        double angle = Math.atan(deltaY / deltaX);
+
+        result[0] = 0;
+        result[1] = 0;
+        if (Math.abs(Math.cos(angle)) > 0.5f) {
+            result[0] = (int) Math.signum(deltaX);
+        }
+        if (Math.abs(Math.sin(angle)) > 0.5f) {
+            result[1] = (int) Math.signum(deltaY);
+        }
+    }
+}
@@ -72,5 +72,6 @@ abstract class SelectableAdapter<VH extends RecyclerView.ViewHolder> extends Rec
 
     public void addSelectionsToList(Context context) {
         PreferenceProvider.INSTANCE.getPreferences(context).setHiddenAppsSet(mSelections);
+        PreferenceAppFilter.invalidateSnapshot();
     }
 }
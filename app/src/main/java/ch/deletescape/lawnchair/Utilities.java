@@ -122,20 +122,29 @@ public final class Utilities {
     private static final String LAUNCHER_RESTART_KEY = "launcher_restart_key";
     private static final int WAIT_BEFORE_RESTART = 250;
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
+    // Icons are rendered on several threads at once, each of them with its own canvas.
+    private static final ThreadLocal<Canvas> sCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            Canvas canvas = new Canvas();
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+            return canvas;
+        }
+    };
 
     private static final Pattern sTrimPattern =
             Pattern.compile("^[\\s|\\p{javaSpaceChar}]*(.*)[\\s|\\p{javaSpaceChar}]*$");
 
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
-
     private static final int[] sLoc0 = new int[2];
     private static final int[] sLoc1 = new int[2];
 
+    // Scratch state of the coordinate mapping methods, which are called on every drag move and
+    // only on the UI thread
+    private static final float[] sPoint = new float[2];
+    private static final Matrix sMatrix = new Matrix();
+    private static final Matrix sInverseMatrix = new Matrix();
+
     public static final boolean ATLEAST_MARSHMALLOW =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
 
@@ -295,14 +304,13 @@ public final class Utilities {
      */
     public static Bitmap badgeWithBitmap(Bitmap srcTgt, Bitmap badge, Context context) {
         int badgeSize = context.getResources().getDimensionPixelSize(R.dimen.profile_badge_size);
-        synchronized (sCanvas) {
-            sCanvas.setBitmap(srcTgt);
-            sCanvas.drawBitmap(badge, new Rect(0, 0, badge.getWidth(), badge.getHeight()),
-                    new Rect(srcTgt.getWidth() - badgeSize,
-                            srcTgt.getHeight() - badgeSize, srcTgt.getWidth(), srcTgt.getHeight()),
-                    new Paint(Paint.FILTER_BITMAP_FLAG));
-            sCanvas.setBitmap(null);
-        }
+        Canvas canvas = sCanvas.get();
+        canvas.setBitmap(srcTgt);
+        canvas.drawBitmap(badge, new Rect(0, 0, badge.getWidth(), badge.getHeight()),
+                new Rect(srcTgt.getWidth() - badgeSize,
+                        srcTgt.getHeight() - badgeSize, srcTgt.getWidth(), srcTgt.getHeight()),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
         return srcTgt;
     }
 
@@ -314,63 +322,61 @@ public final class Utilities {
     }
 
     private static Bitmap createIconBitmap(Drawable icon, Context context, float scale) {
-        synchronized (sCanvas) {
-            final int iconBitmapSize = getIconBitmapSize();
-            int width = iconBitmapSize;
-            int height = iconBitmapSize;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        final int iconBitmapSize = getIconBitmapSize();
+        int width = iconBitmapSize;
+        int height = iconBitmapSize;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
+        }
 
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
-            }
-            // no intrinsic size --> use default size
-
-            Bitmap bitmap = Bitmap.createBitmap(iconBitmapSize, iconBitmapSize,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (iconBitmapSize -width) / 2;
-            final int top = (iconBitmapSize -height) / 2;
-
-            sOldBounds.set(icon.getBounds());
-            if (Utilities.isAdaptive(icon)) {
-                int offset = Math.max((int)(ShadowGenerator.BLUR_FACTOR * iconBitmapSize),
-                        Math.min(left, top));
-                int size = Math.max(width, height);
-                icon.setBounds(offset, offset, size, size);
-            } else {
-                icon.setBounds(left, top, left+width, top+height);
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
-            canvas.save(Canvas.MATRIX_SAVE_FLAG);
-            canvas.scale(scale, scale, iconBitmapSize / 2, iconBitmapSize / 2);
-            icon.draw(canvas);
-            canvas.restore();
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
-
-            return bitmap;
         }
+        // no intrinsic size --> use default size
+
+        Bitmap bitmap = Bitmap.createBitmap(iconBitmapSize, iconBitmapSize,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = sCanvas.get();
+        canvas.setBitmap(bitmap);
+
+        final int left = (iconBitmapSize -width) / 2;
+        final int top = (iconBitmapSize -height) / 2;
+
+        Rect oldBounds = new Rect(icon.getBounds());
+        if (Utilities.isAdaptive(icon)) {
+            int offset = Math.max((int)(ShadowGenerator.BLUR_FACTOR * iconBitmapSize),
+                    Math.min(left, top));
+            int size = Math.max(width, height);
+            icon.setBounds(offset, offset, size, size);
+        } else {
+            icon.setBounds(left, top, left+width, top+height);
+        }
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        canvas.scale(scale, scale, iconBitmapSize / 2, iconBitmapSize / 2);
+        icon.draw(canvas);
+        canvas.restore();
+        icon.setBounds(oldBounds);
+        canvas.setBitmap(null);
+
+        return bitmap;
     }
 
     /**
@@ -388,7 +394,9 @@ public final class Utilities {
      */
     public static float getDescendantCoordRelativeToAncestor(
             View descendant, View ancestor, int[] coord, boolean includeRootScroll) {
-        float[] pt = {coord[0], coord[1]};
+        float[] pt = sPoint;
+        pt[0] = coord[0];
+        pt[1] = coord[1];
         float scale = 1.0f;
         View v = descendant;
         while (v != ancestor && v != null) {
@@ -417,35 +425,26 @@ public final class Utilities {
      */
     public static float mapCoordInSelfToDescendent(View descendant, View root,
                                                    int[] coord) {
-        ArrayList<View> ancestorChain = new ArrayList<>();
-
-        float[] pt = {coord[0], coord[1]};
-
+        // Build the transform from the descendant to the root, and map the point through its
+        // inverse
+        Matrix matrix = sMatrix;
+        matrix.reset();
+        float scale = 1.0f;
         View v = descendant;
         while (v != root) {
-            ancestorChain.add(v);
+            matrix.postTranslate(-v.getScrollX(), -v.getScrollY());
+            matrix.postConcat(v.getMatrix());
+            matrix.postTranslate(v.getLeft(), v.getTop());
+            scale *= v.getScaleX();
             v = (View) v.getParent();
         }
-        ancestorChain.add(root);
+        matrix.postTranslate(-root.getScrollX(), -root.getScrollY());
+        matrix.invert(sInverseMatrix);
 
-        float scale = 1.0f;
-        Matrix inverse = new Matrix();
-        int count = ancestorChain.size();
-        for (int i = count - 1; i >= 0; i--) {
-            View ancestor = ancestorChain.get(i);
-            View next = i > 0 ? ancestorChain.get(i - 1) : null;
-
-            pt[0] += ancestor.getScrollX();
-            pt[1] += ancestor.getScrollY();
-
-            if (next != null) {
-                pt[0] -= next.getLeft();
-                pt[1] -= next.getTop();
-                next.getMatrix().invert(inverse);
-                inverse.mapPoints(pt);
-                scale *= next.getScaleX();
-            }
-        }
+        float[] pt = sPoint;
+        pt[0] = coord[0];
+        pt[1] = coord[1];
+        sInverseMatrix.mapPoints(pt);
 
         coord[0] = Math.round(pt[0]);
         coord[1] = Math.round(pt[1]);
@@ -938,14 +937,15 @@ public final class Utilities {
         else
             hiddenApps.add(key);
         getPrefs(context).setHiddenAppsSet(hiddenApps);
+        PreferenceAppFilter.invalidateSnapshot();
     }
 
     public static boolean isAppHidden(Context context, String key) {
-        return getPrefs(context).getHiddenAppsSet().contains(key);
+        return PreferenceAppFilter.getSnapshot(context).isAppHidden(key);
     }
 
     public static boolean isShortcutBlacklist(Context context, String key) {
-        return getPrefs(context).getShortcutBlacklist().contains(key);
+        return PreferenceAppFilter.getSnapshot(context).isShortcutBlacklisted(key);
     }
 
     public static int getDynamicAccent(Context context) {
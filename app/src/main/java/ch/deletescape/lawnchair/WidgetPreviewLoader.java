@@ -1,8 +1,12 @@
 package ch.deletescape.lawnchair;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -20,28 +24,42 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Handler;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.support.v4.graphics.ColorUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.LruCache;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.deletescape.lawnchair.compat.AppWidgetManagerCompat;
 import ch.deletescape.lawnchair.compat.ShortcutConfigActivityInfo;
 import ch.deletescape.lawnchair.compat.UserManagerCompat;
 import ch.deletescape.lawnchair.graphics.LauncherIcons;
+import ch.deletescape.lawnchair.model.PackageItemInfo;
 import ch.deletescape.lawnchair.model.WidgetItem;
 import ch.deletescape.lawnchair.util.ComponentKey;
+import ch.deletescape.lawnchair.util.MultiHashMap;
 import ch.deletescape.lawnchair.util.SQLiteCacheHelper;
 import ch.deletescape.lawnchair.util.Thunk;
 import ch.deletescape.lawnchair.widget.WidgetCell;
@@ -52,17 +70,43 @@ public class WidgetPreviewLoader {
 
     private static final float WIDGET_PREVIEW_ICON_PADDING_PERCENTAGE = 0.25f;
 
+    private static final int LOADER_THREAD_COUNT = 2;
+    private static final long LOADER_KEEP_ALIVE_SECONDS = 10;
+
+    // Fraction of the memory class used for the decoded previews and the bitmap pool
+    private static final int MEM_CACHE_FRACTION = 16;
+    private static final int BITMAP_POOL_FRACTION = 64;
+
+    // Number of prerendered previews written to the DB per transaction
+    private static final int PRERENDER_BATCH_SIZE = 8;
+
+    private static final String PACKAGE_SELECTION =
+            CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?";
+
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
     /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
+     * Decoded previews, sized by their byte count. Must only be changed on the UI thread, except
+     * for removals.
+     */
+    private final LruCache<WidgetCacheKey, Bitmap> mMemCache;
+
+    /**
+     * Number of holders of every preview handed out by this loader, i.e. the memory cache and the
+     * pending requests. A preview only goes back to the bitmap pool once nothing holds it.
+     * Weak, as the callers are not required to cancel their requests.
+     * Guarded by mBitmapPool.
+     */
+    private final WeakHashMap<Bitmap, Integer> mBitmapRefs = new WeakHashMap<>();
+
+    /**
+     * Mutable bitmaps which can be used as {@link BitmapFactory.Options#inBitmap}, bucketed by
+     * their allocation size.
      */
     @Thunk
-    final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    final TreeMap<Integer, ArrayDeque<Bitmap>> mBitmapPool = new TreeMap<>();
+    private final int mMaxPoolSizeBytes;
+    private int mPoolSizeBytes;
 
     private final Context mContext;
     private final IconCache mIconCache;
@@ -75,6 +119,36 @@ public class WidgetPreviewLoader {
     @Thunk
     final Handler mWorkerHandler;
 
+    // Runs the newest requests first, as those are for the rows which just became visible
+    private final ThreadPoolExecutor mLoaderExecutor;
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    // The bound widgets whose previews are not all known to be in the DB. Only accessed on UI
+    // thread, like mPrerenderTask.
+    @Thunk
+    ArrayList<WidgetItem> mPrerenderItems;
+    @Thunk
+    PrerenderTask mPrerenderTask;
+
+    // Metrics, printed by dump()
+    private final AtomicInteger mMemHitCount = new AtomicInteger();
+    @Thunk
+    final AtomicInteger mDbHitCount = new AtomicInteger();
+    @Thunk
+    final AtomicInteger mGeneratedCount = new AtomicInteger();
+    @Thunk
+    final AtomicInteger mCancelledCount = new AtomicInteger();
+    @Thunk
+    final AtomicInteger mPoolHitCount = new AtomicInteger();
+    @Thunk
+    final AtomicInteger mPoolMissCount = new AtomicInteger();
+    @Thunk
+    final AtomicLong mDecodeTimeNanos = new AtomicLong();
+    @Thunk
+    final AtomicLong mGenerateTimeNanos = new AtomicLong();
+    @Thunk
+    final AtomicInteger mPrerenderedCount = new AtomicInteger();
+
     public WidgetPreviewLoader(Context context, IconCache iconCache) {
         mContext = context;
         mIconCache = iconCache;
@@ -84,11 +158,47 @@ public class WidgetPreviewLoader {
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
         mProfileBadgeMargin = context.getResources()
                 .getDimensionPixelSize(R.dimen.profile_badge_margin);
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = am.getMemoryClass() * 1024 * 1024;
+        mMaxPoolSizeBytes = memoryClassBytes / BITMAP_POOL_FRACTION;
+        mMemCache = new LruCache<WidgetCacheKey, Bitmap>(memoryClassBytes / MEM_CACHE_FRACTION) {
+            @Override
+            protected int sizeOf(WidgetCacheKey key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, WidgetCacheKey key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                releaseBitmap(oldValue);
+            }
+        };
+
+        mLoaderExecutor = new ThreadPoolExecutor(LOADER_THREAD_COUNT, LOADER_THREAD_COUNT,
+                LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "launcher-widget-preview-" + mCount.incrementAndGet());
+                    }
+                });
+        // The threads are only needed while the widget tray is open
+        mLoaderExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Applies the widget preview to {@param caller}, right away if it is in the memory cache and
+     * otherwise once it has been loaded or generated in the background. Must be called on UI
+     * thread.
      *
      * @return a request id which can be used to cancel the request.
      */
@@ -97,9 +207,153 @@ public class WidgetPreviewLoader {
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
 
-        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
-        return new PreviewLoadRequest(task);
+        Bitmap preview = mMemCache.get(key);
+        if (preview != null) {
+            mMemHitCount.incrementAndGet();
+            PreviewLoadRequest request = new PreviewLoadRequest(null);
+            request.setPreview(preview);
+            caller.applyPreview(preview);
+            return request;
+        }
+
+        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller,
+                mRequestCount.incrementAndGet());
+        PreviewLoadRequest request = new PreviewLoadRequest(task);
+        task.mRequest = request;
+        mLoaderExecutor.execute(task);
+        return request;
+    }
+
+    /**
+     * Releases memory held by the memory cache depending on {@param level}.
+     *
+     * @see ComponentCallbacks2#onTrimMemory(int)
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Everything can be reloaded from the DB when needed.
+            mMemCache.evictAll();
+            clearBitmapPool();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemCache.trimToSize(mMemCache.maxSize() / 2);
+            clearBitmapPool();
+        }
+    }
+
+    /**
+     * Remembers the bound widgets, so that their missing previews can be rendered ahead of time
+     * by {@link #startPrerender(Launcher)}. Must be called on UI thread.
+     */
+    public void setPrerenderWidgets(MultiHashMap<PackageItemInfo, WidgetItem> widgets) {
+        ArrayList<WidgetItem> items = new ArrayList<>();
+        for (ArrayList<WidgetItem> packageItems : widgets.values()) {
+            items.addAll(packageItems);
+        }
+        mPrerenderItems = items;
+    }
+
+    /**
+     * Renders the previews which are missing from the DB, or stale, in the background so that
+     * the widget tray can be served from the DB. Only starts if the device is idle or charging.
+     * Must be called on UI thread while the launcher isn't interactive.
+     */
+    public void startPrerender(Launcher launcher) {
+        if (mPrerenderItems == null || mPrerenderTask != null || !isIdleOrCharging()) {
+            return;
+        }
+        mPrerenderTask = new PrerenderTask(launcher, mPrerenderItems,
+                WidgetCell.getPresetPreviewSize(launcher));
+        mLoaderExecutor.execute(mPrerenderTask);
+    }
+
+    /**
+     * Interrupts the prerendering, which continues on the next {@link #startPrerender(Launcher)}.
+     * Must be called on UI thread as soon as the launcher becomes interactive.
+     */
+    public void stopPrerender() {
+        if (mPrerenderTask != null) {
+            mPrerenderTask.cancel();
+            mPrerenderTask = null;
+        }
+    }
+
+    @Thunk
+    boolean isIdleOrCharging() {
+        if (Utilities.isPowerSaverOn(mContext)) {
+            return false;
+        }
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (pm != null && (!pm.isInteractive()
+                || (Utilities.ATLEAST_MARSHMALLOW && pm.isDeviceIdleMode()))) {
+            return true;
+        }
+        // ACTION_BATTERY_CHANGED is sticky, no receiver is needed to get the current state
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Returns the previews of the given size which are in the DB and up to date.
+     */
+    @Thunk
+    HashSet<WidgetCacheKey> getUpToDatePreviews(String size) {
+        HashSet<WidgetCacheKey> previews = new HashSet<>();
+        Cursor c = null;
+        try {
+            c = mDb.query(
+                    new String[]{CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_USER,
+                            CacheDb.COLUMN_VERSION, CacheDb.COLUMN_LAST_UPDATED},
+                    CacheDb.COLUMN_SIZE + " = ?", new String[]{size});
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                UserHandle user = mUserManager.getUserForSerialNumber(c.getLong(1));
+                if (cn == null || user == null) {
+                    continue;
+                }
+                long[] versions = getPackageVersion(cn.getPackageName());
+                if (versions[0] == c.getLong(2) && versions[1] == c.getLong(3)) {
+                    previews.add(new WidgetCacheKey(cn, user, size));
+                }
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Error reading widget previews", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return previews;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        int memHits = mMemHitCount.get();
+        int dbHits = mDbHitCount.get();
+        int generated = mGeneratedCount.get();
+        int requests = memHits + dbHits + generated;
+        int poolSize;
+        synchronized (mBitmapPool) {
+            poolSize = mPoolSizeBytes;
+        }
+        writer.println(prefix + "WidgetPreviewLoader: size=" + (mMemCache.size() / 1024) + "KB"
+                + " max=" + (mMemCache.maxSize() / 1024) + "KB"
+                + " pool=" + (poolSize / 1024) + "KB"
+                + " queued=" + mLoaderExecutor.getQueue().size());
+        writer.println(prefix + "  memHits=" + memHits
+                + " dbHits=" + dbHits
+                + " generated=" + generated
+                + " cancelled=" + mCancelledCount.get()
+                + " hitRate=" + (requests == 0 ? 0 : (memHits + dbHits) * 100 / requests) + "%");
+        writer.println(prefix + "  avgDecode=" + averageMillis(mDecodeTimeNanos.get(), dbHits)
+                + "ms avgGenerate=" + averageMillis(mGenerateTimeNanos.get(), generated)
+                + "ms poolHits=" + mPoolHitCount.get()
+                + " poolMisses=" + mPoolMissCount.get()
+                + " prerendered=" + mPrerenderedCount.get()
+                + (mPrerenderTask != null ? " (prerendering)" : ""));
+    }
+
+    private static float averageMillis(long totalNanos, int count) {
+        return count == 0 ? 0 : Math.round(totalNanos / 1000f / count) / 1000f;
     }
 
     /**
@@ -107,7 +361,7 @@ public class WidgetPreviewLoader {
      * sizes (landscape vs portrait).
      */
     private static class CacheDb extends SQLiteCacheHelper {
-        private static final int DB_VERSION = 4;
+        private static final int DB_VERSION = 5;
 
         private static final String TABLE_NAME = "shortcut_and_widget_previews";
         private static final String COLUMN_COMPONENT = "componentName";
@@ -120,6 +374,8 @@ public class WidgetPreviewLoader {
 
         public CacheDb(Context context) {
             super(context, LauncherFiles.WIDGET_PREVIEWS_DB, DB_VERSION, TABLE_NAME);
+            // The previews are read while the prerendered ones are written
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -139,29 +395,43 @@ public class WidgetPreviewLoader {
 
     @Thunk
     void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
+        mDb.insertOrReplace(getPreviewValues(key, versions, preview));
+    }
+
+    @Thunk
+    ContentValues getPreviewValues(WidgetCacheKey key, long[] versions, Bitmap preview) {
         ContentValues values = new ContentValues();
-        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToShortString());
+        // Must match the lookup in readFromDb
+        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToString());
         values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
         values.put(CacheDb.COLUMN_SIZE, key.size);
         values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
         values.put(CacheDb.COLUMN_VERSION, versions[0]);
         values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
         values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
-        mDb.insertOrReplace(values);
+        return values;
     }
 
     public void removePackage(String packageName, UserHandle user) {
-        removePackage(packageName, mUserManager.getSerialNumberForUser(user));
+        long userSerial = mUserManager.getSerialNumberForUser(user);
+        removePackageFromMemory(packageName, userSerial);
+        mDb.delete(PACKAGE_SELECTION, getPackageSelectionArgs(packageName, userSerial));
     }
 
-    private void removePackage(String packageName, long userSerial) {
+    private void removePackageFromMemory(String packageName, long userSerial) {
         synchronized (mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        for (WidgetCacheKey key : mMemCache.snapshot().keySet()) {
+            if (key.componentName.getPackageName().equals(packageName)
+                    && mUserManager.getSerialNumberForUser(key.user) == userSerial) {
+                mMemCache.remove(key);
+            }
+        }
+    }
 
-        mDb.delete(
-                CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
-                new String[]{packageName, Long.toString(userSerial)});
+    private static String[] getPackageSelectionArgs(String packageName, long userSerial) {
+        return new String[]{packageName, Long.toString(userSerial)};
     }
 
     /**
@@ -214,12 +484,16 @@ public class WidgetPreviewLoader {
                 packages.add(pkg);
             }
 
+            // All the obsolete packages are removed in a single transaction
+            SQLiteCacheHelper.Batch batch = mDb.newBatch(Integer.MAX_VALUE);
             for (int i = 0; i < packagesToDelete.size(); i++) {
                 long userId = packagesToDelete.keyAt(i);
                 for (String pkg : packagesToDelete.valueAt(i)) {
-                    removePackage(pkg, userId);
+                    removePackageFromMemory(pkg, userId);
+                    batch.delete(PACKAGE_SELECTION, getPackageSelectionArgs(pkg, userId));
                 }
             }
+            batch.commit();
         } catch (SQLException e) {
             Log.e(TAG, "Error updating widget previews", e);
         } finally {
@@ -229,6 +503,93 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Returns a mutable bitmap of the given size, reusing one from the pool if possible.
+     */
+    @Thunk
+    Bitmap acquireBitmap(int width, int height) {
+        int byteCount = width * height * 4;
+        Bitmap bitmap = null;
+        synchronized (mBitmapPool) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = mBitmapPool.ceilingEntry(byteCount);
+            // Don't waste a much bigger bitmap on a small preview
+            if (bucket != null && bucket.getKey() <= byteCount * 2) {
+                bitmap = bucket.getValue().poll();
+                if (bucket.getValue().isEmpty()) {
+                    mBitmapPool.remove(bucket.getKey());
+                }
+                mPoolSizeBytes -= bucket.getKey();
+            }
+        }
+        if (bitmap != null) {
+            mPoolHitCount.incrementAndGet();
+            bitmap.reconfigure(width, height, Config.ARGB_8888);
+            return bitmap;
+        }
+        mPoolMissCount.incrementAndGet();
+        return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    }
+
+    /**
+     * Returns {@param bitmap} to the pool, if it has room for it. Must only be called once
+     * nothing uses the bitmap anymore.
+     */
+    @Thunk
+    void recycleBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Config.ARGB_8888) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        synchronized (mBitmapPool) {
+            if (mPoolSizeBytes + byteCount > mMaxPoolSizeBytes) {
+                return;
+            }
+            ArrayDeque<Bitmap> bucket = mBitmapPool.get(byteCount);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mBitmapPool.put(byteCount, bucket);
+            }
+            bucket.add(bitmap);
+            mPoolSizeBytes += byteCount;
+        }
+    }
+
+    private void clearBitmapPool() {
+        synchronized (mBitmapPool) {
+            mBitmapPool.clear();
+            mPoolSizeBytes = 0;
+        }
+    }
+
+    @Thunk
+    void retainBitmap(Bitmap bitmap) {
+        synchronized (mBitmapPool) {
+            Integer count = mBitmapRefs.get(bitmap);
+            mBitmapRefs.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Releases a hold taken by {@link #retainBitmap(Bitmap)} and recycles the bitmap once
+     * nothing holds it anymore.
+     */
+    @Thunk
+    void releaseBitmap(Bitmap bitmap) {
+        synchronized (mBitmapPool) {
+            Integer count = mBitmapRefs.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mBitmapRefs.put(bitmap, count - 1);
+            } else {
+                mBitmapRefs.remove(bitmap);
+                recycleBitmap(bitmap);
+            }
+        }
+    }
+
     /**
      * Reads the preview bitmap from the DB or null if the preview is not in the DB.
      */
@@ -497,40 +858,58 @@ public class WidgetPreviewLoader {
 
         @Thunk
         final PreviewLoadTask mTask;
+        // The preview applied to the caller, held until the request is cancelled
+        private Bitmap mPreview;
 
-        public PreviewLoadRequest(PreviewLoadTask task) {
+        PreviewLoadRequest(PreviewLoadTask task) {
             mTask = task;
         }
 
+        @Thunk
+        void setPreview(Bitmap preview) {
+            retainBitmap(preview);
+            mPreview = preview;
+        }
+
+        /**
+         * Same as {@link #cancel()}, the preview can be reused once the caller stopped using it.
+         */
         public void cleanup() {
+            cancel();
+        }
+
+        /**
+         * Cancels the request if it is still pending, and releases its preview. Must be called on
+         * UI thread, after the caller stopped showing the preview.
+         */
+        public void cancel() {
             if (mTask != null) {
-                mTask.cancel(true);
+                mTask.cancel();
             }
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mTask.mBitmapToRecycle != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mTask.mBitmapToRecycle);
-                        }
-                        mTask.mBitmapToRecycle = null;
-                    }
-                });
+            if (mPreview != null) {
+                releaseBitmap(mPreview);
+                mPreview = null;
             }
         }
+    }
 
-        public void cancel() {
-            mTask.cancel(true);
+    /**
+     * A job of {@link #mLoaderExecutor}, which runs the jobs with the highest sequence first.
+     */
+    abstract static class LoaderJob implements Runnable, Comparable<LoaderJob> {
+        private final long mSequence;
+
+        LoaderJob(long sequence) {
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(LoaderJob other) {
+            return Long.compare(other.mSequence, mSequence);
         }
     }
 
-    public class PreviewLoadTask extends AsyncTask<Void, Void, Bitmap> {
+    public class PreviewLoadTask extends LoaderJob {
         @Thunk
         final WidgetCacheKey mKey;
         private final WidgetItem mInfo;
@@ -538,12 +917,16 @@ public class WidgetPreviewLoader {
         private final int mPreviewWidth;
         private final WidgetCell mCaller;
         @Thunk
-        long[] mVersions;
+        PreviewLoadRequest mRequest;
         @Thunk
-        Bitmap mBitmapToRecycle;
+        long[] mVersions;
+        private volatile boolean mCancelled;
+        // Only accessed on UI thread
+        private boolean mDelivered;
 
         PreviewLoadTask(WidgetCacheKey key, WidgetItem info, int previewWidth,
-                        int previewHeight, WidgetCell caller) {
+                        int previewHeight, WidgetCell caller, long sequence) {
+            super(sequence);
             mKey = key;
             mInfo = info;
             mPreviewHeight = previewHeight;
@@ -551,38 +934,34 @@ public class WidgetPreviewLoader {
             mCaller = caller;
         }
 
-        @Override
-        protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
+        public boolean isCancelled() {
+            return mCancelled;
+        }
 
-            // If already cancelled before this gets to run in the background, then return early
-            if (isCancelled()) {
-                return null;
-            }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
+        @Thunk
+        void cancel() {
+            if (!mCancelled && !mDelivered) {
+                mCancelledCount.incrementAndGet();
             }
+            mCancelled = true;
+            // Drop the task right away if it didn't start yet
+            mLoaderExecutor.remove(this);
+        }
 
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
-            }
-            // If cancelled now, don't bother reading the preview from the DB
-            if (isCancelled()) {
-                return unusedBitmap;
+        @Override
+        public void run() {
+            // If already cancelled before this gets to run in the background, then return early
+            if (mCancelled) {
+                return;
             }
+            Bitmap unusedBitmap = acquireBitmap(mPreviewWidth, mPreviewHeight);
+
+            long start = System.nanoTime();
             Bitmap preview = readFromDb(mKey, unusedBitmap, this);
-            // Only consider generating the preview if we have not cancelled the task already
-            if (!isCancelled() && preview == null) {
+            if (preview != null) {
+                mDbHitCount.incrementAndGet();
+                mDecodeTimeNanos.addAndGet(System.nanoTime() - start);
+            } else if (!mCancelled) {
                 // Fetch the version info before we generate the preview, so that, in-case the
                 // app was updated while we are generating the preview, we use the old version info,
                 // which would gets re-written next time.
@@ -591,56 +970,131 @@ public class WidgetPreviewLoader {
                 Launcher launcher = Launcher.getLauncher(mCaller.getContext());
 
                 // it's not in the db... we need to generate it
+                start = System.nanoTime();
                 preview = generatePreview(launcher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
+                mGeneratedCount.incrementAndGet();
+                mGenerateTimeNanos.addAndGet(System.nanoTime() - start);
+            }
+            if (preview != unusedBitmap) {
+                recycleBitmap(unusedBitmap);
+            }
+            if (preview == null) {
+                return;
             }
-            return preview;
+
+            final Bitmap result = preview;
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPreviewLoaded(result);
+                }
+            });
         }
 
-        @Override
-        protected void onPostExecute(final Bitmap preview) {
+        @Thunk
+        void onPreviewLoaded(final Bitmap preview) {
+            if (mCancelled) {
+                recycleBitmap(preview);
+                return;
+            }
+            mDelivered = true;
+
+            retainBitmap(preview);
+            mMemCache.put(mKey, preview);
+            mRequest.setPreview(preview);
             mCaller.applyPreview(preview);
 
             // Write the generated preview to the DB in the worker thread
             if (mVersions != null) {
+                retainBitmap(preview);
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
+                        writeToDb(mKey, mVersions, preview);
+                        releaseBitmap(preview);
                     }
                 });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
             }
         }
+    }
+
+    /**
+     * Renders the missing previews of the bound widgets and writes them to the DB in batches.
+     * Runs after every request for a visible preview, and stops as soon as it is cancelled or the
+     * device is neither idle nor charging anymore.
+     */
+    private class PrerenderTask extends LoaderJob {
+        private final Launcher mLauncher;
+        private final ArrayList<WidgetItem> mItems;
+        private final int mSize;
+        private volatile boolean mCancelled;
+
+        PrerenderTask(Launcher launcher, ArrayList<WidgetItem> items, int size) {
+            super(0);
+            mLauncher = launcher;
+            mItems = items;
+            mSize = size;
+        }
+
+        @Thunk
+        void cancel() {
+            mCancelled = true;
+            mLoaderExecutor.remove(this);
+        }
 
         @Override
-        protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
-            if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
-                    }
-                });
+        public void run() {
+            long start = SystemClock.uptimeMillis();
+            String size = mSize + "x" + mSize;
+            HashSet<WidgetCacheKey> upToDate = getUpToDatePreviews(size);
+            SQLiteCacheHelper.Batch batch = mDb.newBatch(PRERENDER_BATCH_SIZE);
+            Bitmap bitmap = acquireBitmap(mSize, mSize);
+            int rendered = 0;
+            boolean completed = true;
+
+            for (WidgetItem item : mItems) {
+                if (mCancelled || !isIdleOrCharging()) {
+                    completed = false;
+                    break;
+                }
+                WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
+                if (upToDate.contains(key)) {
+                    continue;
+                }
+                long[] versions = getPackageVersion(key.componentName.getPackageName());
+                try {
+                    // Previews of shortcuts shrink the bitmap they draw into
+                    bitmap.reconfigure(mSize, mSize, Config.ARGB_8888);
+                    Bitmap preview = generatePreview(mLauncher, item, bitmap, mSize, mSize);
+                    batch.insertOrReplace(getPreviewValues(key, versions, preview));
+                    rendered++;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Error prerendering preview for " + item.componentName, e);
+                }
             }
+            // The rendered previews are valid even if the task got interrupted
+            batch.commit();
+            recycleBitmap(bitmap);
+            mPrerenderedCount.addAndGet(rendered);
+
+            if (LauncherModel.DEBUG_LOADERS) {
+                Log.d(TAG, "prerendered " + rendered + " widget previews in "
+                        + (SystemClock.uptimeMillis() - start) + "ms"
+                        + (completed ? "" : " (interrupted)"));
+            }
+
+            final boolean allRendered = completed;
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPrerenderTask == PrerenderTask.this) {
+                        mPrerenderTask = null;
+                    }
+                    if (allRendered && mPrerenderItems == mItems) {
+                        mPrerenderItems = null;
+                    }
+                }
+            });
         }
     }
 
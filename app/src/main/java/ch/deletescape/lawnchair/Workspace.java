@@ -147,8 +147,10 @@ public class Workspace extends PagedView
      */
     @Thunk
     int[] mTargetCell = new int[2];
-    private int mDragOverX = -1;
-    private int mDragOverY = -1;
+    @Thunk
+    int mDragOverX = -1;
+    @Thunk
+    int mDragOverY = -1;
 
     /**
      * The CellLayout that is currently being dragged over
@@ -172,6 +174,10 @@ public class Workspace extends PagedView
     @Thunk
     DragController mDragController;
 
+    // Views of the bound items, by item id and by package
+    private final ItemViewIndex mItemViewIndex = new ItemViewIndex();
+    private final ArrayList<View> mTempBadgeViews = new ArrayList<>();
+
     // These are temporary variables to prevent having to allocate a new object just to
     // return an (x, y) value from helper functions. Do NOT use them to maintain other state.
     private static final Rect sTempRect = new Rect();
@@ -179,6 +185,7 @@ public class Workspace extends PagedView
     @Thunk
     float[] mDragViewVisualCenter = new float[2];
     private float[] mTempCellLayoutCenterCoordinates = new float[2];
+    private final float[] mTempTouchCoordinates = new float[2];
     private int[] mTempVisiblePagesRange = new int[2];
     private Matrix mTempMatrix = new Matrix();
 
@@ -632,6 +639,9 @@ public class Workspace extends PagedView
             ((ViewGroup) qsb.getParent()).removeView(qsb);
         }
         // Remove the pages and clear the screen models
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            mItemViewIndex.removeContainer(((CellLayout) getChildAt(i)).getShortcutsAndWidgets());
+        }
         removeAllViews();
         mScreenOrder.clear();
         mWorkspaceScreens.clear();
@@ -669,6 +679,7 @@ public class Workspace extends PagedView
         newScreen.setOnLongClickListener(mLongClickListener);
         newScreen.setOnClickListener(mLauncher);
         newScreen.setSoundEffectsEnabled(false);
+        mItemViewIndex.addContainer(newScreen.getShortcutsAndWidgets());
         mWorkspaceScreens.put(screenId, newScreen);
         mScreenOrder.add(insertIndex, screenId);
         addView(newScreen, insertIndex);
@@ -1983,6 +1994,9 @@ public class Workspace extends PagedView
     @Override
     public void onLauncherTransitionEnd(boolean toWorkspace) {
         mIsSwitchingState = false;
+        if (mDragController != null) {
+            mDragController.invalidateDropTargets();
+        }
         updateChildrenLayersEnabled(false);
         mForceDrawAdjacentPages = false;
         if (mState == State.SPRING_LOADED) {
@@ -2658,6 +2672,10 @@ public class Workspace extends PagedView
         if (cancelAlarm) {
             mReorderAlarm.cancelAlarm();
         }
+        // A solution still being searched for would apply a reorder which is no longer wanted
+        if (mDragTargetLayout != null) {
+            mDragTargetLayout.cancelPendingReorder();
+        }
         mLastReorderX = -1;
         mLastReorderY = -1;
     }
@@ -2731,7 +2749,9 @@ public class Workspace extends PagedView
 
             CellLayout cl = (CellLayout) getChildAt(i);
 
-            final float[] touchXy = {originX, originY};
+            final float[] touchXy = mTempTouchCoordinates;
+            touchXy[0] = originX;
+            touchXy[1] = originY;
             mapPointFromSelfToChild(cl, touchXy);
 
             if (touchXy[0] >= 0 && touchXy[0] <= cl.getWidth() &&
@@ -2833,10 +2853,10 @@ public class Workspace extends PagedView
                     && !mReorderAlarm.alarmPending() && (mLastReorderX != reorderX ||
                     mLastReorderY != reorderY)) {
 
-                int[] resultSpan = new int[2];
-                mDragTargetLayout.performReorder((int) mDragViewVisualCenter[0],
+                mDragTargetLayout.performReorderAsync((int) mDragViewVisualCenter[0],
                         (int) mDragViewVisualCenter[1], minSpanX, minSpanY, item.spanX, item.spanY,
-                        child, mTargetCell, resultSpan, CellLayout.MODE_SHOW_REORDER_HINT);
+                        child, CellLayout.MODE_SHOW_REORDER_HINT,
+                        new ReorderHintListener(mDragTargetLayout, reorderX, reorderY));
 
                 // Otherwise, if we aren't adding to or creating a folder and there's no pending
                 // reorder, then we schedule a reorder
@@ -2971,7 +2991,29 @@ public class Workspace extends PagedView
         }
     }
 
-    class ReorderAlarmListener implements OnAlarmListener {
+    /**
+     * Updates the target cell with the result of a reorder hint, as long as the drag is still
+     * over the cell the hint was shown for.
+     */
+    class ReorderHintListener implements CellLayout.ReorderCallback {
+        private final CellLayout mLayout;
+        private final int mCellX, mCellY;
+
+        ReorderHintListener(CellLayout layout, int cellX, int cellY) {
+            mLayout = layout;
+            mCellX = cellX;
+            mCellY = cellY;
+        }
+
+        @Override
+        public void onReorderComplete(int[] result, int[] resultSpan) {
+            if (mDragTargetLayout == mLayout && mDragOverX == mCellX && mDragOverY == mCellY) {
+                mTargetCell = result;
+            }
+        }
+    }
+
+    class ReorderAlarmListener implements OnAlarmListener, CellLayout.ReorderCallback {
         int minSpanX, minSpanY, spanX, spanY;
         DragObject dragObject;
         View child;
@@ -2988,17 +3030,25 @@ public class Workspace extends PagedView
 
         @Override
         public void onAlarm(Alarm alarm) {
-            int[] resultSpan = new int[2];
             mTargetCell = findNearestArea((int) mDragViewVisualCenter[0],
                     (int) mDragViewVisualCenter[1], minSpanX, minSpanY, mDragTargetLayout,
                     mTargetCell);
             mLastReorderX = mTargetCell[0];
             mLastReorderY = mTargetCell[1];
 
-            mTargetCell = mDragTargetLayout.performReorder((int) mDragViewVisualCenter[0],
+            // The drop location is updated once the solution is found, if the drag is still
+            // over the same cell by then
+            mDragTargetLayout.performReorderAsync((int) mDragViewVisualCenter[0],
                     (int) mDragViewVisualCenter[1], minSpanX, minSpanY, spanX, spanY,
-                    child, mTargetCell, resultSpan, CellLayout.MODE_DRAG_OVER);
+                    child, CellLayout.MODE_DRAG_OVER, this);
+        }
 
+        @Override
+        public void onReorderComplete(int[] result, int[] resultSpan) {
+            if (mDragTargetLayout == null) {
+                return;
+            }
+            mTargetCell = result;
             if (mTargetCell[0] < 0 || mTargetCell[1] < 0) {
                 mDragTargetLayout.revertTempState();
             } else {
@@ -3354,6 +3404,9 @@ public class Workspace extends PagedView
     void setup(DragController dragController) {
         mSpringLoadedDragController = new SpringLoadedDragController(mLauncher);
         mDragController = dragController;
+        if (mLauncher.getHotseat() != null) {
+            mItemViewIndex.addContainer(mLauncher.getHotseat().getLayout().getShortcutsAndWidgets());
+        }
 
         // hardware layers on children are enabled on startup, but should be disabled until
         // needed
@@ -3634,7 +3687,15 @@ public class Workspace extends PagedView
         return childrenLayouts;
     }
 
+    public ItemViewIndex getItemViewIndex() {
+        return mItemViewIndex;
+    }
+
     public View getHomescreenIconByItemId(final long id) {
+        View view = mItemViewIndex.getTopLevelView(id);
+        if (view != null) {
+            return view;
+        }
         return getFirstMatch(new ItemOperator() {
 
             @Override
@@ -3645,6 +3706,12 @@ public class Workspace extends PagedView
     }
 
     public View getViewForTag(final Object tag) {
+        if (tag instanceof ItemInfo) {
+            View view = mItemViewIndex.getTopLevelView(((ItemInfo) tag).id);
+            if (view != null && view.getTag() == tag) {
+                return view;
+            }
+        }
         return getFirstMatch(new ItemOperator() {
 
             @Override
@@ -3826,63 +3893,94 @@ public class Workspace extends PagedView
             folderIds.add(s.container);
         }
 
-        mapOverItems(MAP_RECURSE, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                if (info instanceof ShortcutInfo && v instanceof BubbleTextView &&
-                        updates.contains(info)) {
-                    ShortcutInfo si = (ShortcutInfo) info;
-                    BubbleTextView shortcut = (BubbleTextView) v;
-                    Drawable oldIcon = getTextViewIcon(shortcut);
-                    boolean oldPromiseState = (oldIcon instanceof PreloadIconDrawable)
-                            && ((PreloadIconDrawable) oldIcon).hasNotCompleted();
-                    shortcut.applyFromShortcutInfo(si, si.isPromise() != oldPromiseState);
-                }
-                // process all the shortcuts
-                return false;
+        // Look up the views in the index, and only walk the items if some of them are missing
+        boolean indexed = true;
+        for (int i = 0; i < total; i++) {
+            ShortcutInfo s = shortcuts.get(i);
+            View v = mItemViewIndex.getView(s.id);
+            if (!(v instanceof BubbleTextView) || v.getTag() != s) {
+                indexed = false;
+                break;
             }
-        });
+        }
+        if (indexed) {
+            for (int i = 0; i < total; i++) {
+                ShortcutInfo s = shortcuts.get(i);
+                updateShortcut(s, (BubbleTextView) mItemViewIndex.getView(s.id));
+            }
+        } else {
+            mapOverItems(MAP_RECURSE, new ItemOperator() {
+                @Override
+                public boolean evaluate(ItemInfo info, View v) {
+                    if (info instanceof ShortcutInfo && v instanceof BubbleTextView &&
+                            updates.contains(info)) {
+                        updateShortcut((ShortcutInfo) info, (BubbleTextView) v);
+                    }
+                    // process all the shortcuts
+                    return false;
+                }
+            });
+        }
 
         // Update folder icons
-        mapOverItems(MAP_NO_RECURSE, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                if (info instanceof FolderInfo && folderIds.contains(info.id)) {
-                    ((FolderInfo) info).itemsChanged(false);
+        if (indexed) {
+            for (long folderId : folderIds) {
+                View v = mItemViewIndex.getTopLevelView(folderId);
+                if (v != null && v.getTag() instanceof FolderInfo) {
+                    ((FolderInfo) v.getTag()).itemsChanged(false);
                 }
-                // process all the shortcuts
-                return false;
             }
-        });
+        } else {
+            mapOverItems(MAP_NO_RECURSE, new ItemOperator() {
+                @Override
+                public boolean evaluate(ItemInfo info, View v) {
+                    if (info instanceof FolderInfo && folderIds.contains(info.id)) {
+                        ((FolderInfo) info).itemsChanged(false);
+                    }
+                    // process all the shortcuts
+                    return false;
+                }
+            });
+        }
     }
 
+    @Thunk
+    void updateShortcut(ShortcutInfo si, BubbleTextView shortcut) {
+        Drawable oldIcon = getTextViewIcon(shortcut);
+        boolean oldPromiseState = (oldIcon instanceof PreloadIconDrawable)
+                && ((PreloadIconDrawable) oldIcon).hasNotCompleted();
+        shortcut.applyFromShortcutInfo(si, si.isPromise() != oldPromiseState);
+    }
+
+
+    public void updateIconBadges(final Set<PackageUserKey> set) {
+        // Only the views of the updated packages are visited
+        ArrayList<View> views = mTempBadgeViews;
+        for (PackageUserKey key : set) {
+            mItemViewIndex.getViewsForPackage(key, views);
+        }
+        PackageUserKey packageUserKey = new PackageUserKey(null, null);
+        HashSet<Long> folderIds = new HashSet<>();
+        for (int i = views.size() - 1; i >= 0; i--) {
+            View view = views.get(i);
+            ItemInfo itemInfo = (ItemInfo) view.getTag();
+            if ((itemInfo instanceof ShortcutInfo) && (view instanceof BubbleTextView) && packageUserKey.updateFromItemInfo(itemInfo) && set.contains(packageUserKey)) {
+                ((BubbleTextView) view).applyBadgeState(itemInfo, true);
+                folderIds.add(itemInfo.container);
+            }
+        }
+        views.clear();
 
-    public void updateIconBadges(final Set set) {
-        final PackageUserKey packageUserKey = new PackageUserKey(null, null);
-        final HashSet hashSet = new HashSet();
-        mapOverItems(true, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo itemInfo, View view) {
-                if ((itemInfo instanceof ShortcutInfo) && (view instanceof BubbleTextView) && packageUserKey.updateFromItemInfo(itemInfo) && set.contains(packageUserKey)) {
-                    ((BubbleTextView) view).applyBadgeState(itemInfo, true);
-                    hashSet.add(itemInfo.container);
+        for (long folderId : folderIds) {
+            View view = mItemViewIndex.getTopLevelView(folderId);
+            if ((view instanceof FolderIcon) && (view.getTag() instanceof FolderInfo)) {
+                FolderBadgeInfo folderBadgeInfo = new FolderBadgeInfo();
+                for (ShortcutInfo badgeInfoForItem : ((FolderInfo) view.getTag()).contents) {
+                    folderBadgeInfo.addBadgeInfo(mLauncher.getPopupDataProvider().getBadgeInfoForItem(badgeInfoForItem));
                 }
-                return false;
+                ((FolderIcon) view).setBadgeInfo(folderBadgeInfo);
             }
-        });
-        mapOverItems(false, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo itemInfo, View view) {
-                if ((itemInfo instanceof FolderInfo) && hashSet.contains(itemInfo.id) && (view instanceof FolderIcon)) {
-                    FolderBadgeInfo folderBadgeInfo = new FolderBadgeInfo();
-                    for (ShortcutInfo badgeInfoForItem : ((FolderInfo) itemInfo).contents) {
-                        folderBadgeInfo.addBadgeInfo(Workspace.this.mLauncher.getPopupDataProvider().getBadgeInfoForItem(badgeInfoForItem));
-                    }
-                    ((FolderIcon) view).setBadgeInfo(folderBadgeInfo);
-                }
-                return false;
-            }
-        });
+        }
     }
 
     public void removeAbandonedPromise(String packageName, UserHandle user) {
@@ -3893,7 +3991,7 @@ public class Workspace extends PagedView
     }
 
     public void updateRestoreItems(final HashSet<ItemInfo> updates) {
-        mapOverItems(MAP_RECURSE, new ItemOperator() {
+        final ItemOperator op = new ItemOperator() {
             @Override
             public boolean evaluate(ItemInfo info, View v) {
                 if (info instanceof ShortcutInfo && v instanceof BubbleTextView
@@ -3907,7 +4005,21 @@ public class Workspace extends PagedView
                 // process all the shortcuts
                 return false;
             }
-        });
+        };
+
+        // Look up the views in the index, and only walk the items if some of them are missing
+        ArrayList<View> views = new ArrayList<>(updates.size());
+        for (ItemInfo info : updates) {
+            View v = mItemViewIndex.getView(info.id);
+            if (v == null || v.getTag() != info) {
+                mapOverItems(MAP_RECURSE, op);
+                return;
+            }
+            views.add(v);
+        }
+        for (View v : views) {
+            op.evaluate((ItemInfo) v.getTag(), v);
+        }
     }
 
     public void widgetsRestored(final ArrayList<LauncherAppWidgetInfo> changedInfo) {
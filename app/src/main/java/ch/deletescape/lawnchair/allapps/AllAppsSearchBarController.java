@@ -69,6 +69,7 @@ public abstract class AllAppsSearchBarController
                 mInput.getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
 
         mSearchAlgorithm = onInitializeSearch();
+        mApps.setSearchIndex(mSearchAlgorithm.getIndex());
     }
 
     /**
@@ -19,7 +19,9 @@ import android.content.Context;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -27,6 +29,7 @@ import java.util.TreeMap;
 
 import ch.deletescape.lawnchair.AppFilter;
 import ch.deletescape.lawnchair.AppInfo;
+import ch.deletescape.lawnchair.ItemInfo;
 import ch.deletescape.lawnchair.Launcher;
 import ch.deletescape.lawnchair.LauncherAppState;
 import ch.deletescape.lawnchair.compat.AlphabeticIndexCompat;
@@ -151,8 +154,9 @@ public class AlphabeticalAppsList {
 
     private Launcher mLauncher;
 
-    // The set of apps from the system
+    // The set of apps from the system, sorted and filtered
     private final List<AppInfo> mApps = new ArrayList<>();
+    // The sorted set of apps from the system
     private final List<AppInfo> mUnfilteredApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
 
@@ -167,6 +171,8 @@ public class AlphabeticalAppsList {
     // The of ordered component names as a result of a search query
     private ArrayList<ComponentKey> mSearchResults;
     private HashMap<CharSequence, String> mCachedSectionNames = new HashMap<>();
+    // The search index to keep up to date with the apps
+    private AppSearchIndex mSearchIndex;
     private AllAppsGridAdapter mAdapter;
     private AlphabeticIndexCompat mIndexer;
     private AppNameComparator mAppNameComparator;
@@ -263,12 +269,32 @@ public class AlphabeticalAppsList {
         return false;
     }
 
+    /**
+     * Sets the search index to update when the apps change.
+     */
+    public void setSearchIndex(AppSearchIndex index) {
+        mSearchIndex = index;
+        if (mSearchIndex != null) {
+            mSearchIndex.clear();
+            mSearchIndex.updateApps(mComponentToAppMap.values());
+        }
+    }
+
     /**
      * Sets the current set of apps.
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        if (mSearchIndex != null) {
+            mSearchIndex.clear();
+        }
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+        }
+        if (mSearchIndex != null) {
+            mSearchIndex.updateApps(apps);
+        }
+        onAppsUpdated();
     }
 
     /**
@@ -282,20 +308,94 @@ public class AlphabeticalAppsList {
      * Updates existing apps in the list
      */
     public void updateApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally();
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            AppInfo oldApp = mComponentToAppMap.put(app.toComponentKey(), app);
+            if (incremental) {
+                if (oldApp != null) {
+                    removeSortedApp(oldApp);
+                }
+                insertSortedApp(app);
+            }
+        }
+        if (mSearchIndex != null) {
+            mSearchIndex.updateApps(apps);
+        }
+        if (incremental) {
+            updateAdapterItems(new HashSet<>(apps));
+        } else {
+            onAppsUpdated();
         }
-        onAppsUpdated();
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally();
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            AppInfo oldApp = mComponentToAppMap.remove(app.toComponentKey());
+            if (incremental && oldApp != null) {
+                removeSortedApp(oldApp);
+            }
+        }
+        if (mSearchIndex != null) {
+            mSearchIndex.removeApps(apps);
+        }
+        if (incremental) {
+            updateAdapterItems(new HashSet<AppInfo>());
+        } else {
+            onAppsUpdated();
+        }
+    }
+
+    /**
+     * Returns true if apps can be inserted into and removed from the sorted lists, rather than
+     * sorting all the apps again.
+     */
+    private boolean canUpdateIncrementally() {
+        // The section sorting of some locales only works on the whole list
+        return !localeRequiresSectionSorting();
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        return curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+    }
+
+    private void insertSortedApp(AppInfo app) {
+        Comparator<ItemInfo> comparator = mAppNameComparator.getAppInfoComparator();
+        insertSorted(mUnfilteredApps, app, comparator);
+        AppFilter appFilter = getAppFilter();
+        if (appFilter == null || appFilter.shouldShowApp(app.componentName,
+                LauncherAppState.getInstance().getContext())) {
+            insertSorted(mApps, app, comparator);
+        }
+    }
+
+    private void removeSortedApp(AppInfo app) {
+        Comparator<ItemInfo> comparator = mAppNameComparator.getAppInfoComparator();
+        removeSorted(mUnfilteredApps, app, comparator);
+        removeSorted(mApps, app, comparator);
+    }
+
+    private static void insertSorted(List<AppInfo> list, AppInfo app,
+                                     Comparator<ItemInfo> comparator) {
+        int index = Collections.binarySearch(list, app, comparator);
+        list.add(index < 0 ? -index - 1 : index, app);
+    }
+
+    private static void removeSorted(List<AppInfo> list, AppInfo app,
+                                     Comparator<ItemInfo> comparator) {
+        int index = Collections.binarySearch(list, app, comparator);
+        if (index < 0 || list.get(index) != app) {
+            // The app was modified in place since it was inserted, so it may not be where its
+            // current title would put it.
+            index = list.indexOf(app);
+        }
+        if (index >= 0) {
+            list.remove(index);
         }
-        onAppsUpdated();
     }
 
     /**
@@ -309,10 +409,8 @@ public class AlphabeticalAppsList {
 
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap;
-        boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
-        if (localeRequiresSectionSorting) {
+        if (localeRequiresSectionSorting()) {
             // Compute the section headers.  We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
             sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
@@ -356,18 +454,103 @@ public class AlphabeticalAppsList {
         mUnfilteredApps.addAll(mApps);
         mApps.clear();
         Context context = LauncherAppState.getInstance().getContext();
-        AppFilter appFilter = LauncherAppState.getInstance().getLauncher().getModel().getAllAppsList().getAppFilter();
+        AppFilter appFilter = getAppFilter();
         for (AppInfo info : mUnfilteredApps) {
             if (appFilter == null || appFilter.shouldShowApp(info.componentName, context))
                 mApps.add(info);
         }
     }
 
+    private AppFilter getAppFilter() {
+        return LauncherAppState.getInstance().getLauncher().getModel().getAllAppsList().getAppFilter();
+    }
+
+    /**
+     * Updates the adapter items after apps were inserted into or removed from the sorted lists,
+     * and notifies the adapter of the items which changed.
+     *
+     * @param updatedApps the apps whose content may have changed
+     */
+    private void updateAdapterItems(HashSet<AppInfo> updatedApps) {
+        List<AdapterItem> oldItems = mAdapterItems;
+        mAdapterItems = new ArrayList<>(oldItems.size() + updatedApps.size());
+        buildAdapterItems();
+        if (mAdapter != null) {
+            dispatchAdapterItemChanges(oldItems, mAdapterItems, updatedApps);
+        }
+    }
+
+    /**
+     * Notifies the adapter of the differences between two lists of adapter items. The items
+     * before and after the changed range are matched, which is enough for the few apps changing
+     * in a package update.
+     */
+    private void dispatchAdapterItemChanges(List<AdapterItem> oldItems, List<AdapterItem> newItems,
+                                            HashSet<AppInfo> updatedApps) {
+        int oldSize = oldItems.size();
+        int newSize = newItems.size();
+        int prefix = 0;
+        while (prefix < oldSize && prefix < newSize
+                && isSameItem(oldItems.get(prefix), newItems.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldSize - prefix && suffix < newSize - prefix
+                && isSameItem(oldItems.get(oldSize - suffix - 1),
+                newItems.get(newSize - suffix - 1))) {
+            suffix++;
+        }
+
+        int oldChanged = oldSize - prefix - suffix;
+        int newChanged = newSize - prefix - suffix;
+        int changed = Math.min(oldChanged, newChanged);
+        if (changed > 0) {
+            mAdapter.notifyItemRangeChanged(prefix, changed);
+        }
+        if (oldChanged > newChanged) {
+            mAdapter.notifyItemRangeRemoved(prefix + changed, oldChanged - newChanged);
+        } else if (newChanged > oldChanged) {
+            mAdapter.notifyItemRangeInserted(prefix + changed, newChanged - oldChanged);
+        }
+
+        // Apps updated in place didn't change the items
+        if (!updatedApps.isEmpty()) {
+            notifyUpdatedApps(newItems, 0, prefix, updatedApps);
+            notifyUpdatedApps(newItems, newSize - suffix, newSize, updatedApps);
+        }
+    }
+
+    private void notifyUpdatedApps(List<AdapterItem> items, int start, int end,
+                                   HashSet<AppInfo> updatedApps) {
+        for (int i = start; i < end; i++) {
+            AppInfo app = items.get(i).appInfo;
+            if (app != null && updatedApps.contains(app)) {
+                mAdapter.notifyItemChanged(i);
+            }
+        }
+    }
+
+    private static boolean isSameItem(AdapterItem a, AdapterItem b) {
+        return a.viewType == b.viewType && a.appInfo == b.appInfo;
+    }
+
     /**
      * Updates the set of filtered apps with the current filter.  At this point, we expect
      * mCachedSectionNames to have been calculated for the set of all apps in mApps.
      */
     private void updateAdapterItems() {
+        buildAdapterItems();
+
+        // Refresh the recycler view
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Rebuilds the filtered apps, adapter items and sections from the sorted apps.
+     */
+    private void buildAdapterItems() {
         SectionInfo lastSectionInfo = null;
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
@@ -462,11 +645,6 @@ public class AlphabeticalAppsList {
                 cumulativeTouchFraction += perSectionTouchFraction;
             }
         }
-
-        // Refresh the recycler view
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
-        }
     }
 
     private List<AppInfo> getFiltersAppInfos() {
@@ -0,0 +1,137 @@
+package ch.deletescape.lawnchair.allapps;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import ch.deletescape.lawnchair.AppInfo;
+import ch.deletescape.lawnchair.util.ComponentKey;
+
+/**
+ * Search index of the app titles, kept up to date by {@link AlphabeticalAppsList}.
+ * <p>
+ * The index holds the normalized title of every app. Searches run on a {@link Snapshot}, which
+ * also indexes for every character the apps whose title contains it. A query can then only
+ * match the apps present in the index of each of its characters, which are the only titles
+ * that need to be scanned.
+ */
+public class AppSearchIndex {
+
+    public interface Callbacks {
+        /**
+         * Normalizes the titles before they are indexed.
+         */
+        String normalizeTitle(AppInfo info);
+
+        /**
+         * Returns false if {@param info} should never show up in the search results.
+         */
+        boolean isSearchable(AppInfo info);
+    }
+
+    /**
+     * Immutable index of a list of apps, which can be searched on any thread.
+     */
+    public static class Snapshot {
+        final ArrayList<AppInfo> apps;
+        final String[] titles;
+        // For every character, the positions of the apps whose title contains it
+        private final SparseArray<BitSet> mCharIndex = new SparseArray<>();
+
+        Snapshot(ArrayList<AppInfo> apps, String[] titles) {
+            this.apps = apps;
+            this.titles = titles;
+            for (int i = 0; i < titles.length; i++) {
+                String title = titles[i];
+                for (int j = title.length() - 1; j >= 0; j--) {
+                    char c = title.charAt(j);
+                    BitSet positions = mCharIndex.get(c);
+                    if (positions == null) {
+                        positions = new BitSet(titles.length);
+                        mCharIndex.put(c, positions);
+                    }
+                    positions.set(i);
+                }
+            }
+        }
+
+        /**
+         * Returns the positions of the apps whose title contains every character of
+         * {@param query}. Only these apps can match the query.
+         */
+        BitSet getCandidates(String query) {
+            BitSet candidates = null;
+            for (int i = query.length() - 1; i >= 0; i--) {
+                BitSet positions = mCharIndex.get(query.charAt(i));
+                if (positions == null) {
+                    return new BitSet();
+                }
+                if (candidates == null) {
+                    candidates = (BitSet) positions.clone();
+                } else {
+                    candidates.and(positions);
+                }
+            }
+            return candidates == null ? new BitSet() : candidates;
+        }
+    }
+
+    private final Callbacks mCallbacks;
+
+    // Normalized titles of the apps
+    private final HashMap<ComponentKey, String> mTitles = new HashMap<>();
+
+    // Snapshot of the current index, created when it is first needed
+    private Snapshot mSnapshot;
+
+    public AppSearchIndex(Callbacks callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Adds the given apps, or updates them if they are already indexed.
+     */
+    public void updateApps(Collection<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            mTitles.put(app.toComponentKey(), mCallbacks.normalizeTitle(app));
+        }
+        mSnapshot = null;
+    }
+
+    public void removeApps(Collection<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            mTitles.remove(app.toComponentKey());
+        }
+        mSnapshot = null;
+    }
+
+    public void clear() {
+        mTitles.clear();
+        mSnapshot = null;
+    }
+
+    /**
+     * Returns a snapshot of the searchable apps in {@param apps}, in the same order. Must be
+     * called on the thread updating the index, and {@param apps} must only change along with
+     * the index.
+     */
+    public Snapshot getSnapshot(List<AppInfo> apps) {
+        if (mSnapshot == null) {
+            ArrayList<AppInfo> searchableApps = new ArrayList<>(apps.size());
+            ArrayList<String> titles = new ArrayList<>(apps.size());
+            for (AppInfo app : apps) {
+                String title = mTitles.get(app.toComponentKey());
+                if (title != null && mCallbacks.isSearchable(app)) {
+                    searchableApps.add(app);
+                    titles.add(title);
+                }
+            }
+            mSnapshot = new Snapshot(searchableApps, titles.toArray(new String[titles.size()]));
+        }
+        return mSnapshot;
+    }
+}
@@ -16,59 +16,191 @@
 package ch.deletescape.lawnchair.allapps;
 
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.deletescape.lawnchair.AppInfo;
 import ch.deletescape.lawnchair.util.ComponentKey;
 
 /**
  * The default search implementation.
+ * <p>
+ * Searches run on a background thread. Queries typed within the same frame are coalesced, and
+ * every search or cancellation makes the searches started before it stale: they stop as soon as
+ * possible and their results are dropped, so the callback only gets the newest result.
  */
-public class DefaultAppSearchAlgorithm {
+public class DefaultAppSearchAlgorithm implements AppSearchIndex.Callbacks {
+
+    // How many apps are matched between two checks for a newer search
+    private static final int STALE_CHECK_INTERVAL = 32;
+
+    private static final HandlerThread sSearchThread = new HandlerThread("launcher-search",
+            Process.THREAD_PRIORITY_FOREGROUND);
+
+    static {
+        sSearchThread.start();
+    }
+
+    private static final Handler sSearchHandler = new Handler(sSearchThread.getLooper());
 
     private final List<AppInfo> mApps;
     protected final Handler mResultHandler;
+    private final AppSearchIndex mIndex = new AppSearchIndex(this);
+
+    // Incremented by every search and cancellation, a search is stale once it changed
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // The query waiting for the next frame to be searched, only accessed on the UI thread
+    private String mPendingQuery;
+    private AllAppsSearchBarController.Callbacks mPendingCallback;
+    private final Choreographer.FrameCallback mStartSearchCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    startPendingSearch();
+                }
+            };
+
+    // The last query and its matches, narrowed down when the next query extends it. Only
+    // accessed on the search thread.
+    private AppSearchIndex.Snapshot mLastSnapshot;
+    private String mLastQuery;
+    private BitSet mLastMatches;
 
     public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
         mApps = apps;
         mResultHandler = new Handler();
     }
 
+    /**
+     * Returns the index to keep up to date with the apps.
+     */
+    public AppSearchIndex getIndex() {
+        return mIndex;
+    }
+
     public void cancel(boolean interruptActiveRequests) {
         if (interruptActiveRequests) {
+            mGeneration.incrementAndGet();
+            clearPendingSearch();
             mResultHandler.removeCallbacksAndMessages(null);
         }
     }
 
     public void doSearch(final String query,
                          final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        mGeneration.incrementAndGet();
+        if (mPendingQuery == null) {
+            Choreographer.getInstance().postFrameCallback(mStartSearchCallback);
+        }
+        mPendingQuery = query;
+        mPendingCallback = callback;
+    }
 
+    private void clearPendingSearch() {
+        if (mPendingQuery != null) {
+            Choreographer.getInstance().removeFrameCallback(mStartSearchCallback);
+            mPendingQuery = null;
+            mPendingCallback = null;
+        }
+    }
+
+    /**
+     * Starts searching the latest query typed before this frame.
+     */
+    private void startPendingSearch() {
+        final String query = mPendingQuery;
+        final AllAppsSearchBarController.Callbacks callback = mPendingCallback;
+        mPendingQuery = null;
+        mPendingCallback = null;
+        if (query == null) {
+            return;
+        }
+
+        final int generation = mGeneration.get();
+        final AppSearchIndex.Snapshot snapshot = mIndex.getSnapshot(mApps);
+        sSearchHandler.post(new Runnable() {
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
+                final ArrayList<ComponentKey> result =
+                        getTitleMatchResult(snapshot, query, generation);
+                if (result == null) {
+                    // A newer search has started
+                    return;
+                }
+                mResultHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            callback.onSearchResult(query, result);
+                        }
+                    }
+                });
             }
         });
     }
 
-    protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+    /**
+     * Returns the apps matching {@param query}, or null if the search became stale. Called on
+     * the search thread.
+     */
+    protected ArrayList<ComponentKey> getTitleMatchResult(
+            AppSearchIndex.Snapshot snapshot, String query, int generation) {
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryTextLower)) {
-                result.add(info.toComponentKey());
+        final String normalizedQuery = normalizeQuery(query);
+        final BitSet candidates = snapshot.getCandidates(normalizedQuery);
+
+        // Any app matching a query also matches its prefixes, so if the previous query is a
+        // prefix of this one, only its matches need to be checked.
+        if (mLastSnapshot == snapshot && normalizedQuery.startsWith(mLastQuery)) {
+            candidates.and(mLastMatches);
+        }
+
+        final BitSet matches = new BitSet(snapshot.titles.length);
+        int checked = 0;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (++checked % STALE_CHECK_INTERVAL == 0 && generation != mGeneration.get()) {
+                return null;
+            }
+            if (matches(snapshot.titles[i], normalizedQuery)) {
+                matches.set(i);
             }
         }
+        // An empty query, such as spaces once trimmed, matches nothing but is a prefix of every
+        // query, so it must not be used to narrow the next one.
+        if (!normalizedQuery.isEmpty()) {
+            mLastSnapshot = snapshot;
+            mLastQuery = normalizedQuery;
+            mLastMatches = matches;
+        }
+
+        final ArrayList<ComponentKey> result = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            result.add(snapshot.apps.get(i).toComponentKey());
+        }
         return result;
     }
 
-    protected boolean matches(AppInfo info, String query) {
-        return matches(info.title.toString().toLowerCase(), query);
+    @Override
+    public String normalizeTitle(AppInfo info) {
+        return info.title.toString().toLowerCase();
+    }
+
+    protected String normalizeQuery(String query) {
+        return query.toLowerCase();
+    }
+
+    @Override
+    public boolean isSearchable(AppInfo info) {
+        return true;
     }
 
     protected boolean matches(String haystack, String needle) {
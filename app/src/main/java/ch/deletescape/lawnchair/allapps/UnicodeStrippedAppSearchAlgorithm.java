@@ -16,13 +16,17 @@ public class UnicodeStrippedAppSearchAlgorithm extends DefaultAppSearchAlgorithm
     }
 
     @Override
-    protected boolean matches(AppInfo info, String query) {
-        if (info.componentName.getPackageName().equals(LauncherAppState.getInstanceNoCreate().getContext().getPackageName()))
-            return false;
+    public String normalizeTitle(AppInfo info) {
+        return UnicodeFilter.filter(super.normalizeTitle(info));
+    }
 
-        String title = UnicodeFilter.filter(info.title.toString().toLowerCase());
-        String strippedQuery = UnicodeFilter.filter(query.trim());
+    @Override
+    protected String normalizeQuery(String query) {
+        return UnicodeFilter.filter(super.normalizeQuery(query).trim());
+    }
 
-        return super.matches(title, strippedQuery);
+    @Override
+    public boolean isSearchable(AppInfo info) {
+        return !info.componentName.getPackageName().equals(LauncherAppState.getInstanceNoCreate().getContext().getPackageName());
     }
 }
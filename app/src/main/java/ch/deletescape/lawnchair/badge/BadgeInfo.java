@@ -70,6 +70,10 @@ public class BadgeInfo {
         mNotificationIcon = null;
     }
 
+    public NotificationInfo getNotificationToShow() {
+        return mNotificationInfo;
+    }
+
     public boolean hasNotificationToShow() {
         return mNotificationInfo != null;
     }
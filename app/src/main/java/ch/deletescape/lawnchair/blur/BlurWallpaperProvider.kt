@@ -6,10 +6,6 @@ import android.content.Context
 import android.graphics.*
 import android.graphics.drawable.BitmapDrawable
 import android.os.Build
-import android.renderscript.Allocation
-import android.renderscript.Element
-import android.renderscript.RenderScript
-import android.renderscript.ScriptIntrinsicBlur
 import android.support.v4.graphics.ColorUtils
 import android.util.DisplayMetrics
 import android.view.View
@@ -19,6 +15,7 @@ import ch.deletescape.lawnchair.LauncherAppState
 import ch.deletescape.lawnchair.R
 import ch.deletescape.lawnchair.Utilities
 import ch.deletescape.lawnchair.config.FeatureFlags
+import ch.deletescape.lawnchair.dynamicui.ExtractionUtils
 import java.util.*
 
 class BlurWallpaperProvider(context: Context) {
@@ -53,6 +50,13 @@ class BlurWallpaperProvider(context: Context) {
         private set
     private val sCanvas = Canvas()
 
+    private val mStackBlur = StackBlur()
+    // The downsampled wallpaper which is blurred, kept for the next update
+    private var mBlurBuffer: Bitmap? = null
+    private val mCache = BlurredWallpaperCache(this.context)
+    // What the current wallpaper was blurred with, null if it can't be cached
+    private var mCacheKey: BlurredWallpaperCache.Key? = null
+
     private val mUpdateRunnable = Runnable { updateWallpaper() }
 
     init {
@@ -60,6 +64,18 @@ class BlurWallpaperProvider(context: Context) {
         sEnabledFlag = enabledFlag
 
         updateBlurRadius()
+
+        // Start with the wallpaper blurred last time, so that it shows from the first frame
+        if (isEnabled && hasWallpaperAccess()) {
+            val key = createCacheKey()
+            if (key != null && loadFromCache(key)) {
+                mNotifyRunnable.run()
+            }
+        }
+    }
+
+    private fun hasWallpaperAccess(): Boolean {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1 || Utilities.hasStoragePermission(context)
     }
 
     private fun updateBlurRadius() {
@@ -72,7 +88,7 @@ class BlurWallpaperProvider(context: Context) {
 
     private fun updateWallpaper() {
         val launcher = LauncherAppState.getInstance().launcher
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && !Utilities.hasStoragePermission(context)){
+        if (!hasWallpaperAccess()) {
             Utilities.getPrefs(context).enableBlur(false)
             return
         }
@@ -85,24 +101,35 @@ class BlurWallpaperProvider(context: Context) {
 
         updateBlurRadius()
 
-        var wallpaper = upscaleToScreenSize((mWallpaperManager.drawable as BitmapDrawable).bitmap)
-        val wallpaperHeight = wallpaper.height
-        if (wallpaperHeight > mDisplayHeight) {
-            wallpaperYOffset = (wallpaperHeight - mDisplayHeight) * 0.5f
-        } else {
-            wallpaperYOffset = 0f
+        val key = createCacheKey()
+        if (key != null) {
+            if (key == mCacheKey && this.wallpaper != null) {
+                // Nothing changed since the wallpaper was blurred
+                return
+            }
+            if (loadFromCache(key)) {
+                launcher.runOnUiThread(mNotifyRunnable)
+                return
+            }
         }
 
-        mWallpaperWidth = wallpaper.width
+        val source = (mWallpaperManager.drawable as BitmapDrawable).bitmap
+        val matrix = Matrix()
+        val size = fitToScreenSize(source, matrix)
+        val wallpaperWidth = size.x
+        val wallpaperHeight = size.y
+        setWallpaperSize(wallpaperWidth, wallpaperHeight)
 
         this.wallpaper = null
-        placeholder = createPlaceholder(wallpaper.width, wallpaper.height)
+        mCacheKey = null
+        placeholder = createPlaceholder(wallpaperWidth, wallpaperHeight)
         launcher.runOnUiThread(mNotifyRunnable)
-        if (Utilities.getPrefs(context).enableVibrancy) {
-            wallpaper = applyVibrancy(wallpaper, tintColor)
-        }
         try {
-            this.wallpaper = blur(wallpaper)
+            this.wallpaper = blur(source, matrix, wallpaperWidth, wallpaperHeight,
+                    Utilities.getPrefs(context).enableVibrancy)
+            if (key != null) {
+                saveToCache(key, wallpaperWidth, wallpaperHeight)
+            }
             launcher.runOnUiThread(mNotifyRunnable)
         } catch(oom: OutOfMemoryError){
             Utilities.getPrefs(context).enableBlur(false)
@@ -110,14 +137,16 @@ class BlurWallpaperProvider(context: Context) {
         }
     }
 
-    private fun upscaleToScreenSize(bitmap: Bitmap): Bitmap {
-        val wm = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
-        val display = wm.defaultDisplay
-        display.getRealMetrics(mDisplayMetrics)
+    /**
+     * Computes the size of the wallpaper once it covers the screen, and sets on [matrix] the
+     * transformation from [bitmap] to it. The wallpaper is only scaled up if it is smaller than
+     * the screen, and it is then centered and cropped to the screen.
+     */
+    private fun fitToScreenSize(bitmap: Bitmap, matrix: Matrix): Point {
+        updateDisplayMetrics()
 
         val width = mDisplayMetrics.widthPixels
         val height = mDisplayMetrics.heightPixels
-        mDisplayHeight = height
 
         var widthFactor = 0f
         var heightFactor = 0f
@@ -129,55 +158,120 @@ class BlurWallpaperProvider(context: Context) {
         }
 
         val upscaleFactor = Math.max(widthFactor, heightFactor)
+        matrix.reset()
         if (upscaleFactor <= 0) {
-            return bitmap
+            return Point(bitmap.width, bitmap.height)
         }
 
         val scaledWidth = (bitmap.width * upscaleFactor).toInt()
         val scaledHeight = (bitmap.height * upscaleFactor).toInt()
-        val scaled = Bitmap.createScaledBitmap(
-                bitmap,
-                scaledWidth,
-                scaledHeight, false)
+        matrix.setScale(scaledWidth.toFloat() / bitmap.width, scaledHeight.toFloat() / bitmap.height)
+        if (widthFactor > heightFactor) {
+            matrix.postTranslate(0f, ((height - scaledHeight) / 2).toFloat())
+        } else {
+            matrix.postTranslate(((width - scaledWidth) / 2).toFloat(), 0f)
+        }
 
-        val result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val canvas = Canvas()
-        canvas.setBitmap(result)
+        return Point(width, height)
+    }
 
-        val paint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
-        if (widthFactor > heightFactor) {
-            canvas.drawBitmap(scaled, 0f, ((height - scaledHeight) / 2).toFloat(), paint)
+    private fun updateDisplayMetrics() {
+        val wm = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
+        val display = wm.defaultDisplay
+        display.getRealMetrics(mDisplayMetrics)
+        mDisplayHeight = mDisplayMetrics.heightPixels
+    }
+
+    private fun setWallpaperSize(width: Int, height: Int) {
+        if (height > mDisplayHeight) {
+            wallpaperYOffset = (height - mDisplayHeight) * 0.5f
         } else {
-            canvas.drawBitmap(scaled, ((width - scaledWidth) / 2).toFloat(), 0f, paint)
+            wallpaperYOffset = 0f
+        }
+
+        mWallpaperWidth = width
+    }
+
+    /**
+     * Returns everything the blurred wallpaper depends on, or null if the wallpaper can't be
+     * identified.
+     */
+    private fun createCacheKey(): BlurredWallpaperCache.Key? {
+        val wallpaperId = try {
+            ExtractionUtils.getWallpaperId(mWallpaperManager)
+        } catch (e: SecurityException) {
+            -1
         }
+        if (wallpaperId == -1) return null
 
-        return result
+        updateDisplayMetrics()
+        return BlurredWallpaperCache.Key(wallpaperId, blurRadius,
+                Utilities.getPrefs(context).enableVibrancy, FeatureFlags.useDarkTheme, tintColor,
+                mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels)
     }
 
-    fun blur(image: Bitmap): Bitmap {
-        val width = Math.round((image.width / DOWNSAMPLE_FACTOR).toFloat())
-        val height = Math.round((image.height / DOWNSAMPLE_FACTOR).toFloat())
+    /**
+     * Replaces the wallpaper by the one blurred with [key] in the cache, if there is one.
+     */
+    @Synchronized
+    private fun loadFromCache(key: BlurredWallpaperCache.Key): Boolean {
+        val entry = mCache.load(key) ?: return false
+        try {
+            setWallpaperSize(entry.width, entry.height)
+            placeholder = createPlaceholder(entry.width, entry.height)
+            wallpaper = scaleToFullSize(entry.bitmap, entry.width, entry.height)
+        } catch (oom: OutOfMemoryError) {
+            return false
+        }
+        mBlurBuffer = entry.bitmap
+        mCacheKey = key
+        return true
+    }
 
-        val inputBitmap = Bitmap.createScaledBitmap(image, width, height, false)
-        val outputBitmap = Bitmap.createBitmap(inputBitmap)
+    @Synchronized
+    private fun saveToCache(key: BlurredWallpaperCache.Key, width: Int, height: Int) {
+        mBlurBuffer?.let { mCache.save(key, it, width, height) }
+        mCacheKey = key
+    }
 
-        val rs = RenderScript.create(context)
-        val theIntrinsic = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs))
-        val tmpIn = Allocation.createFromBitmap(rs, inputBitmap)
-        val tmpOut = Allocation.createFromBitmap(rs, outputBitmap)
-        theIntrinsic.setRadius(blurRadius.toFloat())
-        theIntrinsic.setInput(tmpIn)
-        theIntrinsic.forEach(tmpOut)
-        tmpOut.copyTo(outputBitmap)
+    /**
+     * Blurs [image] once transformed by [matrix] to a [width] by [height] wallpaper. The
+     * wallpaper is only drawn and blurred at a fraction of its size, and the result is scaled
+     * back to the full size at the end.
+     */
+    @Synchronized
+    fun blur(image: Bitmap, matrix: Matrix, width: Int, height: Int, vibrancy: Boolean): Bitmap {
+        val blurWidth = Math.max(1, width / DOWNSAMPLE_FACTOR)
+        val blurHeight = Math.max(1, height / DOWNSAMPLE_FACTOR)
+
+        val input = mBlurBuffer?.takeIf { it.width == blurWidth && it.height == blurHeight }
+                ?.apply { eraseColor(Color.TRANSPARENT) }
+                ?: Bitmap.createBitmap(blurWidth, blurHeight, Bitmap.Config.ARGB_8888)
+        mBlurBuffer = input
+
+        val canvas = Canvas(input)
+        canvas.save()
+        canvas.scale(1f / DOWNSAMPLE_FACTOR, 1f / DOWNSAMPLE_FACTOR)
+        canvas.concat(matrix)
+        canvas.drawBitmap(image, 0f, 0f, mPaint)
+        canvas.restore()
+        if (vibrancy) {
+            canvas.drawColor(tintColor,
+                    if (FeatureFlags.useDarkTheme) PorterDuff.Mode.DARKEN else PorterDuff.Mode.LIGHTEN)
+        }
+
+        mStackBlur.blur(input, blurRadius)
+
+        return scaleToFullSize(input, width, height)
+    }
 
+    private fun scaleToFullSize(input: Bitmap, width: Int, height: Int): Bitmap {
         // Have to scale it back to full resolution because antialiasing is too expensive to be done each frame
-        val bitmap = Bitmap.createBitmap(image.width, image.height, Bitmap.Config.ARGB_8888)
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
 
         val canvas = Canvas(bitmap)
-        canvas.save()
         canvas.scale(DOWNSAMPLE_FACTOR.toFloat(), DOWNSAMPLE_FACTOR.toFloat())
-        canvas.drawBitmap(outputBitmap, 0f, 0f, mPaint)
-        canvas.restore()
+        canvas.drawBitmap(input, 0f, 0f, mPaint)
 
         return bitmap
     }
@@ -204,27 +298,6 @@ class BlurWallpaperProvider(context: Context) {
         Utilities.THREAD_POOL_EXECUTOR.execute(mUpdateRunnable)
     }
 
-    private fun applyVibrancy(wallpaper: Bitmap, color: Int): Bitmap {
-        val width = wallpaper.width
-        val height = wallpaper.height
-
-        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val canvas = Canvas()
-        canvas.setBitmap(bitmap)
-        canvas.drawBitmap(wallpaper, 0f, 0f, mPaint)
-
-        mPath.moveTo(0f, 0f)
-        mPath.lineTo(0f, height.toFloat())
-        mPath.lineTo(width.toFloat(), height.toFloat())
-        mPath.lineTo(width.toFloat(), 0f)
-        mColorPaint.xfermode = PorterDuffXfermode(
-                if (FeatureFlags.useDarkTheme) PorterDuff.Mode.DARKEN else PorterDuff.Mode.LIGHTEN)
-        mColorPaint.color = color
-        canvas.drawPath(mPath, mColorPaint)
-
-        return bitmap
-    }
-
     fun addListener(listener: Listener) {
         mListeners.add(listener)
         listener.onOffsetChanged(mOffset)
@@ -0,0 +1,153 @@
+package ch.deletescape.lawnchair.blur;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Keeps the last blurred wallpaper in the cache directory, so that it doesn't have to be blurred
+ * again on the next start.
+ * <p>
+ * Only the downsampled blur is stored, as a header followed by the raw pixels, which are mapped
+ * and copied straight into a bitmap when they are read back. The header holds the {@link Key}
+ * the wallpaper was blurred with, an entry is only returned for the same key.
+ */
+public class BlurredWallpaperCache {
+
+    private static final String TAG = "BlurredWallpaperCache";
+
+    private static final String FILE_NAME = "blurred_wallpaper";
+    private static final int MAGIC = 0x4c424c52;
+    private static final int VERSION = 1;
+    // Magic, version, the key and the sizes
+    private static final int HEADER_SIZE = (2 + Key.FIELD_COUNT + 4) * 4;
+
+    /**
+     * Everything the blurred wallpaper depends on.
+     */
+    public static class Key {
+        static final int FIELD_COUNT = 7;
+
+        private final int[] mFields;
+
+        public Key(int wallpaperId, int blurRadius, boolean vibrancy, boolean darkTheme,
+                   int tintColor, int displayWidth, int displayHeight) {
+            mFields = new int[]{wallpaperId, blurRadius, vibrancy ? 1 : 0, darkTheme ? 1 : 0,
+                    tintColor, displayWidth, displayHeight};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mFields, ((Key) o).mFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mFields);
+        }
+    }
+
+    /**
+     * A blurred wallpaper read from the cache.
+     */
+    public static class Entry {
+        /** The downsampled blur. */
+        public final Bitmap bitmap;
+        /** The size of the wallpaper before it was downsampled. */
+        public final int width;
+        public final int height;
+
+        Entry(Bitmap bitmap, int width, int height) {
+            this.bitmap = bitmap;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final File mFile;
+
+    public BlurredWallpaperCache(Context context) {
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns the cached wallpaper blurred with {@param key}, or null if there is none.
+     */
+    public synchronized Entry load(Key key) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            for (int i = 0; i < Key.FIELD_COUNT; i++) {
+                if (buffer.getInt() != key.mFields[i]) {
+                    return null;
+                }
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int blurWidth = buffer.getInt();
+            int blurHeight = buffer.getInt();
+            if (blurWidth <= 0 || blurHeight <= 0
+                    || buffer.remaining() != blurWidth * blurHeight * 4) {
+                return null;
+            }
+            Bitmap bitmap = Bitmap.createBitmap(blurWidth, blurHeight, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return new Entry(bitmap, width, height);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read the blurred wallpaper", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores {@param bitmap}, the downsampled blur of a {@param width} by {@param height}
+     * wallpaper, replacing the previous one.
+     */
+    public synchronized void save(Key key, Bitmap bitmap, int width, int height) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmap.getByteCount())
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(VERSION);
+        for (int i = 0; i < Key.FIELD_COUNT; i++) {
+            buffer.putInt(key.mFields[i]);
+        }
+        buffer.putInt(width).putInt(height).putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(buffer);
+
+        // Write to a temporary file first, so that a partly written file is never read
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the blurred wallpaper", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+        }
+    }
+}
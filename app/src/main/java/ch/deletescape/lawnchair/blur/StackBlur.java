@@ -0,0 +1,254 @@
+package ch.deletescape.lawnchair.blur;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stack blur of ARGB pixels, an approximation of a gaussian blur which only needs a few integer
+ * operations per pixel and channel.
+ * <p>
+ * The blur is separable: every row is blurred, then every column. Each pass is split into
+ * stripes of rows or columns which are blurred in parallel, by the calling thread and the
+ * threads of a shared pool. The result only depends on the pixels and the radius, not on how
+ * the stripes are distributed. The pixel buffer and the scratch buffers of the stripes are kept
+ * between blurs.
+ */
+public class StackBlur {
+
+    private static final int THREAD_COUNT =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    private static final int THREAD_KEEP_ALIVE_SECONDS = 5;
+    // Stripes smaller than this are not worth handing over to another thread
+    private static final int MIN_LINES_PER_STRIPE = 16;
+
+    private static Executor sExecutor;
+
+    private final int mThreadCount;
+
+    private int[] mPixels = new int[0];
+    // The stack of every stripe, indexed by the stripe
+    private int[][] mStacks = new int[0][];
+
+    public StackBlur() {
+        this(THREAD_COUNT);
+    }
+
+    /**
+     * @param threadCount the maximum number of threads blurring at once, including the calling
+     *                    thread.
+     */
+    public StackBlur(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Blurs {@param bitmap} in place. The bitmap must be mutable and in ARGB_8888.
+     */
+    public synchronized void blur(Bitmap bitmap, int radius) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = width * height;
+        if (mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        blur(mPixels, width, height, radius);
+        bitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+    }
+
+    /**
+     * Blurs the first {@param width} * {@param height} pixels of {@param pixels} in place. The
+     * pixels are in ARGB, row after row.
+     */
+    public synchronized void blur(final int[] pixels, final int width, final int height,
+                                  final int radius) {
+        if (radius < 1 || width <= 0 || height <= 0) {
+            return;
+        }
+        // Rows
+        runStripes(height, radius, new StripeBlur() {
+            @Override
+            public void blurStripe(int start, int end, int[] stack) {
+                for (int y = start; y < end; y++) {
+                    blurLine(pixels, y * width, 1, width, radius, stack);
+                }
+            }
+        });
+        // Columns
+        runStripes(width, radius, new StripeBlur() {
+            @Override
+            public void blurStripe(int start, int end, int[] stack) {
+                for (int x = start; x < end; x++) {
+                    blurLine(pixels, x, width, height, radius, stack);
+                }
+            }
+        });
+    }
+
+    private interface StripeBlur {
+        /**
+         * Blurs the lines from {@param start} inclusive to {@param end} exclusive.
+         */
+        void blurStripe(int start, int end, int[] stack);
+    }
+
+    private void runStripes(final int lineCount, int radius, final StripeBlur stripeBlur) {
+        final int stripeCount = Math.max(1,
+                Math.min(mThreadCount, lineCount / MIN_LINES_PER_STRIPE));
+        int stackSize = 2 * radius + 1;
+        if (mStacks.length < stripeCount) {
+            mStacks = new int[stripeCount][];
+        }
+        for (int i = 0; i < stripeCount; i++) {
+            if (mStacks[i] == null || mStacks[i].length < stackSize) {
+                mStacks[i] = new int[stackSize];
+            }
+        }
+
+        final int[][] stacks = mStacks;
+        final AtomicInteger nextStripe = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(stripeCount);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int stripe;
+                while ((stripe = nextStripe.getAndIncrement()) < stripeCount) {
+                    try {
+                        stripeBlur.blurStripe(lineCount * stripe / stripeCount,
+                                lineCount * (stripe + 1) / stripeCount, stacks[stripe]);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < stripeCount; i++) {
+            getExecutor().execute(worker);
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // The next pass reads the pixels written by the other threads.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blurs the {@param length} pixels of a line, starting at {@param offset} and {@param step}
+     * apart.
+     */
+    private static void blurLine(int[] pixels, int offset, int step, int length, int radius,
+                                 int[] stack) {
+        int div = 2 * radius + 1;
+        int divSum = (radius + 1) * (radius + 1);
+        int last = offset + (length - 1) * step;
+        // The last pixel is overwritten before the end of the line is read for the last time
+        int lastPixel = pixels[last];
+
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        int inA = 0, inR = 0, inG = 0, inB = 0;
+        int outA = 0, outR = 0, outG = 0, outB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int p = i <= 0 ? pixels[offset] : pixels[offset + Math.min(i, length - 1) * step];
+            stack[i + radius] = p;
+            int weight = radius + 1 - Math.abs(i);
+            int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            sumA += a * weight;
+            sumR += r * weight;
+            sumG += g * weight;
+            sumB += b * weight;
+            if (i > 0) {
+                inA += a;
+                inR += r;
+                inG += g;
+                inB += b;
+            } else {
+                outA += a;
+                outR += r;
+                outG += g;
+                outB += b;
+            }
+        }
+
+        int stackPointer = radius;
+        int index = offset;
+        for (int x = 0; x < length; x++) {
+            pixels[index] = ((sumA / divSum) << 24) | ((sumR / divSum) << 16)
+                    | ((sumG / divSum) << 8) | (sumB / divSum);
+            index += step;
+
+            sumA -= outA;
+            sumR -= outR;
+            sumG -= outG;
+            sumB -= outB;
+
+            // Replace the pixel leaving the window by the one entering it
+            int stackStart = (stackPointer + radius + 1) % div;
+            int p = stack[stackStart];
+            outA -= p >>> 24;
+            outR -= (p >> 16) & 0xff;
+            outG -= (p >> 8) & 0xff;
+            outB -= p & 0xff;
+
+            int next = x + radius + 1;
+            p = next < length - 1 ? pixels[offset + next * step] : lastPixel;
+            stack[stackStart] = p;
+            inA += p >>> 24;
+            inR += (p >> 16) & 0xff;
+            inG += (p >> 8) & 0xff;
+            inB += p & 0xff;
+
+            sumA += inA;
+            sumR += inR;
+            sumG += inG;
+            sumB += inB;
+
+            // Move the center of the window to the next pixel
+            stackPointer = (stackPointer + 1) % div;
+            p = stack[stackPointer];
+            int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            outA += a;
+            outR += r;
+            outG += g;
+            outB += b;
+            inA -= a;
+            inR -= r;
+            inG -= g;
+            inB -= b;
+        }
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                    THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "launcher-blur-" + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+}
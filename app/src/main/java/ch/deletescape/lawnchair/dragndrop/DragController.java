@@ -23,6 +23,7 @@ import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.IBinder;
 import android.view.DragEvent;
@@ -33,6 +34,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.inputmethod.InputMethodManager;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import ch.deletescape.lawnchair.DragSource;
@@ -66,12 +68,15 @@ public class DragController implements DragDriver.EventListener, TouchController
 
     private static final float MAX_FLING_DEGREES = 35f;
 
+    // Measures the bytes allocated by the process while handling the drag moves, see dump(). This
+    // reads the runtime stats on every move, so it is off by default.
+    private static final boolean DEBUG_DRAG_ALLOCATIONS = false;
+
     @Thunk
     Launcher mLauncher;
     private Handler mHandler;
 
     // temporaries to avoid gc thrash
-    private Rect mRectTemp = new Rect();
     private final int[] mCoordinatesTemp = new int[2];
     private final boolean mIsRtl;
 
@@ -108,6 +113,7 @@ public class DragController implements DragDriver.EventListener, TouchController
      * Who can receive drop events
      */
     private ArrayList<DropTarget> mDropTargets = new ArrayList<>();
+    private final DropTargetIndex mDropTargetIndex = new DropTargetIndex(mDropTargets);
     private ArrayList<DragListener> mListeners = new ArrayList<>();
     private DropTarget mFlingToDeleteDropTarget;
     private DropTarget mFlingToUninstallDropTarget;
@@ -150,6 +156,12 @@ public class DragController implements DragDriver.EventListener, TouchController
     private boolean mIsDragDeferred;
     private boolean mIsInPreDrag;
 
+    // Drag move stats of the current or last drag, printed by dump()
+    private int mDragMoveCount;
+    private long mDragMoveNanos;
+    private long mMaxDragMoveNanos;
+    private long mDragMoveAllocatedBytes;
+
     /**
      * Interface to receive notifications when a drag starts or stops
      */
@@ -218,6 +230,8 @@ public class DragController implements DragDriver.EventListener, TouchController
         final int dragRegionTop = dragRegion == null ? 0 : dragRegion.top;
 
         mLastDropTarget = null;
+        mDropTargetIndex.invalidate();
+        resetDragMoveStats();
 
         mDragObject = new DropTarget.DragObject();
 
@@ -539,6 +553,9 @@ public class DragController implements DragDriver.EventListener, TouchController
     }
 
     private void handleMoveEvent(int x, int y) {
+        long startTime = System.nanoTime();
+        long startAllocatedBytes = DEBUG_DRAG_ALLOCATIONS ? getAllocatedBytes() : 0;
+
         mDragObject.dragView.move(x, y);
 
         // Drop on someone?
@@ -558,6 +575,53 @@ public class DragController implements DragDriver.EventListener, TouchController
         if ((mIsDragDeferred && mOptions.deferDragCondition.shouldStartDeferredDrag(hypot)) || (mIsInPreDrag && mOptions.preDragCondition.shouldStartDrag(hypot))) {
             startDeferredDrag();
         }
+
+        long duration = System.nanoTime() - startTime;
+        mDragMoveCount++;
+        mDragMoveNanos += duration;
+        mMaxDragMoveNanos = Math.max(mMaxDragMoveNanos, duration);
+        if (DEBUG_DRAG_ALLOCATIONS) {
+            mDragMoveAllocatedBytes += getAllocatedBytes() - startAllocatedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated by the runtime so far, or 0 if it isn't available.
+     */
+    private static long getAllocatedBytes() {
+        if (!Utilities.ATLEAST_MARSHMALLOW) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void resetDragMoveStats() {
+        mDragMoveCount = 0;
+        mDragMoveNanos = 0;
+        mMaxDragMoveNanos = 0;
+        mDragMoveAllocatedBytes = 0;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("drag moves: ");
+        writer.print(mDragMoveCount);
+        if (mDragMoveCount > 0) {
+            writer.print(", avg ");
+            writer.print(mDragMoveNanos / mDragMoveCount / 1000);
+            writer.print("us, max ");
+            writer.print(mMaxDragMoveNanos / 1000);
+            writer.print("us");
+        }
+        writer.print(", allocated bytes ");
+        writer.println(DEBUG_DRAG_ALLOCATIONS ? String.valueOf(mDragMoveAllocatedBytes) : "n/a");
+        writer.print(prefix);
+        writer.print("drop target index rebuilds: ");
+        writer.println(mDropTargetIndex.getRebuildCount());
     }
 
     public float getDistanceDragged() {
@@ -762,29 +826,27 @@ public class DragController implements DragDriver.EventListener, TouchController
     }
 
     private DropTarget findDropTarget(int x, int y, int[] dropCoordinates) {
-        final Rect r = mRectTemp;
-
-        final ArrayList<DropTarget> dropTargets = mDropTargets;
-        final int count = dropTargets.size();
-        for (int i = count - 1; i >= 0; i--) {
-            DropTarget target = dropTargets.get(i);
-            if (!target.isDropEnabled())
-                continue;
-
-            target.getHitRectRelativeToDragLayer(r);
-
-            mDragObject.x = x;
-            mDragObject.y = y;
-            if (r.contains(x, y)) {
-
-                dropCoordinates[0] = x;
-                dropCoordinates[1] = y;
-                mLauncher.getDragLayer().mapCoordInSelfToDescendent((View) target, dropCoordinates);
-
-                return target;
-            }
+        mDragObject.x = x;
+        mDragObject.y = y;
+        if (mLauncher.getWorkspace().isSwitchingState()) {
+            // The workspace scales while switching state, which moves its hit rect on every frame
+            mDropTargetIndex.invalidate();
         }
-        return null;
+        DropTarget target = mDropTargetIndex.findTarget(x, y);
+        if (target != null) {
+            dropCoordinates[0] = x;
+            dropCoordinates[1] = y;
+            mLauncher.getDragLayer().mapCoordInSelfToDescendent((View) target, dropCoordinates);
+        }
+        return target;
+    }
+
+    /**
+     * Marks the hit rects of the drop targets as outdated. Must be called when the position of a
+     * drop target changes without a layout, for instance during an animation.
+     */
+    public void invalidateDropTargets() {
+        mDropTargetIndex.invalidate();
     }
 
     public void setDragScoller(DragScroller scroller) {
@@ -814,6 +876,7 @@ public class DragController implements DragDriver.EventListener, TouchController
      */
     public void addDropTarget(DropTarget target) {
         mDropTargets.add(target);
+        mDropTargetIndex.invalidate();
     }
 
     /**
@@ -821,6 +884,7 @@ public class DragController implements DragDriver.EventListener, TouchController
      */
     public void removeDropTarget(DropTarget target) {
         mDropTargets.remove(target);
+        mDropTargetIndex.invalidate();
     }
 
     /**
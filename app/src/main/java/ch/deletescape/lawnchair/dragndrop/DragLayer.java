@@ -670,6 +670,10 @@ public class DragLayer extends InsettableFrameLayout {
                 }
             }
         }
+        // Any relayout in the launcher goes through here, and can move the drop targets
+        if (mDragController != null) {
+            mDragController.invalidateDropTargets();
+        }
     }
 
     public void clearAllResizeFrames() {
@@ -0,0 +1,131 @@
+package ch.deletescape.lawnchair.dragndrop;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.deletescape.lawnchair.DropTarget;
+
+/**
+ * Spatial index of the hit rects of the drop targets, in drag layer coordinates.
+ * <p>
+ * The drag layer is split into horizontal bands at the top and bottom edges of every hit rect,
+ * and every band lists the targets covering it, in the order in which they are tested. Finding
+ * the target under a point is then a binary search for its band followed by a check of the few
+ * targets in it. The hit rects are only computed again once the index is invalidated, which
+ * happens when the layout changes.
+ */
+class DropTargetIndex {
+
+    private static final int[] EMPTY_BAND = new int[0];
+
+    // The registered drop targets, the last one being tested first
+    private final ArrayList<DropTarget> mTargets;
+
+    private Rect[] mHitRects = new Rect[0];
+    // Sorted edges of the bands, band i going from mBandEdges[i] to mBandEdges[i + 1]
+    private int[] mBandEdges = new int[0];
+    private int mBandEdgeCount;
+    // For every band, the indices of the targets covering it, in the order they are tested
+    private int[][] mBandTargets = new int[0][];
+
+    private boolean mValid;
+    private int mRebuildCount;
+
+    DropTargetIndex(ArrayList<DropTarget> targets) {
+        mTargets = targets;
+    }
+
+    /**
+     * Marks the hit rects as outdated, they are computed again on the next lookup.
+     */
+    void invalidate() {
+        mValid = false;
+    }
+
+    int getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    /**
+     * Returns the first enabled target whose hit rect contains the point, or null.
+     */
+    DropTarget findTarget(int x, int y) {
+        if (!mValid) {
+            rebuild();
+        }
+        int band = findBand(y);
+        if (band < 0) {
+            return null;
+        }
+        int[] targets = mBandTargets[band];
+        for (int i = 0; i < targets.length; i++) {
+            int index = targets[i];
+            DropTarget target = mTargets.get(index);
+            if (target.isDropEnabled() && mHitRects[index].contains(x, y)) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    private int findBand(int y) {
+        if (mBandEdgeCount < 2) {
+            return -1;
+        }
+        int pos = Arrays.binarySearch(mBandEdges, 0, mBandEdgeCount, y);
+        int band = pos >= 0 ? pos : -(pos + 1) - 1;
+        return band >= 0 && band < mBandEdgeCount - 1 ? band : -1;
+    }
+
+    private void rebuild() {
+        int count = mTargets.size();
+        if (mHitRects.length < count) {
+            Rect[] rects = Arrays.copyOf(mHitRects, count);
+            for (int i = mHitRects.length; i < count; i++) {
+                rects[i] = new Rect();
+            }
+            mHitRects = rects;
+            mBandEdges = new int[count * 2];
+        }
+
+        int edgeCount = 0;
+        for (int i = 0; i < count; i++) {
+            Rect r = mHitRects[i];
+            mTargets.get(i).getHitRectRelativeToDragLayer(r);
+            if (!r.isEmpty()) {
+                mBandEdges[edgeCount++] = r.top;
+                mBandEdges[edgeCount++] = r.bottom;
+            }
+        }
+        Arrays.sort(mBandEdges, 0, edgeCount);
+        int uniqueCount = 0;
+        for (int i = 0; i < edgeCount; i++) {
+            if (uniqueCount == 0 || mBandEdges[uniqueCount - 1] != mBandEdges[i]) {
+                mBandEdges[uniqueCount++] = mBandEdges[i];
+            }
+        }
+        mBandEdgeCount = uniqueCount;
+
+        int bandCount = Math.max(0, uniqueCount - 1);
+        mBandTargets = new int[bandCount][];
+        int[] bandTargets = new int[count];
+        for (int band = 0; band < bandCount; band++) {
+            int top = mBandEdges[band];
+            int bottom = mBandEdges[band + 1];
+            int targetCount = 0;
+            for (int i = count - 1; i >= 0; i--) {
+                Rect r = mHitRects[i];
+                if (!r.isEmpty() && r.top <= top && r.bottom >= bottom) {
+                    bandTargets[targetCount++] = i;
+                }
+            }
+            mBandTargets[band] = targetCount == 0 ? EMPTY_BAND
+                    : Arrays.copyOf(bandTargets, targetCount);
+        }
+
+        mValid = true;
+        mRebuildCount++;
+    }
+}
@@ -17,7 +17,9 @@
 package ch.deletescape.lawnchair.dynamicui;
 
 import android.app.IntentService;
+import android.app.WallpaperInfo;
 import android.app.WallpaperManager;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -25,6 +27,8 @@ import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.support.v7.graphics.Palette;
 
+import java.util.Objects;
+
 import ch.deletescape.lawnchair.LauncherProvider;
 import ch.deletescape.lawnchair.LauncherSettings;
 import ch.deletescape.lawnchair.R;
@@ -39,6 +43,12 @@ public class ColorExtractionService extends IntentService {
      */
     private static final float HOTSEAT_FRACTION = 0.5f;
 
+    // The colors last extracted by this process, and what they were extracted from. The colors
+    // only depend on the wallpaper, so they can be saved again as long as its id is the same.
+    private static int sCachedWallpaperId = -1;
+    private static ComponentName sCachedLiveWallpaper;
+    private static String sCachedColors;
+
     public ColorExtractionService() {
         super("ColorExtractionService");
     }
@@ -47,23 +57,36 @@ public class ColorExtractionService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         WallpaperManager wallpaperManager = WallpaperManager.getInstance(this);
         int wallpaperId = ExtractionUtils.getWallpaperId(wallpaperManager);
-        ExtractedColors extractedColors = new ExtractedColors();
-        PackageManager pm = getApplicationContext().getPackageManager();
-        if (wallpaperManager.getWallpaperInfo() != null) {
-            try {
-                Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getWallpaperInfo().loadThumbnail(pm)).getBitmap();
+        WallpaperInfo liveWallpaper = wallpaperManager.getWallpaperInfo();
+        ComponentName liveWallpaperComponent =
+                liveWallpaper != null ? liveWallpaper.getComponent() : null;
+
+        String colorsString;
+        if (wallpaperId != -1 && wallpaperId == sCachedWallpaperId
+                && Objects.equals(liveWallpaperComponent, sCachedLiveWallpaper)) {
+            colorsString = sCachedColors;
+        } else {
+            ExtractedColors extractedColors = new ExtractedColors();
+            PackageManager pm = getApplicationContext().getPackageManager();
+            if (liveWallpaper != null) {
+                try {
+                    Bitmap wallpaper = ((BitmapDrawable) liveWallpaper.loadThumbnail(pm)).getBitmap();
+                    generatePaletteFromWallpaper(wallpaper, extractedColors);
+                } catch (NullPointerException ignored) {
+                    extractedColors.updatePalette(null);
+                    extractedColors.updateHotseatPalette(null);
+                }
+            } else {
+                Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getDrawable()).getBitmap();
                 generatePaletteFromWallpaper(wallpaper, extractedColors);
-            } catch (NullPointerException ignored) {
-                extractedColors.updatePalette(null);
-                extractedColors.updateHotseatPalette(null);
             }
-        } else {
-            Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getDrawable()).getBitmap();
-            generatePaletteFromWallpaper(wallpaper, extractedColors);
+            colorsString = extractedColors.encodeAsString();
+            sCachedWallpaperId = wallpaperId;
+            sCachedLiveWallpaper = liveWallpaperComponent;
+            sCachedColors = colorsString;
         }
 
         // Save the extracted colors and wallpaper id to LauncherProvider.
-        String colorsString = extractedColors.encodeAsString();
         Bundle extras = new Bundle();
         extras.putInt(LauncherSettings.Settings.EXTRA_WALLPAPER_ID, wallpaperId);
         extras.putString(LauncherSettings.Settings.EXTRA_EXTRACTED_COLORS, colorsString);
@@ -74,31 +97,28 @@ public class ColorExtractionService extends IntentService {
     }
 
     private void generatePaletteFromWallpaper(Bitmap wallpaper, ExtractedColors extractedColors) {
-        Palette palette = Palette.from(wallpaper).generate();
-        extractedColors.updatePalette(palette);
+        int width = wallpaper.getWidth();
+        int height = wallpaper.getHeight();
         // We extract colors for the hotseat and status bar separately,
-        // since they only consider part of the wallpaper.
-        Palette hotseatPalette = Palette.from(wallpaper)
-                .setRegion(0, (int) (wallpaper.getHeight() * HOTSEAT_FRACTION),
-                        wallpaper.getWidth(), wallpaper.getHeight())
-                .clearFilters()
-                .generate();
-        extractedColors.updateHotseatPalette(hotseatPalette);
-
+        // since they only consider part of the wallpaper. All the palettes
+        // are generated from a single pass over the downscaled wallpaper.
+        RegionPaletteExtractor extractor = new RegionPaletteExtractor(wallpaper);
+        int palette = extractor.addRegion(0, 0, width, height,
+                RegionPaletteExtractor.DEFAULT_FILTER);
+        int hotseatPalette = extractor.addRegion(0, (int) (height * HOTSEAT_FRACTION),
+                width, height, null);
         int statusBarHeight = getResources()
                 .getDimensionPixelSize(R.dimen.status_bar_height);
-        Palette statusBarPalette = Palette.from(wallpaper)
-                .setRegion(0, 0, wallpaper.getWidth(), statusBarHeight)
-                .clearFilters()
-                .generate();
-        extractedColors.updateStatusBarPalette(statusBarPalette);
-
+        int statusBarPalette = extractor.addRegion(0, 0, width, statusBarHeight, null);
         int navigationBarHeight = getResources()
                 .getDimensionPixelSize(R.dimen.navigation_bar_height);
-        Palette navigationBarPalette = Palette.from(wallpaper)
-                .setRegion(0, wallpaper.getHeight() - navigationBarHeight, wallpaper.getWidth(), wallpaper.getHeight())
-                .clearFilters()
-                .generate();
-        extractedColors.updateNavigationBarPalette(navigationBarPalette);
+        int navigationBarPalette = extractor.addRegion(0, height - navigationBarHeight,
+                width, height, null);
+
+        Palette[] palettes = extractor.generate();
+        extractedColors.updatePalette(palettes[palette]);
+        extractedColors.updateHotseatPalette(palettes[hotseatPalette]);
+        extractedColors.updateStatusBarPalette(palettes[statusBarPalette]);
+        extractedColors.updateNavigationBarPalette(palettes[navigationBarPalette]);
     }
 }
@@ -0,0 +1,414 @@
+package ch.deletescape.lawnchair.dynamicui;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.support.v4.graphics.ColorUtils;
+import android.support.v7.graphics.Palette;
+import android.support.v7.graphics.Target;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Generates the palettes of several regions of a bitmap, with a single pass over its pixels.
+ * <p>
+ * The bitmap is scaled down once, the same way {@link Palette} does, and every pixel is
+ * quantized once and counted in the color histogram of every region containing it. Each
+ * histogram then goes through the same median cut as {@link Palette}, so the palettes are the
+ * ones {@link Palette} would generate for the same regions.
+ */
+class RegionPaletteExtractor {
+
+    // The defaults of Palette.Builder
+    private static final int RESIZE_BITMAP_AREA = 112 * 112;
+    private static final int MAX_COLORS = 16;
+
+    private static final int QUANTIZE_WORD_WIDTH = 5;
+    private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
+
+    /**
+     * The filter {@link Palette} applies by default, ignoring colors close to black or white and
+     * skin tones.
+     */
+    static final Palette.Filter DEFAULT_FILTER = new Palette.Filter() {
+        private static final float BLACK_MAX_LIGHTNESS = 0.05f;
+        private static final float WHITE_MIN_LIGHTNESS = 0.95f;
+
+        @Override
+        public boolean isAllowed(int rgb, float[] hsl) {
+            return hsl[2] > BLACK_MAX_LIGHTNESS && hsl[2] < WHITE_MIN_LIGHTNESS
+                    && !(hsl[0] >= 10f && hsl[0] <= 37f && hsl[1] <= 0.82f);
+        }
+    };
+
+    private final Bitmap mScaledBitmap;
+    private final double mScale;
+
+    private final ArrayList<Rect> mRegions = new ArrayList<>();
+    private final ArrayList<Palette.Filter> mFilters = new ArrayList<>();
+
+    RegionPaletteExtractor(Bitmap bitmap) {
+        mScaledBitmap = scaleBitmapDown(bitmap);
+        mScale = mScaledBitmap.getWidth() / (double) bitmap.getWidth();
+    }
+
+    private static Bitmap scaleBitmapDown(Bitmap bitmap) {
+        int bitmapArea = bitmap.getWidth() * bitmap.getHeight();
+        if (bitmapArea <= RESIZE_BITMAP_AREA) {
+            return bitmap;
+        }
+        double scaleRatio = Math.sqrt(RESIZE_BITMAP_AREA / (double) bitmapArea);
+        return Bitmap.createScaledBitmap(bitmap,
+                (int) Math.ceil(bitmap.getWidth() * scaleRatio),
+                (int) Math.ceil(bitmap.getHeight() * scaleRatio), false);
+    }
+
+    /**
+     * Adds a region of the bitmap to generate a palette for.
+     *
+     * @param filter the filter of the colors of the palette, or null to keep all of them.
+     * @return the index of the palette of the region in the result of {@link #generate()}.
+     */
+    int addRegion(int left, int top, int right, int bottom, Palette.Filter filter) {
+        Rect region = new Rect(
+                (int) Math.floor(left * mScale),
+                (int) Math.floor(top * mScale),
+                Math.min((int) Math.ceil(right * mScale), mScaledBitmap.getWidth()),
+                Math.min((int) Math.ceil(bottom * mScale), mScaledBitmap.getHeight()));
+        mRegions.add(region);
+        mFilters.add(filter);
+        return mRegions.size() - 1;
+    }
+
+    /**
+     * Returns the palettes of the regions, in the order they were added.
+     */
+    Palette[] generate() {
+        int width = mScaledBitmap.getWidth();
+        int height = mScaledBitmap.getHeight();
+        int[] pixels = new int[width * height];
+        mScaledBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        int regionCount = mRegions.size();
+        int[][] histograms = new int[regionCount][1 << (QUANTIZE_WORD_WIDTH * 3)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = quantizeFromRgb888(pixels[y * width + x]);
+                for (int i = 0; i < regionCount; i++) {
+                    if (mRegions.get(i).contains(x, y)) {
+                        histograms[i][color]++;
+                    }
+                }
+            }
+        }
+
+        Palette[] palettes = new Palette[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            List<Palette.Swatch> swatches =
+                    new ColorCutQuantizer(histograms[i], MAX_COLORS, mFilters.get(i)).mSwatches;
+            if (swatches.isEmpty()) {
+                // Palette.Builder doesn't accept an empty list of swatches
+                palettes[i] = generateFallback(i);
+                continue;
+            }
+            palettes[i] = new Palette.Builder(swatches)
+                    .clearTargets()
+                    .addTarget(Target.LIGHT_VIBRANT)
+                    .addTarget(Target.VIBRANT)
+                    .addTarget(Target.DARK_VIBRANT)
+                    .addTarget(Target.LIGHT_MUTED)
+                    .addTarget(Target.MUTED)
+                    .addTarget(Target.DARK_MUTED)
+                    .generate();
+        }
+        return palettes;
+    }
+
+    private Palette generateFallback(int index) {
+        Rect region = mRegions.get(index);
+        Palette.Builder builder = Palette.from(mScaledBitmap)
+                .setRegion(region.left, region.top, region.right, region.bottom)
+                .clearFilters();
+        if (mFilters.get(index) != null) {
+            builder.addFilter(mFilters.get(index));
+        }
+        return builder.generate();
+    }
+
+    /**
+     * The median cut of {@link Palette}, on a histogram of quantized colors.
+     */
+    private static class ColorCutQuantizer {
+        private static final int COMPONENT_RED = -3;
+        private static final int COMPONENT_GREEN = -2;
+        private static final int COMPONENT_BLUE = -1;
+
+        final int[] mColors;
+        final int[] mHistogram;
+        final Palette.Filter mFilter;
+        final List<Palette.Swatch> mSwatches;
+
+        private final float[] mTempHsl = new float[3];
+
+        ColorCutQuantizer(int[] histogram, int maxColors, Palette.Filter filter) {
+            mHistogram = histogram;
+            mFilter = filter;
+
+            int distinctColorCount = 0;
+            for (int color = 0; color < histogram.length; color++) {
+                if (histogram[color] > 0 && shouldIgnoreColor(color)) {
+                    histogram[color] = 0;
+                }
+                if (histogram[color] > 0) {
+                    distinctColorCount++;
+                }
+            }
+            mColors = new int[distinctColorCount];
+            int distinctColorIndex = 0;
+            for (int color = 0; color < histogram.length; color++) {
+                if (histogram[color] > 0) {
+                    mColors[distinctColorIndex++] = color;
+                }
+            }
+
+            if (distinctColorCount <= maxColors) {
+                mSwatches = new ArrayList<>();
+                for (int color : mColors) {
+                    mSwatches.add(new Palette.Swatch(approximateToRgb888(color),
+                            histogram[color]));
+                }
+            } else {
+                mSwatches = quantizePixels(maxColors);
+            }
+        }
+
+        private List<Palette.Swatch> quantizePixels(int maxColors) {
+            PriorityQueue<Vbox> queue = new PriorityQueue<>(maxColors, VBOX_COMPARATOR_VOLUME);
+            queue.offer(new Vbox(0, mColors.length - 1));
+            while (queue.size() < maxColors) {
+                Vbox vbox = queue.poll();
+                if (vbox != null && vbox.canSplit()) {
+                    queue.offer(vbox.splitBox());
+                    queue.offer(vbox);
+                } else {
+                    break;
+                }
+            }
+
+            ArrayList<Palette.Swatch> swatches = new ArrayList<>(queue.size());
+            for (Vbox vbox : queue) {
+                Palette.Swatch swatch = vbox.getAverageColor();
+                if (!shouldIgnoreColor(swatch.getRgb(), swatch.getHsl())) {
+                    swatches.add(swatch);
+                }
+            }
+            return swatches;
+        }
+
+        private boolean shouldIgnoreColor(int quantizedColor) {
+            int rgb = approximateToRgb888(quantizedColor);
+            ColorUtils.colorToHSL(rgb, mTempHsl);
+            return shouldIgnoreColor(rgb, mTempHsl);
+        }
+
+        private boolean shouldIgnoreColor(int rgb, float[] hsl) {
+            return mFilter != null && !mFilter.isAllowed(rgb, hsl);
+        }
+
+        /**
+         * A box of the color space, covering the colors of {@link #mColors} between two indices.
+         */
+        private class Vbox {
+            private int mLowerIndex;
+            private int mUpperIndex;
+            private int mPopulation;
+
+            private int mMinRed, mMaxRed;
+            private int mMinGreen, mMaxGreen;
+            private int mMinBlue, mMaxBlue;
+
+            Vbox(int lowerIndex, int upperIndex) {
+                mLowerIndex = lowerIndex;
+                mUpperIndex = upperIndex;
+                fitBox();
+            }
+
+            int getVolume() {
+                return (mMaxRed - mMinRed + 1) * (mMaxGreen - mMinGreen + 1)
+                        * (mMaxBlue - mMinBlue + 1);
+            }
+
+            boolean canSplit() {
+                return mUpperIndex - mLowerIndex + 1 > 1;
+            }
+
+            void fitBox() {
+                int minRed = Integer.MAX_VALUE, minGreen = Integer.MAX_VALUE;
+                int minBlue = Integer.MAX_VALUE;
+                int maxRed = Integer.MIN_VALUE, maxGreen = Integer.MIN_VALUE;
+                int maxBlue = Integer.MIN_VALUE;
+                int count = 0;
+                for (int i = mLowerIndex; i <= mUpperIndex; i++) {
+                    int color = mColors[i];
+                    count += mHistogram[color];
+                    int r = quantizedRed(color);
+                    int g = quantizedGreen(color);
+                    int b = quantizedBlue(color);
+                    maxRed = Math.max(maxRed, r);
+                    minRed = Math.min(minRed, r);
+                    maxGreen = Math.max(maxGreen, g);
+                    minGreen = Math.min(minGreen, g);
+                    maxBlue = Math.max(maxBlue, b);
+                    minBlue = Math.min(minBlue, b);
+                }
+                mMinRed = minRed;
+                mMaxRed = maxRed;
+                mMinGreen = minGreen;
+                mMaxGreen = maxGreen;
+                mMinBlue = minBlue;
+                mMaxBlue = maxBlue;
+                mPopulation = count;
+            }
+
+            /**
+             * Splits the box at the median of its longest dimension, keeps the lower half and
+             * returns the upper half.
+             */
+            Vbox splitBox() {
+                int splitPoint = findSplitPoint();
+                Vbox newBox = new Vbox(splitPoint + 1, mUpperIndex);
+                mUpperIndex = splitPoint;
+                fitBox();
+                return newBox;
+            }
+
+            private int getLongestColorDimension() {
+                int redLength = mMaxRed - mMinRed;
+                int greenLength = mMaxGreen - mMinGreen;
+                int blueLength = mMaxBlue - mMinBlue;
+                if (redLength >= greenLength && redLength >= blueLength) {
+                    return COMPONENT_RED;
+                } else if (greenLength >= redLength && greenLength >= blueLength) {
+                    return COMPONENT_GREEN;
+                } else {
+                    return COMPONENT_BLUE;
+                }
+            }
+
+            private int findSplitPoint() {
+                int longestDimension = getLongestColorDimension();
+                // Sort the colors of the box along the longest dimension
+                modifySignificantOctet(mColors, longestDimension, mLowerIndex, mUpperIndex);
+                Arrays.sort(mColors, mLowerIndex, mUpperIndex + 1);
+                modifySignificantOctet(mColors, longestDimension, mLowerIndex, mUpperIndex);
+
+                int midPoint = mPopulation / 2;
+                for (int i = mLowerIndex, count = 0; i <= mUpperIndex; i++) {
+                    count += mHistogram[mColors[i]];
+                    if (count >= midPoint) {
+                        return Math.min(mUpperIndex - 1, i);
+                    }
+                }
+                return mLowerIndex;
+            }
+
+            Palette.Swatch getAverageColor() {
+                int redSum = 0;
+                int greenSum = 0;
+                int blueSum = 0;
+                int totalPopulation = 0;
+                for (int i = mLowerIndex; i <= mUpperIndex; i++) {
+                    int color = mColors[i];
+                    int colorPopulation = mHistogram[color];
+                    totalPopulation += colorPopulation;
+                    redSum += colorPopulation * quantizedRed(color);
+                    greenSum += colorPopulation * quantizedGreen(color);
+                    blueSum += colorPopulation * quantizedBlue(color);
+                }
+                int redMean = Math.round(redSum / (float) totalPopulation);
+                int greenMean = Math.round(greenSum / (float) totalPopulation);
+                int blueMean = Math.round(blueSum / (float) totalPopulation);
+                return new Palette.Swatch(approximateToRgb888(redMean, greenMean, blueMean),
+                        totalPopulation);
+            }
+        }
+
+        private static final Comparator<Vbox> VBOX_COMPARATOR_VOLUME = new Comparator<Vbox>() {
+            @Override
+            public int compare(Vbox lhs, Vbox rhs) {
+                return rhs.getVolume() - lhs.getVolume();
+            }
+        };
+
+        /**
+         * Moves the component {@param dimension} of the colors to the most significant position,
+         * or back. Red already is the most significant component.
+         */
+        private static void modifySignificantOctet(int[] a, int dimension, int lower, int upper) {
+            switch (dimension) {
+                case COMPONENT_RED:
+                    break;
+                case COMPONENT_GREEN:
+                    for (int i = lower; i <= upper; i++) {
+                        int color = a[i];
+                        a[i] = quantizedGreen(color) << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)
+                                | quantizedRed(color) << QUANTIZE_WORD_WIDTH
+                                | quantizedBlue(color);
+                    }
+                    break;
+                case COMPONENT_BLUE:
+                    for (int i = lower; i <= upper; i++) {
+                        int color = a[i];
+                        a[i] = quantizedBlue(color) << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)
+                                | quantizedGreen(color) << QUANTIZE_WORD_WIDTH
+                                | quantizedRed(color);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static int quantizeFromRgb888(int color) {
+        int r = modifyWordWidth(Color.red(color), 8, QUANTIZE_WORD_WIDTH);
+        int g = modifyWordWidth(Color.green(color), 8, QUANTIZE_WORD_WIDTH);
+        int b = modifyWordWidth(Color.blue(color), 8, QUANTIZE_WORD_WIDTH);
+        return r << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH) | g << QUANTIZE_WORD_WIDTH | b;
+    }
+
+    private static int approximateToRgb888(int r, int g, int b) {
+        return Color.rgb(modifyWordWidth(r, QUANTIZE_WORD_WIDTH, 8),
+                modifyWordWidth(g, QUANTIZE_WORD_WIDTH, 8),
+                modifyWordWidth(b, QUANTIZE_WORD_WIDTH, 8));
+    }
+
+    private static int approximateToRgb888(int color) {
+        return approximateToRgb888(quantizedRed(color), quantizedGreen(color),
+                quantizedBlue(color));
+    }
+
+    private static int quantizedRed(int color) {
+        return (color >> (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int quantizedGreen(int color) {
+        return (color >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int quantizedBlue(int color) {
+        return color & QUANTIZE_WORD_MASK;
+    }
+
+    private static int modifyWordWidth(int value, int currentWidth, int targetWidth) {
+        int newValue;
+        if (targetWidth > currentWidth) {
+            newValue = value << (targetWidth - currentWidth);
+        } else {
+            newValue = value >> (currentWidth - targetWidth);
+        }
+        return newValue & ((1 << targetWidth) - 1);
+    }
+}
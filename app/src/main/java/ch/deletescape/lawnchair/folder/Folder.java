@@ -438,6 +438,10 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         mFolderIcon = icon;
     }
 
+    public FolderIcon getFolderIcon() {
+        return mFolderIcon;
+    }
+
     @Override
     protected void onAttachedToWindow() {
         // requestFocus() causes the focus onto the folder itself, which doesn't cause visual
@@ -46,6 +46,7 @@ import ch.deletescape.lawnchair.R;
 import ch.deletescape.lawnchair.ShortcutAndWidgetContainer;
 import ch.deletescape.lawnchair.ShortcutInfo;
 import ch.deletescape.lawnchair.Utilities;
+import ch.deletescape.lawnchair.Workspace;
 import ch.deletescape.lawnchair.Workspace.ItemOperator;
 import ch.deletescape.lawnchair.dragndrop.DragController;
 import ch.deletescape.lawnchair.keyboard.ViewGroupFocusHelper;
@@ -247,6 +248,11 @@ public class FolderPagedView extends PagedView {
         page.setImportantForAccessibility(IMPORTANT_FOR_ACCESSIBILITY_NO);
         page.setInvertIfRtl(true);
         page.setGridSize(mGridCountX, mGridCountY);
+        Workspace workspace = mFolder.mLauncher.getWorkspace();
+        if (workspace != null) {
+            page.getShortcutsAndWidgets().setOnHierarchyChangeListener(
+                    workspace.getItemViewIndex().newFolderListener(mFolder));
+        }
 
         addView(page, -1, generateDefaultLayoutParams());
         return page;
@@ -0,0 +1,141 @@
+package ch.deletescape.lawnchair.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serializes icon bitmaps as their raw premultiplied pixels, compressed with
+ * {@link Deflater#BEST_SPEED}. For icon sized bitmaps this is a lot cheaper to encode and decode
+ * than PNG, at the cost of slightly larger blobs.
+ * <p>
+ * A blob consists of a 7 byte header (magic, format version, config, width and height as
+ * unsigned shorts) followed by the compressed pixels.
+ */
+public class IconBlobCodec {
+
+    public static final int FORMAT_VERSION = 1;
+
+    // PNG data always starts with 0x89, so this can't be confused with a legacy blob.
+    private static final byte MAGIC = 0x4c;
+    private static final int HEADER_SIZE = 7;
+
+    private static final byte CONFIG_ARGB_8888 = 0;
+    private static final byte CONFIG_RGB_565 = 1;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Buffers and (de)compressors reused across calls on the same thread.
+     */
+    private static class Scratch {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final Inflater inflater = new Inflater();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer pixels = ByteBuffer.allocate(0);
+
+        ByteBuffer getPixels(int byteCount) {
+            if (pixels.capacity() < byteCount) {
+                pixels = ByteBuffer.allocate(byteCount);
+            }
+            pixels.clear();
+            pixels.limit(byteCount);
+            return pixels;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Returns true if {@param data} was created by {@link #encode(Bitmap)} with the current
+     * format version.
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE
+                && data[0] == MAGIC && data[1] == FORMAT_VERSION;
+    }
+
+    public static byte[] encode(Bitmap bitmap) {
+        byte config = bitmap.getConfig() == Config.RGB_565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888;
+        if (config == CONFIG_ARGB_8888 && bitmap.getConfig() != Config.ARGB_8888) {
+            bitmap = bitmap.copy(Config.ARGB_8888, false);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int byteCount = bitmap.getByteCount();
+
+        Scratch scratch = sScratch.get();
+        ByteBuffer pixels = scratch.getPixels(byteCount);
+        bitmap.copyPixelsToBuffer(pixels);
+
+        Deflater deflater = scratch.deflater;
+        deflater.reset();
+        deflater.setInput(pixels.array(), 0, byteCount);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + byteCount / 4);
+        out.write(MAGIC);
+        out.write(FORMAT_VERSION);
+        out.write(config);
+        out.write(width >> 8);
+        out.write(width);
+        out.write(height >> 8);
+        out.write(height);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(scratch.chunk);
+            out.write(scratch.chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a blob created by {@link #encode(Bitmap)}, or returns null if the data is invalid.
+     */
+    public static Bitmap decode(byte[] data) {
+        if (!isEncoded(data)) {
+            return null;
+        }
+        Config config = data[2] == CONFIG_RGB_565 ? Config.RGB_565 : Config.ARGB_8888;
+        int width = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+        int height = ((data[5] & 0xff) << 8) | (data[6] & 0xff);
+        if (width == 0 || height == 0) {
+            return null;
+        }
+        int byteCount = width * height * (config == Config.RGB_565 ? 2 : 4);
+
+        Scratch scratch = sScratch.get();
+        ByteBuffer pixels = scratch.getPixels(byteCount);
+        Inflater inflater = scratch.inflater;
+        inflater.reset();
+        inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        try {
+            int read = 0;
+            while (read < byteCount) {
+                int count = inflater.inflate(pixels.array(), read, byteCount - read);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != byteCount) {
+                return null;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+}
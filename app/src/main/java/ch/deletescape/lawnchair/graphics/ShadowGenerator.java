@@ -41,9 +41,14 @@ public class ShadowGenerator {
 
     private static final int AMBIENT_SHADOW_ALPHA = 30;
 
-    private static final Object LOCK = new Object();
-    // Singleton object guarded by {@link #LOCK}
-    private static ShadowGenerator sShadowGenerator;
+    // One instance per thread, so that icons can be rendered on several threads at once
+    private static final ThreadLocal<ShadowGenerator> sShadowGenerator =
+            new ThreadLocal<ShadowGenerator>() {
+                @Override
+                protected ShadowGenerator initialValue() {
+                    return new ShadowGenerator();
+                }
+            };
 
     private final int mIconSize;
 
@@ -104,12 +109,7 @@ public class ShadowGenerator {
     }
 
     public static ShadowGenerator getInstance() {
-        synchronized (LOCK) {
-            if (sShadowGenerator == null) {
-                sShadowGenerator = new ShadowGenerator();
-            }
-        }
-        return sShadowGenerator;
+        return sShadowGenerator.get();
     }
 
 
@@ -3,6 +3,8 @@ package ch.deletescape.lawnchair.iconpack;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.ArrayMap;
 import android.util.Xml;
 import android.widget.Toast;
@@ -30,7 +32,8 @@ public class IconPackProvider {
         return loadAndGetIconPack(context, packageName);
     }
 
-    public static IconPack loadAndGetIconPack(Context context, String packageName) {
+    // Icon packs are loaded from the worker thread as well as from the UI thread
+    public static synchronized IconPack loadAndGetIconPack(Context context, String packageName) {
         if ("".equals(packageName)) {
             return null;
         }
@@ -47,7 +50,7 @@ public class IconPackProvider {
         try {
             iconPacks.put(packageName, parseAppFilter(context, packageName));
         } catch (Exception e) {
-            Toast.makeText(context, "Invalid IconPack", Toast.LENGTH_SHORT).show();
+            showToast(context, "Invalid IconPack");
             iconPacks.put(packageName, null);
         }
     }
@@ -150,11 +153,23 @@ public class IconPackProvider {
                 return parser;
             }
         } catch (PackageManager.NameNotFoundException | IOException | XmlPullParserException e) {
-            Toast.makeText(context, "Failed to get AppFilter", Toast.LENGTH_SHORT).show();
+            showToast(context, "Failed to get AppFilter");
         }
         return null;
     }
 
+    /**
+     * Shows a toast from any thread, as icon packs are mostly loaded off the UI thread.
+     */
+    private static void showToast(final Context context, final String text) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     public static class IconInfo {
 
         public String drawable;
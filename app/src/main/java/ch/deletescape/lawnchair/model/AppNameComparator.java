@@ -17,6 +17,7 @@ package ch.deletescape.lawnchair.model;
 
 import android.content.Context;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Comparator;
 
@@ -30,6 +31,27 @@ import ch.deletescape.lawnchair.util.Thunk;
  * Used to sort application name in all apps view and widget tray view.
  */
 public class AppNameComparator {
+
+    /**
+     * The collation key of an app title, so that sorting apps compares bytes instead of going
+     * through the collator every time. It is only valid for the title and the collator it was
+     * computed with, and is recomputed when either changes.
+     */
+    public static class TitleKey {
+        final CharSequence title;
+        final Collator collator;
+        final boolean startsWithLetter;
+        final CollationKey collationKey;
+
+        TitleKey(CharSequence title, Collator collator) {
+            String titleString = title.toString();
+            this.title = title;
+            this.collator = collator;
+            startsWithLetter = startsWithLetterOrDigit(titleString);
+            collationKey = collator.getCollationKey(titleString);
+        }
+    }
+
     private final Collator mCollator;
     private final AbstractUserComparator<ItemInfo> mAppInfoComparator;
     private final Comparator<String> mSectionNameComparator;
@@ -41,7 +63,9 @@ public class AppNameComparator {
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
                 // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
+                int result = a instanceof AppInfo && b instanceof AppInfo
+                        ? compareTitleKeys(getTitleKey((AppInfo) a), getTitleKey((AppInfo) b))
+                        : compareTitles(a.title.toString(), b.title.toString());
                 if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
                     AppInfo aAppInfo = (AppInfo) a;
                     AppInfo bAppInfo = (AppInfo) b;
@@ -78,16 +102,27 @@ public class AppNameComparator {
         return mSectionNameComparator;
     }
 
+    /**
+     * Returns the title key of {@param info}, computing it if its title or the collator changed.
+     */
+    @Thunk
+    TitleKey getTitleKey(AppInfo info) {
+        TitleKey key = info.titleKey;
+        if (key == null || key.title != info.title || key.collator != mCollator) {
+            key = new TitleKey(info.title, mCollator);
+            info.titleKey = key;
+        }
+        return key;
+    }
+
     /**
      * Compares two titles with the same return value semantics as Comparator.
      */
     @Thunk
     int compareTitles(String titleA, String titleB) {
         // Ensure that we de-prioritize any titles that don't start with a linguistic letter or digit
-        boolean aStartsWithLetter = (titleA.length() > 0) &&
-                Character.isLetterOrDigit(titleA.codePointAt(0));
-        boolean bStartsWithLetter = (titleB.length() > 0) &&
-                Character.isLetterOrDigit(titleB.codePointAt(0));
+        boolean aStartsWithLetter = startsWithLetterOrDigit(titleA);
+        boolean bStartsWithLetter = startsWithLetterOrDigit(titleB);
         if (aStartsWithLetter && !bStartsWithLetter) {
             return -1;
         } else if (!aStartsWithLetter && bStartsWithLetter) {
@@ -97,4 +132,22 @@ public class AppNameComparator {
         // Order by the title in the current locale
         return mCollator.compare(titleA, titleB);
     }
+
+    /**
+     * Same as {@link #compareTitles(String, String)} for precomputed title keys.
+     */
+    @Thunk
+    static int compareTitleKeys(TitleKey keyA, TitleKey keyB) {
+        if (keyA.startsWithLetter && !keyB.startsWithLetter) {
+            return -1;
+        } else if (!keyA.startsWithLetter && keyB.startsWithLetter) {
+            return 1;
+        }
+        return keyA.collationKey.compareTo(keyB.collationKey);
+    }
+
+    @Thunk
+    static boolean startsWithLetterOrDigit(String title) {
+        return (title.length() > 0) && Character.isLetterOrDigit(title.codePointAt(0));
+    }
 }
@@ -10,11 +10,14 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
@@ -34,6 +37,7 @@ import ch.deletescape.lawnchair.config.ProviderConfig;
 import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
 import ch.deletescape.lawnchair.util.GridOccupancy;
 import ch.deletescape.lawnchair.util.LongArrayMap;
+import ch.deletescape.lawnchair.util.Thunk;
 
 /**
  * This class takes care of shrinking the workspace (by maximum of one row and one column), as a
@@ -54,6 +58,13 @@ public class GridSizeMigrationTask {
     private static final float WT_WIDGET_FACTOR = 0.6f;
     private static final float WT_FOLDER_FACTOR = 0.5f;
 
+    // Time after which a placement search settles for the best placement found so far.
+    private static final long SEARCH_TIME_BUDGET_MS = 50;
+    // Limits the memory used to remember the visited search states.
+    private static final int MAX_VISITED_STATES = 20000;
+    // Tolerance for the rounding errors of the summed weights.
+    private static final float WEIGHT_EPSILON = 0.001f;
+
     private final Context mContext;
 
     private final HashMap<String, Point> mWidgetMinSize = new HashMap<>();
@@ -70,6 +81,14 @@ public class GridSizeMigrationTask {
     private final int mSrcHotseatSize;
     private final int mDestHotseatSize;
 
+    // Statistics of the placement searches
+    @Thunk
+    int mSearchCount;
+    @Thunk
+    int mVisitedCount;
+    @Thunk
+    int mOverBudgetCount;
+
     protected GridSizeMigrationTask(Context context, HashSet<String> validPackages, Point sourceSize, Point targetSize) {
         mContext = context;
         mValidPackages = validPackages;
@@ -228,6 +247,8 @@ public class GridSizeMigrationTask {
                 mUpdateOperations.add(ContentProviderOperation.newInsert(uri).withValues(v).build());
             }
         }
+        Log.v(TAG, "Placement searches: " + mSearchCount + ", visited states: " + mVisitedCount
+                + ", over budget: " + mOverBudgetCount);
         return applyOperations();
     }
 
@@ -399,6 +420,18 @@ public class GridSizeMigrationTask {
         float lowestMoveCost = Float.MAX_VALUE;
         ArrayList<DbEntry> finalPlacedItems;
 
+        // For every index, the items from that index on sorted by weight per cell, used to
+        // bound the weight which will at least be lost placing them.
+        private DbEntry[][] remainingByDensity;
+
+        // Lowest costs seen so far when reaching a given index with a given occupancy. Reaching
+        // the same state again at a higher cost can't lead to a better solution.
+        private final HashMap<PlacementState, float[]> visitedStates = new HashMap<>();
+
+        private long deadline;
+        private int visitedCount;
+        boolean overBudget;
+
         public OptimalPlacementSolution(
                 GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace, int startY) {
             this(occupied, itemsToPlace, startY, false);
@@ -415,8 +448,152 @@ public class GridSizeMigrationTask {
             Collections.sort(this.itemsToPlace);
         }
 
+        /**
+         * Starts with a greedy placement, and improves on it with a branch and bound search
+         * until the best placement is found or {@link #SEARCH_TIME_BUDGET_MS} runs out.
+         */
         public void find() {
+            findGreedy();
+            if (lowestWeightLoss == 0 && lowestMoveCost == 0) {
+                // Nothing can beat placing everything without moving anything.
+                return;
+            }
+            prepareBounds();
+            deadline = SystemClock.uptimeMillis() + SEARCH_TIME_BUDGET_MS;
             find(0, 0, 0, new ArrayList<DbEntry>());
+
+            mSearchCount++;
+            mVisitedCount += visitedCount;
+            if (overBudget) {
+                mOverBudgetCount++;
+            }
+        }
+
+        /**
+         * Places the items one by one at their cheapest vacant position, dropping the ones which
+         * don't fit anymore. Mirrors the costs of {@link #find(int, float, float, ArrayList)}.
+         */
+        private void findGreedy() {
+            int count = itemsToPlace.size();
+            int[] original = new int[count * 4];
+            float weightLoss = 0;
+            float moveCost = 0;
+            ArrayList<DbEntry> itemsPlaced = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                DbEntry me = itemsToPlace.get(i);
+                original[i * 4] = me.cellX;
+                original[i * 4 + 1] = me.cellY;
+                original[i * 4 + 2] = me.spanX;
+                original[i * 4 + 3] = me.spanY;
+
+                int bestX = -1, bestY = -1, bestW = 0, bestH = 0;
+                float bestCost = Float.MAX_VALUE;
+                int bestDistance = Integer.MAX_VALUE;
+                // The spans to try, with their extra move cost
+                for (int resize = 0; resize < 4; resize++) {
+                    int w = me.spanX - (resize & 1);
+                    int h = me.spanY - (resize >> 1);
+                    if (w < me.minSpanX && w < me.spanX || h < me.minSpanY && h < me.spanY
+                            || w < 1 || h < 1) {
+                        continue;
+                    }
+                    for (int y = startY; y < mTrgY; y++) {
+                        for (int x = 0; x < mTrgX; x++) {
+                            if (!occupied.isRegionVacant(x, y, w, h)) {
+                                continue;
+                            }
+                            float cost = ignoreMove ? 0 : Integer.bitCount(resize)
+                                    + (x != me.cellX ? 1 : 0) + (y != me.cellY ? 1 : 0);
+                            int distance = ignoreMove ? 0 : (me.cellX - x) * (me.cellX - x)
+                                    + (me.cellY - y) * (me.cellY - y);
+                            if (cost < bestCost || (cost == bestCost && distance < bestDistance)) {
+                                bestCost = cost;
+                                bestDistance = distance;
+                                bestX = x;
+                                bestY = y;
+                                bestW = w;
+                                bestH = h;
+                            }
+                        }
+                    }
+                }
+
+                if (bestX < 0) {
+                    weightLoss += me.weight;
+                } else {
+                    me.cellX = bestX;
+                    me.cellY = bestY;
+                    me.spanX = bestW;
+                    me.spanY = bestH;
+                    occupied.markCells(me, true);
+                    moveCost += bestCost;
+                    itemsPlaced.add(me);
+                }
+            }
+
+            lowestWeightLoss = weightLoss;
+            lowestMoveCost = moveCost;
+            finalPlacedItems = deepCopy(itemsPlaced);
+
+            // Restore the initial state for the search
+            for (DbEntry item : itemsPlaced) {
+                occupied.markCells(item, false);
+            }
+            for (int i = 0; i < count; i++) {
+                DbEntry me = itemsToPlace.get(i);
+                me.cellX = original[i * 4];
+                me.cellY = original[i * 4 + 1];
+                me.spanX = original[i * 4 + 2];
+                me.spanY = original[i * 4 + 3];
+            }
+        }
+
+        private void prepareBounds() {
+            int count = itemsToPlace.size();
+            remainingByDensity = new DbEntry[count + 1][];
+            ArrayList<DbEntry> remaining = new ArrayList<>(count);
+            remainingByDensity[count] = new DbEntry[0];
+            for (int i = count - 1; i >= 0; i--) {
+                remaining.add(itemsToPlace.get(i));
+                Collections.sort(remaining, new Comparator<DbEntry>() {
+                    @Override
+                    public int compare(DbEntry a, DbEntry b) {
+                        return Float.compare(a.weight / minArea(a), b.weight / minArea(b));
+                    }
+                });
+                remainingByDensity[i] = remaining.toArray(new DbEntry[remaining.size()]);
+            }
+        }
+
+        /**
+         * Returns a lower bound of the weight lost placing the items from {@param index} on: if
+         * they need more cells than are vacant, at least the lightest cells have to be dropped.
+         */
+        private float getWeightLossBound(int index) {
+            int vacant = mTrgX * (mTrgY - startY) - occupied.getOccupiedCount(startY);
+            float bound = 0;
+            int needed = 0;
+            DbEntry[] remaining = remainingByDensity[index];
+            for (DbEntry item : remaining) {
+                needed += minArea(item);
+            }
+            int excess = needed - vacant;
+            for (int i = 0; excess > 0 && i < remaining.length; i++) {
+                int area = minArea(remaining[i]);
+                int dropped = Math.min(area, excess);
+                bound += remaining[i].weight * dropped / area;
+                excess -= dropped;
+            }
+            return bound;
+        }
+
+        private boolean isOverBudget() {
+            if (!overBudget && (++visitedCount & 0xff) == 0
+                    && SystemClock.uptimeMillis() > deadline) {
+                overBudget = true;
+            }
+            return overBudget;
         }
 
         /**
@@ -434,6 +611,12 @@ public class GridSizeMigrationTask {
                 // Abort, as we already have a better solution.
                 return;
 
+            } else if (index < itemsToPlace.size() && (isOverBudget()
+                    || weightLoss + getWeightLossBound(index) > lowestWeightLoss + WEIGHT_EPSILON
+                    || !visitState(index, weightLoss, moveCost))) {
+                // Abort, as this can't lead to a better solution or we are out of time.
+                return;
+
             } else if (index >= itemsToPlace.size()) {
                 // End loop.
                 lowestWeightLoss = weightLoss;
@@ -532,7 +715,7 @@ public class GridSizeMigrationTask {
 
                 for (int y = startY; y < mTrgY; y++) {
                     for (int x = 0; x < mTrgX; x++) {
-                        if (!occupied.cells[x][y]) {
+                        if (!occupied.isOccupied(x, y)) {
                             int dist = ignoreMove ? 0 :
                                     ((me.cellX - x) * (me.cellX - x) + (me.cellY - y) * (me.cellY - y));
                             if (dist < newDistance) {
@@ -582,6 +765,65 @@ public class GridSizeMigrationTask {
                 }
             }
         }
+
+        /**
+         * Records reaching {@param index} with the current occupancy at the given cost.
+         *
+         * @return false if the same state was already reached at a lower or equal cost.
+         */
+        private boolean visitState(int index, float weightLoss, float moveCost) {
+            PlacementState state = new PlacementState(index, occupied.getRowMasks());
+            float[] best = visitedStates.get(state);
+            if (best == null) {
+                if (visitedStates.size() < MAX_VISITED_STATES) {
+                    visitedStates.put(state, new float[]{weightLoss, moveCost});
+                }
+                return true;
+            }
+            if (best[0] <= weightLoss && best[1] <= moveCost) {
+                return false;
+            }
+            if (weightLoss < best[0] || (weightLoss == best[0] && moveCost < best[1])) {
+                best[0] = weightLoss;
+                best[1] = moveCost;
+            }
+            return true;
+        }
+    }
+
+    @Thunk
+    static int minArea(DbEntry item) {
+        return Math.max(1, Math.min(item.minSpanX, item.spanX))
+                * Math.max(1, Math.min(item.minSpanY, item.spanY));
+    }
+
+    /**
+     * The part of the search state which determines which placements are still possible.
+     */
+    private static class PlacementState {
+        private final int index;
+        private final long[] rows;
+        private final int hashCode;
+
+        PlacementState(int index, long[] rows) {
+            this.index = index;
+            this.rows = rows;
+            this.hashCode = 31 * index + Arrays.hashCode(rows);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PlacementState)) {
+                return false;
+            }
+            PlacementState other = (PlacementState) o;
+            return index == other.index && Arrays.equals(rows, other.rows);
+        }
     }
 
     private ArrayList<DbEntry> loadHotseatEntries() {
@@ -0,0 +1,75 @@
+package ch.deletescape.lawnchair.model;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Records how long each stage of a loader run took and on which thread it ran.
+ * The last trace is printed by {@code adb shell dumpsys activity}.
+ */
+public class LoaderTrace {
+
+    private static class Stage {
+        final String name;
+        final String thread;
+        final long start;
+        final long end;
+        final boolean cancelled;
+
+        Stage(String name, String thread, long start, long end, boolean cancelled) {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.end = end;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private final ArrayList<Stage> mStages = new ArrayList<>();
+    private long mEndTime;
+
+    /**
+     * Returns the start time to pass to {@link #end(String, long)}.
+     */
+    public long begin() {
+        return SystemClock.uptimeMillis();
+    }
+
+    public void end(String stage, long startTime) {
+        end(stage, startTime, false);
+    }
+
+    public synchronized void end(String stage, long startTime, boolean cancelled) {
+        mStages.add(new Stage(stage, Thread.currentThread().getName(),
+                startTime, SystemClock.uptimeMillis(), cancelled));
+    }
+
+    public synchronized void finish() {
+        mEndTime = SystemClock.uptimeMillis();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("loader run: ");
+        if (mEndTime == 0) {
+            writer.println("in progress");
+        } else {
+            writer.println((mEndTime - mStartTime) + "ms");
+        }
+        for (Stage stage : mStages) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(stage.name);
+            writer.print(": +");
+            writer.print(stage.start - mStartTime);
+            writer.print("ms, ");
+            writer.print(stage.end - stage.start);
+            writer.print("ms on ");
+            writer.print(stage.thread);
+            writer.println(stage.cancelled ? " (cancelled)" : "");
+        }
+    }
+}
@@ -39,13 +39,14 @@ import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
 public class PixelIconProvider {
     private BroadcastReceiver mBroadcastReceiver;
     private PackageManager mPackageManager;
-    private IconPack sIconPack;
+    // Read from the icon render threads, see IconCache.BatchedIconUpdateTask
+    private volatile IconPack sIconPack;
     private Context mContext;
     private final boolean mBackportAdaptive;
     private final IconShapeOverride.ShapeInfo mShapeInfo;
     private final IPreferenceProvider mPrefs;
 
-    private ArrayList<String> mCalendars;
+    private volatile ArrayList<String> mCalendars;
 
     public PixelIconProvider(Context context) {
         mBroadcastReceiver = new DynamicIconProviderReceiver(this);
@@ -110,12 +111,14 @@ public class PixelIconProvider {
     }
 
     public void updateIconPack() {
-        sIconPack = IconPackProvider.loadAndGetIconPack(mContext);
-        mCalendars = new ArrayList<>();
-        mCalendars.add("com.google.android.calendar");
-        if (sIconPack != null) {
-            mCalendars.addAll(sIconPack.getCalendars());
+        IconPack iconPack = IconPackProvider.loadAndGetIconPack(mContext);
+        ArrayList<String> calendars = new ArrayList<>();
+        calendars.add("com.google.android.calendar");
+        if (iconPack != null) {
+            calendars.addAll(iconPack.getCalendars());
         }
+        sIconPack = iconPack;
+        mCalendars = calendars;
     }
 
     private IconPack getIconPackForComponent(ComponentName componentName) {
@@ -17,20 +17,24 @@
 package ch.deletescape.lawnchair.popup;
 
 import android.content.ComponentName;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import ch.deletescape.lawnchair.ItemInfo;
 import ch.deletescape.lawnchair.Launcher;
+import ch.deletescape.lawnchair.LauncherModel;
 import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.badge.BadgeInfo;
 import ch.deletescape.lawnchair.notification.NotificationInfo;
@@ -40,6 +44,7 @@ import ch.deletescape.lawnchair.shortcuts.DeepShortcutManager;
 import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.MultiHashMap;
 import ch.deletescape.lawnchair.util.PackageUserKey;
+import ch.deletescape.lawnchair.util.Thunk;
 
 /**
  * Provides data for the popup menu that appears after long-clicking on apps.
@@ -63,6 +68,51 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
     /** Maps packages to their BadgeInfo's . */
     private Map<PackageUserKey, BadgeInfo> mPackageUserToBadgeInfos = new HashMap<>();
 
+    private final Handler mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+    private final Handler mUiHandler = new Handler();
+
+    /**
+     * The packages whose badge should be refreshed, and those whose notification icon should be
+     * chosen again, waiting for the next batch. Only accessed on the UI thread.
+     */
+    private final HashSet<PackageUserKey> mPendingBadgeRefreshes = new HashSet<>();
+    private final HashSet<PackageUserKey> mPendingBadgeIconUpdates = new HashSet<>();
+    /** True from the time a batch is scheduled until its results are applied. */
+    private boolean mBadgeBatchScheduled;
+    /** Set once the launcher is destroyed, the results of pending batches are dropped. */
+    @Thunk
+    volatile boolean mDestroyed;
+    private final Choreographer.FrameCallback mStartBadgeBatchCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    startBadgeBatch();
+                }
+            };
+
+    /** The notification last chosen for the badge of every package, only used on the worker. */
+    private final HashMap<PackageUserKey, ChosenNotification> mChosenNotifications =
+            new HashMap<>();
+
+    /**
+     * A notification whose icon is shown in a badge, along with the post it was loaded from.
+     */
+    private static class ChosenNotification {
+        final String key;
+        final long postTime;
+        final NotificationInfo info;
+
+        ChosenNotification(StatusBarNotification sbn, NotificationInfo info) {
+            key = sbn.getKey();
+            postTime = sbn.getPostTime();
+            this.info = info;
+        }
+
+        boolean isFrom(StatusBarNotification sbn) {
+            return postTime == sbn.getPostTime() && key.equals(sbn.getKey());
+        }
+    }
+
     public PopupDataProvider(Launcher launcher) {
         mLauncher = launcher;
     }
@@ -156,6 +206,8 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
 
     /**
      * Updates the icons on launcher (workspace, folders, all apps) to refresh their badges.
+     * The notification icons of the badges are chosen on the worker thread, and the updates
+     * made before the next frame are applied together.
      * @param updatedBadges The packages whose badges should be refreshed (either a notification was
      *                      added or removed, or the badge should show the notification icon).
      * @param shouldRefresh An optional parameter that will allow us to only refresh badges that
@@ -164,55 +216,176 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
      */
     private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges,
                                           boolean shouldRefresh) {
-        Iterator<PackageUserKey> iterator = updatedBadges.iterator();
-        while (iterator.hasNext()) {
-            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(iterator.next());
-            if (badgeInfo != null && !updateBadgeIcon(badgeInfo) && !shouldRefresh) {
-                // The notification icon isn't used, and the badge hasn't changed
-                // so there is no update to be made.
-                iterator.remove();
+        for (PackageUserKey packageUserKey : updatedBadges) {
+            if (shouldRefresh || !mPackageUserToBadgeInfos.containsKey(packageUserKey)) {
+                mPendingBadgeRefreshes.add(packageUserKey);
             }
+            mPendingBadgeIconUpdates.add(packageUserKey);
         }
-        if (!updatedBadges.isEmpty()) {
-            mLauncher.updateIconBadges(updatedBadges);
+        scheduleBadgeBatch();
+    }
+
+    private void scheduleBadgeBatch() {
+        if (!mBadgeBatchScheduled && !mDestroyed) {
+            mBadgeBatchScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mStartBadgeBatchCallback);
         }
     }
 
     /**
-     * Determines whether the badge should show a notification icon rather than a number,
-     * and sets that icon on the BadgeInfo if so.
-     * @param badgeInfo The badge to update with an icon (null if it shouldn't show one).
-     * @return Whether the badge icon potentially changed (true unless it stayed null).
+     * Sends the notification keys of the pending badges to the worker thread, which chooses the
+     * notification icon of every badge.
      */
-    private boolean updateBadgeIcon(BadgeInfo badgeInfo) {
-        try {
-            boolean hadNotificationToShow = badgeInfo.hasNotificationToShow();
-            NotificationInfo notificationInfo = null;
-            NotificationListener notificationListener = NotificationListener.getInstanceIfConnected();
-            if (notificationListener != null && badgeInfo.getNotificationKeys().size() >= 1) {
-                // Look for the most recent notification that has an icon that should be shown in badge.
-                for (NotificationKeyData notificationKeyData : badgeInfo.getNotificationKeys()) {
-                    String notificationKey = notificationKeyData.notificationKey;
-                    StatusBarNotification[] activeNotifications = notificationListener
-                            .getActiveNotifications(new String[]{notificationKey});
-                    if (activeNotifications.length == 1) {
-                        notificationInfo = new NotificationInfo(mLauncher, activeNotifications[0]);
-                        if (notificationInfo.shouldShowIconInBadge()) {
-                            // Found an appropriate icon.
-                            break;
-                        } else {
-                            // Keep looking.
-                            notificationInfo = null;
-                        }
+    @Thunk
+    void startBadgeBatch() {
+        final HashMap<PackageUserKey, List<String>> request = new HashMap<>();
+        for (PackageUserKey packageUserKey : mPendingBadgeIconUpdates) {
+            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            request.put(packageUserKey, badgeInfo == null ? Collections.<String>emptyList()
+                    : NotificationKeyData.extractKeysOnly(badgeInfo.getNotificationKeys()));
+        }
+        final HashSet<PackageUserKey> refreshes = new HashSet<>(mPendingBadgeRefreshes);
+        mPendingBadgeIconUpdates.clear();
+        mPendingBadgeRefreshes.clear();
+
+        mWorkerHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (mDestroyed) {
+                    return;
+                }
+                HashMap<PackageUserKey, NotificationInfo> chosen;
+                try {
+                    chosen = chooseNotificationsToShow(request);
+                } catch (RuntimeException e) {
+                    // Still finish the batch, otherwise no other batch would ever be started.
+                    // The badges without a result show their count.
+                    Log.e(TAG, "Failed to choose the notifications of the badges", e);
+                    chosen = new HashMap<>();
+                }
+                final HashMap<PackageUserKey, NotificationInfo> results = chosen;
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishBadgeBatch(request.keySet(), results, refreshes);
+                    }
+                });
+            }
+        }, this, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Called when the launcher is destroyed, to stop the pending badge batches.
+     */
+    public void onDestroy() {
+        mDestroyed = true;
+        Choreographer.getInstance().removeFrameCallback(mStartBadgeBatchCallback);
+        // The batches posted with this provider as their token
+        mWorkerHandler.removeCallbacksAndMessages(this);
+        mUiHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Determines for every package of {@param request} whether its badge should show a
+     * notification icon rather than a number, and which notification it should show. This
+     * makes a single binder call for all the packages and should be run on the worker thread.
+     * @return the notification to show for every package, null if the badge shouldn't show one.
+     *         Packages for which it couldn't be determined are left out.
+     */
+    @Thunk
+    HashMap<PackageUserKey, NotificationInfo> chooseNotificationsToShow(
+            HashMap<PackageUserKey, List<String>> request) {
+        HashMap<PackageUserKey, NotificationInfo> results = new HashMap<>();
+        NotificationListener notificationListener = NotificationListener.getInstanceIfConnected();
+        ArrayList<String> allKeys = new ArrayList<>();
+        for (List<String> keys : request.values()) {
+            allKeys.addAll(keys);
+        }
+
+        HashMap<String, StatusBarNotification> activeNotifications = new HashMap<>();
+        if (notificationListener != null && !allKeys.isEmpty()) {
+            try {
+                StatusBarNotification[] notifications = notificationListener
+                        .getActiveNotifications(allKeys.toArray(new String[allKeys.size()]));
+                if (notifications != null) {
+                    for (StatusBarNotification notification : notifications) {
+                        activeNotifications.put(notification.getKey(), notification);
                     }
                 }
+            } catch (SecurityException e) {
+                Log.e(getClass().getSimpleName(), "F*** Huawei ffs", e);
+                return results;
             }
-            badgeInfo.setNotificationToShow(notificationInfo);
-            return hadNotificationToShow || badgeInfo.hasNotificationToShow();
-        } catch(SecurityException e) {
-            Log.e(getClass().getSimpleName(), "F*** Huawei ffs", e);
         }
-        return true;
+
+        for (Map.Entry<PackageUserKey, List<String>> entry : request.entrySet()) {
+            PackageUserKey packageUserKey = entry.getKey();
+            ChosenNotification chosen = mChosenNotifications.get(packageUserKey);
+            NotificationInfo notificationInfo = null;
+            // Look for the most recent notification that has an icon that should be shown in badge.
+            for (String notificationKey : entry.getValue()) {
+                StatusBarNotification notification = activeNotifications.get(notificationKey);
+                if (notification == null) {
+                    continue;
+                }
+                if (chosen != null && chosen.isFrom(notification)) {
+                    // Same post as the last time, no need to load its icon again.
+                    notificationInfo = chosen.info;
+                    break;
+                }
+                notificationInfo = new NotificationInfo(mLauncher, notification);
+                if (notificationInfo.shouldShowIconInBadge()) {
+                    // Found an appropriate icon.
+                    chosen = new ChosenNotification(notification, notificationInfo);
+                    break;
+                } else {
+                    // Keep looking.
+                    notificationInfo = null;
+                }
+            }
+            if (notificationInfo == null) {
+                mChosenNotifications.remove(packageUserKey);
+            } else {
+                mChosenNotifications.put(packageUserKey, chosen);
+            }
+            results.put(packageUserKey, notificationInfo);
+        }
+        return results;
+    }
+
+    /**
+     * Sets the notifications chosen on the worker thread on the badges, and refreshes the icons
+     * of the badges which changed.
+     */
+    @Thunk
+    void finishBadgeBatch(Set<PackageUserKey> requested,
+                          HashMap<PackageUserKey, NotificationInfo> results,
+                          HashSet<PackageUserKey> refreshes) {
+        if (mDestroyed) {
+            return;
+        }
+        mBadgeBatchScheduled = false;
+        for (PackageUserKey packageUserKey : requested) {
+            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            if (badgeInfo == null || !results.containsKey(packageUserKey)) {
+                refreshes.add(packageUserKey);
+                continue;
+            }
+            NotificationInfo notificationInfo = results.get(packageUserKey);
+            if (badgeInfo.getNotificationToShow() != notificationInfo) {
+                badgeInfo.setNotificationToShow(notificationInfo);
+                refreshes.add(packageUserKey);
+            }
+            // Otherwise the notification icon isn't used or hasn't changed, and if the badge
+            // hasn't changed either there is no update to be made.
+        }
+
+        if (!mPendingBadgeIconUpdates.isEmpty() || !mPendingBadgeRefreshes.isEmpty()) {
+            scheduleBadgeBatch();
+        }
+        if (!refreshes.isEmpty()) {
+            mLauncher.updateIconBadges(refreshes);
+        }
     }
 
     public void setDeepShortcutMap(MultiHashMap<ComponentKey, String> deepShortcutMapCopy) {
@@ -44,6 +44,13 @@ public abstract class DeepShortcutManager {
 
     public abstract boolean wasLastCallSuccess();
 
+    /**
+     * Returns true if shortcuts can be queried from several threads at the same time.
+     */
+    public boolean supportsConcurrentQueries() {
+        return false;
+    }
+
     public abstract void onShortcutsChanged(List<ShortcutInfoCompat> shortcuts);
 
     public abstract List<ShortcutInfoCompat> queryForFullDetails(String packageName,
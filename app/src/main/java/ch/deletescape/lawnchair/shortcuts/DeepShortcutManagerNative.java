@@ -45,14 +45,20 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             | ShortcutQuery.FLAG_MATCH_MANIFEST | ShortcutQuery.FLAG_MATCH_PINNED;
 
     private final LauncherApps mLauncherApps;
-    private boolean mWasLastCallSuccess;
+    // Per thread, as the loader queries shortcuts from several threads at once
+    private final ThreadLocal<Boolean> mWasLastCallSuccess = new ThreadLocal<>();
 
     protected DeepShortcutManagerNative(Context context) {
         mLauncherApps = (LauncherApps) context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
     }
 
     public boolean wasLastCallSuccess() {
-        return mWasLastCallSuccess;
+        return Boolean.TRUE.equals(mWasLastCallSuccess.get());
+    }
+
+    @Override
+    public boolean supportsConcurrentQueries() {
+        return true;
     }
 
     public void onShortcutsChanged(List<ShortcutInfoCompat> shortcuts) {
@@ -93,10 +99,10 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             pinnedIds.remove(id);
             try {
                 mLauncherApps.pinShortcuts(packageName, pinnedIds, user);
-                mWasLastCallSuccess = true;
+                mWasLastCallSuccess.set(true);
             } catch (SecurityException|IllegalStateException e) {
                 Log.w(TAG, "Failed to unpin shortcut", e);
-                mWasLastCallSuccess = false;
+                mWasLastCallSuccess.set(false);
             }
         }
     }
@@ -114,10 +120,10 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             pinnedIds.add(id);
             try {
                 mLauncherApps.pinShortcuts(packageName, pinnedIds, user);
-                mWasLastCallSuccess = true;
+                mWasLastCallSuccess.set(true);
             } catch (SecurityException|IllegalStateException e) {
                 Log.w(TAG, "Failed to pin shortcut", e);
-                mWasLastCallSuccess = false;
+                mWasLastCallSuccess.set(false);
             }
         }
     }
@@ -128,10 +134,10 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             try {
                 mLauncherApps.startShortcut(packageName, id, sourceBounds,
                         startActivityOptions, user);
-                mWasLastCallSuccess = true;
+                mWasLastCallSuccess.set(true);
             } catch (SecurityException|IllegalStateException e) {
                 Log.e(TAG, "Failed to start shortcut", e);
-                mWasLastCallSuccess = false;
+                mWasLastCallSuccess.set(false);
             }
         }
     }
@@ -141,11 +147,11 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             try {
                 Drawable icon = mLauncherApps.getShortcutIconDrawable(
                         shortcutInfo.getShortcutInfo(), density);
-                mWasLastCallSuccess = true;
+                mWasLastCallSuccess.set(true);
                 return icon;
             } catch (SecurityException|IllegalStateException e) {
                 Log.e(TAG, "Failed to get shortcut icon", e);
-                mWasLastCallSuccess = false;
+                mWasLastCallSuccess.set(false);
             }
         }
         return null;
@@ -178,10 +184,10 @@ public class DeepShortcutManagerNative extends DeepShortcutManager {
             List<ShortcutInfo> shortcutInfos = null;
             try {
                 shortcutInfos = mLauncherApps.getShortcuts(q, user);
-                mWasLastCallSuccess = true;
+                mWasLastCallSuccess.set(true);
             } catch (SecurityException|IllegalStateException e) {
                 Log.e(TAG, "Failed to query for shortcuts", e);
-                mWasLastCallSuccess = false;
+                mWasLastCallSuccess.set(false);
             }
             if (shortcutInfos == null) {
                 return Collections.EMPTY_LIST;
@@ -28,8 +28,15 @@ import ch.deletescape.lawnchair.Utilities;
 
 /**
  * Utility class to load icon from a cursor.
+ * <p>
+ * If the cursor was queried with {@link #lazyIconProjection(String...)}, the icon blobs are
+ * only read from the DB when they are actually loaded.
  */
 public class CursorIconInfo {
+    // Columns telling whether the icon blobs are set, see lazyIconProjection()
+    public static final String HAS_ICON = "hasIcon";
+    public static final String HAS_CUSTOM_ICON = "hasCustomIcon";
+
     public final int iconPackageIndex;
     public final int iconResourceIndex;
     public final int iconIndex;
@@ -37,17 +44,47 @@ public class CursorIconInfo {
 
     public final int titleIndex;
 
+    // Only set when the blobs are not part of the cursor
+    private final int mIdIndex;
+    private final int mHasIconIndex;
+    private final int mHasCustomIconIndex;
+
     private final Context mContext;
 
+    private int mLazyIconCount;
+
     public CursorIconInfo(Context context, Cursor c) {
         mContext = context;
 
-        iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
-        customIconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CUSTOM_ICON);
+        iconIndex = c.getColumnIndex(LauncherSettings.Favorites.ICON);
+        customIconIndex = c.getColumnIndex(LauncherSettings.Favorites.CUSTOM_ICON);
         iconPackageIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_PACKAGE);
         iconResourceIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_RESOURCE);
 
         titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
+
+        boolean lazy = iconIndex < 0 || customIconIndex < 0;
+        mIdIndex = lazy ? c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID) : -1;
+        mHasIconIndex = iconIndex < 0 ? c.getColumnIndexOrThrow(HAS_ICON) : -1;
+        mHasCustomIconIndex = customIconIndex < 0 ? c.getColumnIndexOrThrow(HAS_CUSTOM_ICON) : -1;
+    }
+
+    /**
+     * Returns a favorites projection with {@param columns} and the columns needed by this class,
+     * where the icon blobs are replaced by flags telling whether they are set.
+     */
+    public static String[] lazyIconProjection(String... columns) {
+        String[] projection = new String[columns.length + 6];
+        System.arraycopy(columns, 0, projection, 0, columns.length);
+        int i = columns.length;
+        projection[i++] = LauncherSettings.Favorites._ID;
+        projection[i++] = LauncherSettings.Favorites.TITLE;
+        projection[i++] = LauncherSettings.Favorites.ICON_PACKAGE;
+        projection[i++] = LauncherSettings.Favorites.ICON_RESOURCE;
+        projection[i++] = "(" + LauncherSettings.Favorites.ICON + " IS NOT NULL) AS " + HAS_ICON;
+        projection[i] = "(" + LauncherSettings.Favorites.CUSTOM_ICON + " IS NOT NULL) AS "
+                + HAS_CUSTOM_ICON;
+        return projection;
     }
 
     /**
@@ -74,13 +111,45 @@ public class CursorIconInfo {
      * Loads the fixed bitmap from the icon if available.
      */
     public Bitmap loadIcon(Cursor c) {
+        if (iconIndex < 0) {
+            return loadLazyIcon(c, mHasIconIndex, LauncherSettings.Favorites.ICON);
+        }
         return Utilities.createIconBitmap(c, iconIndex, mContext);
     }
 
     public Bitmap loadCustomIcon(Cursor c) {
+        if (customIconIndex < 0) {
+            return loadLazyIcon(c, mHasCustomIconIndex, LauncherSettings.Favorites.CUSTOM_ICON);
+        }
         return Utilities.createIconBitmap(c, customIconIndex, mContext);
     }
 
+    private Bitmap loadLazyIcon(Cursor c, int hasIconIndex, String column) {
+        if (c.getInt(hasIconIndex) == 0) {
+            return null;
+        }
+        Cursor iconCursor = mContext.getContentResolver().query(
+                LauncherSettings.Favorites.CONTENT_URI, new String[]{column},
+                LauncherSettings.Favorites._ID + "=" + c.getLong(mIdIndex), null, null);
+        if (iconCursor == null) {
+            return null;
+        }
+        try {
+            mLazyIconCount++;
+            return iconCursor.moveToNext()
+                    ? Utilities.createIconBitmap(iconCursor, 0, mContext) : null;
+        } finally {
+            iconCursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of icon blobs which were read separately from the cursor.
+     */
+    public int getLazyIconCount() {
+        return mLazyIconCount;
+    }
+
     /**
      * Returns the title or empty string
      */
@@ -6,18 +6,74 @@ import ch.deletescape.lawnchair.ItemInfo;
 
 /**
  * Utility object to manage the occupancy in a grid.
+ * <p>
+ * Every row is stored as a bitmask, the bit x of a row being set if the cell in column x is
+ * occupied. Checking a span of a row is then a single mask operation.
  */
 public class GridOccupancy {
 
+    private static final int MAX_COUNT_X = Long.SIZE;
+
     private final int mCountX;
     private final int mCountY;
 
-    public final boolean[][] cells;
+    private final long[] mRows;
+    // Mask of all the columns of a row
+    private final long mFullRow;
 
     public GridOccupancy(int countX, int countY) {
+        if (countX > MAX_COUNT_X) {
+            throw new IllegalArgumentException("Grid has more than " + MAX_COUNT_X
+                    + " columns: " + countX);
+        }
         mCountX = countX;
         mCountY = countY;
-        cells = new boolean[countX][countY];
+        mRows = new long[countY];
+        mFullRow = spanMask(0, countX);
+    }
+
+    /**
+     * Returns the mask of {@param spanX} columns starting at column {@param x}.
+     */
+    private static long spanMask(int x, int spanX) {
+        if (spanX <= 0) {
+            return 0;
+        }
+        return (spanX >= Long.SIZE ? -1L : (1L << spanX) - 1) << x;
+    }
+
+    public int getCountX() {
+        return mCountX;
+    }
+
+    public int getCountY() {
+        return mCountY;
+    }
+
+    /**
+     * Returns true if the cell at {@param x}, {@param y} is occupied. The cell must be inside
+     * the grid.
+     */
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
+    }
+
+    /**
+     * Returns the number of occupied cells, starting at row {@param startY}.
+     */
+    public int getOccupiedCount(int startY) {
+        int count = 0;
+        for (int y = Math.max(0, startY); y < mCountY; y++) {
+            count += Long.bitCount(mRows[y]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the occupancy, as one bitmask per row.
+     */
+    public long[] getRowMasks() {
+        return mRows.clone();
     }
 
     /**
@@ -29,29 +85,40 @@ public class GridOccupancy {
      * @return true if a vacant cell was found
      */
     public boolean findVacantCell(int[] vacantOut, int spanX, int spanY) {
+        if (spanX <= 0 || spanY <= 0 || spanX > mCountX) {
+            return false;
+        }
+        // The columns where a span can start without going out of the grid
+        long validStarts = spanMask(0, mCountX - spanX + 1);
         for (int y = 0; (y + spanY) <= mCountY; y++) {
-            for (int x = 0; (x + spanX) <= mCountX; x++) {
-                boolean available = !cells[x][y];
-                out:
-                for (int i = x; i < x + spanX; i++) {
-                    for (int j = y; j < y + spanY; j++) {
-                        available = available && !cells[i][j];
-                        if (!available) break out;
-                    }
-                }
-                if (available) {
-                    vacantOut[0] = x;
-                    vacantOut[1] = y;
-                    return true;
-                }
+            // A column is vacant for the whole span if it is vacant in every row of it
+            long occupied = 0;
+            for (int j = y; j < y + spanY && occupied != mFullRow; j++) {
+                occupied |= mRows[j];
+            }
+            if (occupied == mFullRow) {
+                continue;
+            }
+            // Keep the columns followed by spanX - 1 vacant columns
+            long vacant = ~occupied & mFullRow;
+            long starts = vacant;
+            for (int i = 1; i < spanX && starts != 0; i++) {
+                starts &= vacant >>> i;
+            }
+            starts &= validStarts;
+            if (starts != 0) {
+                vacantOut[0] = Long.numberOfTrailingZeros(starts);
+                vacantOut[1] = y;
+                return true;
             }
         }
         return false;
     }
 
     public void copyTo(GridOccupancy dest) {
-        for (int i = 0; i < mCountX; i++) {
-            System.arraycopy(cells[i], 0, dest.cells[i], 0, mCountY);
+        int count = Math.min(mCountY, dest.mCountY);
+        for (int y = 0; y < count; y++) {
+            dest.mRows[y] = mRows[y] & dest.mFullRow;
         }
     }
 
@@ -61,21 +128,37 @@ public class GridOccupancy {
         if (x < 0 || y < 0 || x2 >= mCountX || y2 >= mCountY) {
             return false;
         }
-        for (int i = x; i <= x2; i++) {
-            for (int j = y; j <= y2; j++) {
-                if (cells[i][j]) {
-                    return false;
-                }
+        long mask = spanMask(x, spanX);
+        for (int j = y; j <= y2; j++) {
+            if ((mRows[j] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if none of the occupied cells of {@param block}, placed with its top left
+     * corner at {@param x}, {@param y}, overlaps with an occupied cell of this grid. The block
+     * must fit inside the grid.
+     */
+    public boolean isRegionVacant(int x, int y, GridOccupancy block) {
+        for (int j = 0; j < block.mCountY; j++) {
+            if ((mRows[y + j] & (block.mRows[j] << x)) != 0) {
+                return false;
             }
         }
         return true;
     }
 
     public void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
-        if (cellX < 0 || cellY < 0) return;
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                cells[x][y] = value;
+        if (cellX < 0 || cellY < 0 || cellX >= mCountX) return;
+        long mask = spanMask(cellX, Math.min(spanX, mCountX - cellX));
+        for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
+            if (value) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
             }
         }
     }
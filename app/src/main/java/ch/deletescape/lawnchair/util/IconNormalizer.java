@@ -41,8 +41,14 @@ public class IconNormalizer {
 
     private static final int MIN_VISIBLE_ALPHA = 40;
 
-    private static final Object LOCK = new Object();
-    private static IconNormalizer sIconNormalizer;
+    // Icons are normalized on several render threads, each of them with its own buffers.
+    private static final ThreadLocal<IconNormalizer> sIconNormalizer =
+            new ThreadLocal<IconNormalizer>() {
+                @Override
+                protected IconNormalizer initialValue() {
+                    return new IconNormalizer();
+                }
+            };
 
     private final int mMaxSize;
     private final Bitmap mBitmap;
@@ -240,11 +246,6 @@ public class IconNormalizer {
     }
 
     public static IconNormalizer getInstance() {
-        synchronized (LOCK) {
-            if (sIconNormalizer == null) {
-                sIconNormalizer = new IconNormalizer();
-            }
-        }
-        return sIconNormalizer;
+        return sIconNormalizer.get();
     }
 }
@@ -53,6 +53,15 @@ public abstract class ItemInfoMatcher {
         };
     }
 
+    public static ItemInfoMatcher ofItemIds(final HashSet<Long> ids) {
+        return new ItemInfoMatcher() {
+            @Override
+            public boolean matches(ItemInfo info, ComponentName cn) {
+                return ids.contains(info.id);
+            }
+        };
+    }
+
     public static ItemInfoMatcher ofShortcutKeys(final HashSet<ShortcutKey> keys) {
         return new ItemInfoMatcher() {
             @Override
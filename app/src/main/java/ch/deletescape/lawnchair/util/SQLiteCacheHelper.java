@@ -3,11 +3,18 @@ package ch.deletescape.lawnchair.util;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
@@ -27,6 +34,23 @@ public abstract class SQLiteCacheHelper {
         mIgnoreWrites = false;
     }
 
+    /**
+     * Enables write-ahead logging, so that reads don't wait for the writes of a batch.
+     *
+     * @see SQLiteOpenHelper#setWriteAheadLoggingEnabled(boolean)
+     */
+    protected void setWriteAheadLoggingEnabled(boolean enabled) {
+        mOpenHelper.setWriteAheadLoggingEnabled(enabled);
+    }
+
+    /**
+     * Returns a new {@link Batch} which writes its operations once {@param flushSize} of them
+     * are pending.
+     */
+    public Batch newBatch(int flushSize) {
+        return new Batch(flushSize);
+    }
+
     /**
      * @see SQLiteDatabase#delete(String, String, String[])
      */
@@ -93,6 +117,172 @@ public abstract class SQLiteCacheHelper {
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    /**
+     * Accumulates write operations and runs them in a single transaction, instead of one
+     * implicit transaction per operation. The inserts reuse compiled statements.
+     * <p>
+     * Not thread safe. {@link #commit()} must be called once the batch is no longer used.
+     */
+    public class Batch {
+        private static final int OP_INSERT_OR_REPLACE = 0;
+        private static final int OP_UPDATE = 1;
+        private static final int OP_DELETE = 2;
+
+        private final int mFlushSize;
+        private final ArrayList<Op> mPendingOps = new ArrayList<>();
+
+        // Compiled inserts by their list of columns
+        private final HashMap<String, InsertStatement> mInsertStatements = new HashMap<>();
+        private final ArrayList<String> mColumns = new ArrayList<>();
+
+        private int mWrittenCount;
+
+        Batch(int flushSize) {
+            mFlushSize = Math.max(1, flushSize);
+        }
+
+        /**
+         * @see SQLiteCacheHelper#insertOrReplace(ContentValues)
+         */
+        public void insertOrReplace(ContentValues values) {
+            add(new Op(OP_INSERT_OR_REPLACE, values, null, null));
+        }
+
+        /**
+         * @see SQLiteCacheHelper#update(ContentValues, String, String[])
+         */
+        public void update(ContentValues values, String whereClause, String[] whereArgs) {
+            add(new Op(OP_UPDATE, values, whereClause, whereArgs));
+        }
+
+        /**
+         * @see SQLiteCacheHelper#delete(String, String[])
+         */
+        public void delete(String whereClause, String[] whereArgs) {
+            add(new Op(OP_DELETE, null, whereClause, whereArgs));
+        }
+
+        private void add(Op op) {
+            if (mIgnoreWrites) {
+                return;
+            }
+            mPendingOps.add(op);
+            if (mPendingOps.size() >= mFlushSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the pending operations in a single transaction.
+         */
+        public void flush() {
+            if (mPendingOps.isEmpty()) {
+                return;
+            }
+            if (!mIgnoreWrites) {
+                try {
+                    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    try {
+                        for (Op op : mPendingOps) {
+                            switch (op.type) {
+                                case OP_INSERT_OR_REPLACE:
+                                    executeInsert(db, op.values);
+                                    break;
+                                case OP_UPDATE:
+                                    db.update(mTableName, op.values, op.whereClause, op.whereArgs);
+                                    break;
+                                case OP_DELETE:
+                                    db.delete(mTableName, op.whereClause, op.whereArgs);
+                                    break;
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    mWrittenCount += mPendingOps.size();
+                } catch (SQLiteFullException e) {
+                    onDiskFull(e);
+                } catch (SQLiteException e) {
+                    Log.d(TAG, "Ignoring sqlite exception", e);
+                }
+            }
+            mPendingOps.clear();
+        }
+
+        /**
+         * Writes the pending operations and releases the compiled statements.
+         */
+        public void commit() {
+            flush();
+            for (InsertStatement insert : mInsertStatements.values()) {
+                insert.statement.close();
+            }
+            mInsertStatements.clear();
+        }
+
+        /**
+         * Returns the number of operations written so far.
+         */
+        public int getWrittenCount() {
+            return mWrittenCount;
+        }
+
+        private void executeInsert(SQLiteDatabase db, ContentValues values) {
+            // Sorted, so that values with the same columns always share a statement
+            mColumns.clear();
+            mColumns.addAll(values.keySet());
+            Collections.sort(mColumns);
+            String key = mColumns.toString();
+
+            InsertStatement insert = mInsertStatements.get(key);
+            if (insert == null) {
+                insert = new InsertStatement(db, mColumns);
+                mInsertStatements.put(key, insert);
+            }
+            SQLiteStatement statement = insert.statement;
+            statement.clearBindings();
+            for (int i = 0; i < insert.columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(insert.columns[i]));
+            }
+            statement.executeInsert();
+        }
+    }
+
+    private static class Op {
+        final int type;
+        final ContentValues values;
+        final String whereClause;
+        final String[] whereArgs;
+
+        Op(int type, ContentValues values, String whereClause, String[] whereArgs) {
+            this.type = type;
+            this.values = values;
+            this.whereClause = whereClause;
+            this.whereArgs = whereArgs;
+        }
+    }
+
+    private class InsertStatement {
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        InsertStatement(SQLiteDatabase db, ArrayList<String> columns) {
+            this.columns = columns.toArray(new String[columns.size()]);
+            StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                    .append(mTableName).append(" (");
+            for (int i = 0; i < this.columns.length; i++) {
+                sql.append(i == 0 ? "" : ",").append(this.columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < this.columns.length; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            this.statement = db.compileStatement(sql.append(')').toString());
+        }
+    }
+
     /**
      * A private inner class to prevent direct DB access.
      */